@@ -0,0 +1,66 @@
+/*
+This servlet, serves the artist images from the backend itself at /images/<artist>, instead of sending the browser
+to S3 with a presigned URL. The artist name is turned into the same ".jpg" key the bucket uses, the image is
+taken from the local ArtistImageStore (which downloads it from S3 only the first time) and written straight from
+its memory-mapped file. Jetty's HttpOutput.sendContent hands the mapped buffer to the connector as is, so the
+bytes are never copied through the heap. Responses carry an ETag and a long Cache-Control, and a request with a
+matching If-None-Match gets an empty 304.
+*/
+
+package com.amazonaws;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+public class ArtistImageProxyServlet extends AsyncHttpServlet {
+
+    private final ArtistImageStore store = ArtistImageStore.getInstance();
+
+    // How long browsers may keep an image before revalidating it with its ETag.
+    private static final int MAX_AGE_SECONDS = Integer.getInteger("image.proxy.max.age.seconds", 86400);
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        String name = req.getPathInfo() == null ? "" : req.getPathInfo().substring(1);
+        if (name.isEmpty()) {
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        // Accept both the artist name and the key it maps to.
+        String fileKey = name.endsWith(".jpg") ? name : ArtistImageUrls.fileKey(name);
+
+        ArtistImageStore.CachedImage image;
+        try {
+            image = store.get(fileKey);
+        } catch (IOException e) {
+            System.err.println("Unable to load image " + fileKey + ": " + e.getMessage());
+            resp.sendError(HttpServletResponse.SC_BAD_GATEWAY);
+            return;
+        }
+        if (image == null) {
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+
+        resp.setHeader("ETag", image.getEtag());
+        resp.setHeader("Cache-Control", "public, max-age=" + MAX_AGE_SECONDS);
+        String ifNoneMatch = req.getHeader("If-None-Match");
+        if (ifNoneMatch != null && (ifNoneMatch.contains(image.getEtag()) || ifNoneMatch.trim().equals("*"))) {
+            resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        resp.setContentType("image/jpeg");
+        resp.setContentLengthLong(image.getSize());
+        if ("HEAD".equals(req.getMethod())) {
+            return;
+        }
+
+        ServletOutputStream out = resp.getOutputStream();
+        if (!AsyncDispatcher.sendContent(out, image.content())) {
+            image.writeTo(out);
+        }
+    }
+}
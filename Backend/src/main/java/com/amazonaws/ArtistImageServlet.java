@@ -7,47 +7,33 @@ artists name is stored in lowercase charaters with no space and appended with ".
 This is done to make it easier for tha anomality to be avoided. For example, some of the artist name is
 like 'The Tallest Man on Earth'. But in the json file, the artist name is like 'The Tallest Man On Earth'
 When we try to fetch the image, the preassigned url is mismatch because of the case sensitivity in the nam
-when joined.
+when joined. The signing itself, and the cache of signed URLs, live in ArtistImageUrls so that the enriched
+/fetchSubscriptions view signs images the same way. A request can also carry a list of artists,
+{"artists": [...]}, and gets back one map of artist to URL, so a whole page of search results needs a single
+request. An optional "size" (the width in pixels the image is shown at) picks the smallest resized variant
+of the image that still fits, see ArtistImageUrls.
  */
 
 
 
 package com.amazonaws;
 
-import com.amazonaws.auth.profile.ProfileCredentialsProvider;
-import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
-import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClientBuilder;
-import com.amazonaws.services.s3.AmazonS3;
-import com.amazonaws.services.s3.AmazonS3ClientBuilder;
-import com.amazonaws.HttpMethod;
-import com.amazonaws.services.s3.model.GeneratePresignedUrlRequest;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 
-import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.PrintWriter;
 import java.io.IOException;
-import java.net.URL;
-import java.util.Date;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
 
-public class ArtistImageServlet extends HttpServlet {
+public class ArtistImageServlet extends AsyncHttpServlet {
 
-    /*
-      Code adapted from Amazon S3( AWS SDK ) of Java documentation:
-      https://docs.aws.amazon.com/sdk-for-java/v1/developer-guide/java-dg-s3-client.html
-      https://github.com/aws/aws-sdk-java/tree/master/src/samples/AmazonS3
-    */
-    private final AmazonS3 s3Client = AmazonS3ClientBuilder.standard()
-
-            .withCredentials(new ProfileCredentialsProvider("default"))
-            .withRegion("us-east-1")
-            .build();
-
-    // The unique bucket name created as part of task 2 is used here
-    private final String bucketName = "s4059306-mybucket";
+    private final ArtistImageUrls imageUrls = ArtistImageUrls.getInstance();
 
 
      /*
@@ -65,11 +51,25 @@ public class ArtistImageServlet extends HttpServlet {
         JsonNode jsonNode = objectMapper.readTree(requestBody);
 
 
-        String artist = jsonNode.get("artist").asText();
+        // Bulk variant: every artist is normalised to its image key and each key is signed only once.
+        int size = jsonNode.path("size").asInt(0);
+        if (jsonNode.has("artists")) {
+            List<String> artists = new ArrayList<>();
+            for (JsonNode name : jsonNode.get("artists")) {
+                artists.add(name.asText());
+            }
+            ObjectNode response = objectMapper.createObjectNode();
+            ObjectNode images = response.putObject("images");
+            for (Map.Entry<String, String> image : imageUrls.urlsFor(artists, size).entrySet()) {
+                images.put(image.getKey(), image.getValue());
+            }
+            resp.setContentType("application/json");
+            resp.setCharacterEncoding("UTF-8");
+            objectMapper.writeValue(resp.getWriter(), response);
+            return;
+        }
 
-        // This way, it helps to avoid inconsistencies when trying to retrieve the correct image.
-        String fileKey = artist.replaceAll("\\s+", "").toLowerCase() + ".jpg";
-        String imageUrl;
+        String artist = jsonNode.get("artist").asText();
 
         /*
         After conversion and appending th artisit name with a .jpg, an expiration date is set make that
@@ -79,18 +79,7 @@ public class ArtistImageServlet extends HttpServlet {
         mhelps to generate and return an JSON object either with real or mock URLs.
 
         */
-        try {
-            Date expiration = new Date(System.currentTimeMillis() + 3600 * 1000); // 1 hour
-
-            GeneratePresignedUrlRequest presignedRequest = new GeneratePresignedUrlRequest(bucketName, fileKey)
-                    .withMethod(HttpMethod.GET)
-                    .withExpiration(expiration);
-
-            URL signedUrl = s3Client.generatePresignedUrl(presignedRequest);
-            imageUrl = signedUrl.toString();
-        } catch (Exception e) {
-            imageUrl = "https://via.placeholder.com/100";
-        }
+        String imageUrl = imageUrls.urlFor(artist, size);
 
         resp.setContentType("application/json");
         PrintWriter out = resp.getWriter();
@@ -0,0 +1,312 @@
+/*
+This class is the local content cache behind ArtistImageProxyServlet. The first request for an artist image
+downloads it from the S3 bucket (or from any S3 compatible stand-in set with -Dimage.s3.endpoint) into a file in
+image.cache.dir, and from then on the image is served from that file through a read-only memory mapping, so hot
+images never leave the box and are never copied onto the Java heap.
+
+Concurrent requests for an image that is not cached yet share a single download. Every image gets a strong ETag,
+the MD5 of its bytes, so browsers can revalidate with If-None-Match. The cache is bounded by
+image.cache.max.mb: when it grows past that, the least recently served images are deleted. Cached files are picked
+up again when the server restarts.
+
+A size variant that the bucket does not have is answered with the original image instead, and the variant is not
+asked for again for image.keys.refresh.seconds, so a missing variant costs one extra S3 request rather than one
+per page view.
+*/
+
+package com.amazonaws;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.S3Object;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ArtistImageStore {
+
+    private static final ArtistImageStore INSTANCE = new ArtistImageStore(
+            Paths.get(System.getProperty("image.cache.dir", "image-cache")),
+            Long.getLong("image.cache.max.mb", 256) * 1024 * 1024);
+
+    private final AmazonS3 s3Client;
+    private final Path directory;
+    private final long maxBytes;
+
+    private final Map<String, CachedImage> images = new ConcurrentHashMap<>();
+    private final Map<String, FutureTask<CachedImage>> downloads = new ConcurrentHashMap<>();
+    // Variant keys the bucket answered with a 404, and until when they are not asked for again.
+    private final Map<String, Long> missingVariants = new ConcurrentHashMap<>();
+    private final long missingVariantMillis = Integer.getInteger("image.keys.refresh.seconds", 600) * 1000L;
+    private final AtomicLong totalBytes = new AtomicLong();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    private ArtistImageStore(Path directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        // The shared S3 client, which also honours -Dimage.s3.endpoint
+        this.s3Client = DynamoDBManager.getS3();
+
+        Metrics metrics = Metrics.getInstance();
+        metrics.gauge("image_store_images", "Artist images in the local cache", images::size);
+        metrics.gauge("image_store_bytes", "Bytes of the artist images in the local cache", totalBytes::get);
+        metrics.counter("image_store_hits_total", "Artist images served from the local cache", hits::get);
+        metrics.counter("image_store_misses_total", "Artist images downloaded from S3", misses::get);
+        metrics.counter("image_store_evictions_total", "Artist images dropped from the local cache", evictions::get);
+
+        try {
+            Files.createDirectories(directory);
+            loadExisting();
+        } catch (IOException e) {
+            System.err.println("Unable to read image cache directory " + directory + ": " + e.getMessage());
+        }
+    }
+
+    public static ArtistImageStore getInstance() {
+        return INSTANCE;
+    }
+
+    /*
+     Returns the cached image for the key, downloading it first if needed, or null when the bucket does
+     not have it. When the key is a size variant that the bucket does not have, the original is returned.
+    */
+    public CachedImage get(String fileKey) throws IOException {
+        String original = ArtistImageUrls.originalKey(fileKey);
+        if (original == null) {
+            return load(fileKey);
+        }
+        Long missingUntil = missingVariants.get(fileKey);
+        if (missingUntil == null || System.currentTimeMillis() >= missingUntil) {
+            CachedImage image = load(fileKey);
+            if (image != null) {
+                missingVariants.remove(fileKey);
+                return image;
+            }
+            missingVariants.put(fileKey, System.currentTimeMillis() + missingVariantMillis);
+        }
+        return load(original);
+    }
+
+    // Only one download per key runs at a time, other callers wait for it.
+    private CachedImage load(String fileKey) throws IOException {
+        CachedImage image = images.get(fileKey);
+        if (image != null) {
+            hits.incrementAndGet();
+            image.lastAccess = System.nanoTime();
+            return image;
+        }
+        misses.incrementAndGet();
+
+        FutureTask<CachedImage> download = new FutureTask<>(() -> download(fileKey));
+        FutureTask<CachedImage> running = downloads.putIfAbsent(fileKey, download);
+        if (running == null) {
+            running = download;
+            try {
+                download.run();
+            } finally {
+                downloads.remove(fileKey, download);
+            }
+        }
+        try {
+            return running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while downloading " + fileKey, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Unable to download " + fileKey, cause);
+        }
+    }
+
+    // Streams the object into a temporary file, hashing it on the way, and moves it into place once complete.
+    private CachedImage download(String fileKey) throws IOException {
+        CachedImage cached = images.get(fileKey);
+        if (cached != null) {
+            return cached;
+        }
+
+        Path file = directory.resolve(fileName(fileKey));
+        Path partial = directory.resolve(file.getFileName() + ".part");
+        MessageDigest md5 = md5();
+        try (S3Object object = s3Client.getObject(ArtistImageUrls.BUCKET_NAME, fileKey);
+             InputStream in = new DigestInputStream(object.getObjectContent(), md5)) {
+            Files.copy(in, partial, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AmazonS3Exception e) {
+            Files.deleteIfExists(partial);
+            if (e.getStatusCode() == 404) {
+                return null;
+            }
+            throw new IOException("Unable to download " + fileKey + ": " + e.getMessage(), e);
+        }
+        Files.move(partial, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        CachedImage image = map(file, toHex(md5.digest()));
+        add(fileKey, image);
+        System.out.println("🖼️ Cached " + fileKey + " (" + image.size + " bytes)");
+        return image;
+    }
+
+    private void add(String fileKey, CachedImage image) {
+        CachedImage previous = images.put(fileKey, image);
+        totalBytes.addAndGet(image.size - (previous == null ? 0 : previous.size));
+        if (totalBytes.get() > maxBytes) {
+            evict();
+        }
+    }
+
+    /*
+     Deletes the least recently served images until the cache is back under its size limit. A request
+     that is still sending an evicted image keeps its mapping, the file is only unlinked.
+    */
+    private synchronized void evict() {
+        if (totalBytes.get() <= maxBytes) {
+            return;
+        }
+        List<Map.Entry<String, CachedImage>> entries = new ArrayList<>(images.entrySet());
+        entries.sort(Comparator.comparingLong(entry -> entry.getValue().lastAccess));
+        for (Map.Entry<String, CachedImage> entry : entries) {
+            if (totalBytes.get() <= maxBytes) {
+                break;
+            }
+            if (images.remove(entry.getKey(), entry.getValue())) {
+                totalBytes.addAndGet(-entry.getValue().size);
+                evictions.incrementAndGet();
+                try {
+                    Files.deleteIfExists(entry.getValue().file);
+                } catch (IOException e) {
+                    System.err.println("Unable to delete cached image " + entry.getValue().file + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // Picks up the images a previous run left in the cache directory.
+    private void loadExisting() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.img")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                String fileKey = new String(fromHex(name.substring(0, name.length() - ".img".length())), StandardCharsets.UTF_8);
+                MessageDigest md5 = md5();
+                try (InputStream in = new DigestInputStream(Files.newInputStream(file), md5)) {
+                    byte[] buffer = new byte[8192];
+                    while (in.read(buffer) != -1) {
+                        // Reading is enough, the digest stream hashes what passes through.
+                    }
+                }
+                add(fileKey, map(file, toHex(md5.digest())));
+            }
+        }
+        if (!images.isEmpty()) {
+            System.out.println("🖼️ Image cache holds " + images.size() + " images, " + totalBytes.get() + " bytes");
+        }
+    }
+
+    private static CachedImage map(Path file, String md5) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer content = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new CachedImage(file, content, "\"" + md5 + "\"");
+        }
+    }
+
+    // File names are the hex of the key, so artist names with slashes or dots cannot escape the directory.
+    private static String fileName(String fileKey) {
+        return toHex(fileKey.getBytes(StandardCharsets.UTF_8)) + ".img";
+    }
+
+    private static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    private static byte[] fromHex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        return "image store: images=" + images.size() + ", bytes=" + totalBytes.get() + ", hits=" + hits.get()
+                + ", misses=" + misses.get() + ", evictions=" + evictions.get();
+    }
+
+    // One cached image: its file, a read-only mapping of the file and its ETag.
+    public static final class CachedImage {
+        final Path file;
+        private final ByteBuffer content;
+        final long size;
+        final String etag;
+        volatile long lastAccess = System.nanoTime();
+
+        CachedImage(Path file, ByteBuffer content, String etag) {
+            this.file = file;
+            this.content = content;
+            this.size = content.capacity();
+            this.etag = etag;
+        }
+
+        public String getEtag() {
+            return etag;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        // A view of the mapped bytes with its own position, so concurrent requests do not interfere.
+        public ByteBuffer content() {
+            return content.duplicate();
+        }
+
+        // Fallback for containers without zero-copy support.
+        public void writeTo(OutputStream out) throws IOException {
+            ByteBuffer view = content();
+            byte[] chunk = new byte[8192];
+            while (view.hasRemaining()) {
+                int length = Math.min(chunk.length, view.remaining());
+                view.get(chunk, 0, length);
+                out.write(chunk, 0, length);
+            }
+        }
+    }
+}
@@ -0,0 +1,350 @@
+/*
+This class signs the S3 URLs of the artist images. It is shared by ArtistImageServlet, which signs one artist per
+request, and by the enriched /fetchSubscriptions view, which signs the images for a whole list of songs at once.
+The image of an artist is stored in the bucket under the artist name in lowercase with no spaces, followed by
+".jpg".
+
+Every signed URL is kept per image and handed out unchanged for most of its lifetime, which also lets browsers
+cache the image itself. Once a URL gets within image.url.refresh.seconds of expiring it is still returned, but a
+fresh one is signed in the background for the requests after that. Only a URL that is missing or about to expire
+is signed on the request thread. The URLs are held in a ResultCache of image.cache.size entries, so when it is full
+the least recently used image makes room for the next one. prewarm() signs a whole list of artists up front (at
+most as many as the cache holds), which QueryMusicServlet does for every artist in the catalog each time the
+catalog index is loaded.
+
+Callers can pass the size the image is displayed at. The S3 ingestion uploads resized copies of every image
+under size-suffixed keys ("taylorswift_128.jpg"), and the smallest one that is at least that size is handed out;
+when the size is larger than every variant, or not given, the original is used. Not every image has its variants
+(an image the ingestion could not decode is uploaded as it is, and buckets filled before the variants existed have
+none), so the keys in the bucket are listed in the background every image.keys.refresh.seconds and a variant is
+only handed out once the listing shows it. Until the first listing completes, or when it fails, the original is
+used.
+
+With -Dimage.proxy.enabled=true nothing is signed at all: the URLs point at ArtistImageProxyServlet, which serves
+the images from a local cache on this server.
+*/
+
+package com.amazonaws;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.HttpMethod;
+import com.amazonaws.services.s3.model.GeneratePresignedUrlRequest;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ArtistImageUrls {
+
+    // Returned when an image could not be signed.
+    public static final String PLACEHOLDER_URL = "https://via.placeholder.com/100";
+
+    private static final ArtistImageUrls INSTANCE = new ArtistImageUrls();
+
+    // The S3 client shared with ArtistImageStore, see DynamoDBManager
+    private final AmazonS3 s3Client = DynamoDBManager.getS3();
+
+    // The unique bucket name created as part of task 2 is used here
+    static final String BUCKET_NAME = "s4059306-mybucket";
+
+    // Hands out /images/<key> URLs served by ArtistImageProxyServlet instead of presigned S3 URLs.
+    private static final boolean PROXY_ENABLED =
+            Boolean.parseBoolean(System.getProperty("image.proxy.enabled", "false"));
+
+    // How long a signed URL is valid, and how long before that it is re-signed in the background.
+    private static final long URL_TTL_MILLIS = Integer.getInteger("image.url.ttl.seconds", 3600) * 1000L;
+    private static final long REFRESH_WINDOW_MILLIS = Integer.getInteger("image.url.refresh.seconds", 600) * 1000L;
+
+    // A URL closer than this to expiring is not handed out any more, the browser may still need to load it.
+    private static final long MIN_REMAINING_MILLIS = Math.min(60_000, REFRESH_WINDOW_MILLIS);
+
+    private static final int MAX_ENTRIES = Integer.getInteger("image.cache.size", 1000);
+
+    // Sizes of the resized variants the S3 ingestion uploads next to every original, smallest first.
+    private static final int[] VARIANT_SIZES = parseSizes(System.getProperty("image.sizes", "64,128,512"));
+
+    // How often the keys in the bucket are listed again, so variants uploaded since are picked up.
+    private static final long KEYS_REFRESH_MILLIS = Integer.getInteger("image.keys.refresh.seconds", 600) * 1000L;
+
+    private final ResultCache<String, SignedUrl> urls =
+            new ResultCache<>("image_urls", MAX_ENTRIES, URL_TTL_MILLIS, TimeUnit.MILLISECONDS);
+
+    // The keys found in the bucket by the last listing, null until one has completed.
+    private volatile Set<String> storedKeys;
+    private volatile long keysListedAt;
+    private final AtomicBoolean listingKeys = new AtomicBoolean();
+    private final ExecutorService refresher = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "image-url-refresh");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong signed = new AtomicLong();
+    private final AtomicLong refreshes = new AtomicLong();
+
+    private final LatencyHistogram presignLatency = Metrics.getInstance().histogram("s3_presign_duration_seconds",
+            "Time to sign one artist image URL");
+    private final Metrics.Counter presignErrors = Metrics.getInstance().counter("s3_presign_errors_total",
+            "Artist image URLs that could not be signed");
+
+    private ArtistImageUrls() {
+        Metrics metrics = Metrics.getInstance();
+        metrics.gauge("image_urls_cached", "Signed artist image URLs held in memory", urls::size);
+        metrics.counter("image_urls_hits_total", "Artist image URLs handed out without signing", hits::get);
+        metrics.counter("image_urls_signed_total", "Artist image URLs signed", signed::get);
+        metrics.counter("image_urls_background_refreshes_total", "Artist image URLs re-signed in the background", refreshes::get);
+    }
+
+    public static ArtistImageUrls getInstance() {
+        return INSTANCE;
+    }
+
+    // This way, it helps to avoid inconsistencies when trying to retrieve the correct image.
+    public static String fileKey(String artist) {
+        return artist.replaceAll("\\s+", "").toLowerCase() + ".jpg";
+    }
+
+    // The key of the smallest variant that is at least size pixels, or the original when none is big enough.
+    public static String fileKey(String artist, int size) {
+        String original = fileKey(artist);
+        if (size > 0) {
+            for (int variant : VARIANT_SIZES) {
+                if (variant >= size) {
+                    return variantKey(original, variant);
+                }
+            }
+        }
+        return original;
+    }
+
+    private static String variantKey(String original, int variant) {
+        return original.substring(0, original.length() - ".jpg".length()) + "_" + variant + ".jpg";
+    }
+
+    // The key of the original image when fileKey names one of its variants, otherwise null.
+    public static String originalKey(String fileKey) {
+        for (int variant : VARIANT_SIZES) {
+            String suffix = "_" + variant + ".jpg";
+            if (fileKey.endsWith(suffix) && fileKey.length() > suffix.length()) {
+                return fileKey.substring(0, fileKey.length() - suffix.length()) + ".jpg";
+            }
+        }
+        return null;
+    }
+
+    /*
+     Same as fileKey(artist, size), but only for a variant the last listing found in the bucket: the smallest
+     of those that is at least size pixels, or the original when there is none.
+    */
+    String storedFileKey(String artist, int size) {
+        String original = fileKey(artist);
+        Set<String> keys = storedKeys();
+        if (size <= 0 || keys == null) {
+            return original;
+        }
+        for (int variant : VARIANT_SIZES) {
+            if (variant >= size) {
+                String key = variantKey(original, variant);
+                if (keys.contains(key)) {
+                    return key;
+                }
+            }
+        }
+        return original;
+    }
+
+    // The last listing of the bucket, starting a new one in the background when it is missing or out of date.
+    private Set<String> storedKeys() {
+        if ((storedKeys == null || System.currentTimeMillis() - keysListedAt >= KEYS_REFRESH_MILLIS)
+                && listingKeys.compareAndSet(false, true)) {
+            refresher.execute(this::listKeys);
+        }
+        return storedKeys;
+    }
+
+    private void listKeys() {
+        try {
+            long start = System.currentTimeMillis();
+            Set<String> keys = new HashSet<>();
+            ListObjectsV2Request request = new ListObjectsV2Request().withBucketName(BUCKET_NAME);
+            ListObjectsV2Result result;
+            do {
+                result = s3Client.listObjectsV2(request);
+                for (S3ObjectSummary summary : result.getObjectSummaries()) {
+                    keys.add(summary.getKey());
+                }
+                request.setContinuationToken(result.getNextContinuationToken());
+            } while (result.isTruncated());
+            storedKeys = keys;
+            System.out.println("🖼️ Listed " + keys.size() + " artist image keys in "
+                    + (System.currentTimeMillis() - start) + " ms");
+        } catch (Exception e) {
+            // Keep the previous listing, or the originals when there is none, and try again later.
+            System.err.println("Unable to list the keys of bucket " + BUCKET_NAME + ": " + e.getMessage());
+        } finally {
+            keysListedAt = System.currentTimeMillis();
+            listingKeys.set(false);
+        }
+    }
+
+    /*
+     Returns a URL for the artist's image. The same URL is returned until it enters the refresh window,
+     so it stays stable for browsers, and it always has at least a minute left when it is handed out.
+     If signing fails the placeholder image is returned, and that is not kept so the next request tries again.
+    */
+    public String urlFor(String artist) {
+        return urlFor(artist, 0);
+    }
+
+    // Same as urlFor(artist), for the image shown at the given size in pixels (0 for the original).
+    public String urlFor(String artist, int size) {
+        String fileKey = storedFileKey(artist, size);
+        if (PROXY_ENABLED) {
+            return proxyUrl(fileKey);
+        }
+        long now = System.currentTimeMillis();
+        SignedUrl current = urls.get(fileKey);
+        if (current != null && now < current.expiresAt - MIN_REMAINING_MILLIS) {
+            hits.incrementAndGet();
+            if (now >= current.expiresAt - REFRESH_WINDOW_MILLIS && current.refreshing.compareAndSet(false, true)) {
+                refreshes.incrementAndGet();
+                refresher.execute(() -> sign(fileKey));
+            }
+            return current.url;
+        }
+        SignedUrl fresh = sign(fileKey);
+        return fresh == null ? PLACEHOLDER_URL : fresh.url;
+    }
+
+    // The proxy URL needs no signing and never expires, the key is only escaped for use in a path.
+    private static String proxyUrl(String fileKey) {
+        try {
+            return "/images/" + URLEncoder.encode(fileKey, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Signs the images of the given artists at the given size in the background, skipping the ones that are still fresh.
+    public void prewarm(Collection<String> artists, int size) {
+        if (PROXY_ENABLED) {
+            return;
+        }
+        refresher.execute(() -> {
+            if (storedKeys == null) {
+                listKeys();
+            }
+            long start = System.currentTimeMillis();
+            int count = 0;
+            int seen = 0;
+            for (String artist : artists) {
+                // Signing more than the cache holds would only evict the URLs signed first.
+                if (seen++ >= MAX_ENTRIES) {
+                    break;
+                }
+                String fileKey = storedFileKey(artist, size);
+                SignedUrl current = urls.get(fileKey);
+                if (current == null || System.currentTimeMillis() >= current.expiresAt - REFRESH_WINDOW_MILLIS) {
+                    if (sign(fileKey) != null) {
+                        count++;
+                    }
+                }
+            }
+            System.out.println("🖼️ Pre-signed " + count + " artist image URLs in "
+                    + (System.currentTimeMillis() - start) + " ms");
+        });
+    }
+
+    /*
+     Signs a URL for the image that expires after image.url.ttl.seconds. The expiration keeps a leaked link
+     from giving lasting access to the bucket. Returns null if the URL could not be signed.
+    */
+    private SignedUrl sign(String fileKey) {
+        try {
+            long expiresAt = System.currentTimeMillis() + URL_TTL_MILLIS;
+
+            GeneratePresignedUrlRequest presignedRequest = new GeneratePresignedUrlRequest(BUCKET_NAME, fileKey)
+                    .withMethod(HttpMethod.GET)
+                    .withExpiration(new Date(expiresAt));
+
+            long start = System.nanoTime();
+            URL signedUrl = s3Client.generatePresignedUrl(presignedRequest);
+            presignLatency.recordSince(start);
+            SignedUrl fresh = new SignedUrl(signedUrl.toString(), expiresAt);
+            signed.incrementAndGet();
+            urls.put(fileKey, fresh);
+            return fresh;
+        } catch (Exception e) {
+            presignErrors.increment();
+            SignedUrl current = urls.get(fileKey);
+            if (current != null) {
+                // Let the next request try the refresh again.
+                current.refreshing.set(false);
+            }
+            return null;
+        }
+    }
+
+    /*
+     Signs the images of many artists at once. Artists that map to the same image (for example names
+     that only differ in case or spacing) are signed once, and the result maps every artist as given
+     to its URL.
+    */
+    public Map<String, String> urlsFor(Collection<String> artists, int size) {
+        Map<String, String> byFileKey = new HashMap<>();
+        Map<String, String> result = new LinkedHashMap<>();
+        for (String artist : artists) {
+            if (artist == null || result.containsKey(artist)) {
+                continue;
+            }
+            result.put(artist, byFileKey.computeIfAbsent(storedFileKey(artist, size), key -> urlFor(artist, size)));
+        }
+        return result;
+    }
+
+    private static int[] parseSizes(String value) {
+        return Arrays.stream(value.split(","))
+                .map(String::trim)
+                .filter(part -> !part.isEmpty())
+                .mapToInt(Integer::parseInt)
+                .filter(size -> size > 0)
+                .sorted()
+                .distinct()
+                .toArray();
+    }
+
+    @Override
+    public String toString() {
+        return "artistImage urls: size=" + urls.size() + ", hits=" + hits.get() + ", signed=" + signed.get()
+                + ", backgroundRefreshes=" + refreshes.get();
+    }
+
+    private static final class SignedUrl {
+        final String url;
+        final long expiresAt;
+        // Set once a background re-sign has been started, so it only happens once per URL.
+        final AtomicBoolean refreshing = new AtomicBoolean();
+
+        SignedUrl(String url, long expiresAt) {
+            this.url = url;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,652 @@
+/*
+This class, moves the blocking work of a request off Jetty's threads. With Servlet 3.1 async processing the Jetty
+thread only starts the request (AsyncContext) and returns to the pool straight away; the servlet's code, with its
+DynamoDB and S3 calls, then runs on a separate I/O pool and completes the request when it is done. A latency spike
+in DynamoDB therefore fills the I/O pool's queue instead of Jetty's thread pool, and Jetty keeps accepting and
+answering requests (static pages, the metrics) while the slow calls are pending.
+
+The busiest requests do not block at all. /login, /queryMusic (its GetItem and Query plans), /subscribe and
+/fetchSubscriptions call the AmazonDynamoDBAsync client: they switch the request to async mode with begin(), hand
+the call to the SDK and return, and the SDK's callback (see completing()) writes the response and completes it.
+No thread waits while DynamoDB answers, so the requests in flight are not capped by any pool. Whatever such a
+request still has to do that blocks (the enriched subscription view reads the Music table and signs image URLs)
+is handed to the I/O pool with resume().
+
+The other servlets, through AsyncHttpServlet, and the /queryMusic searches that fall back to a Scan still make
+blocking SDK calls on an I/O pool thread. For those this only moves the blocking from Jetty's pool to the I/O
+pool, whose size (-Dasync.threads, plus the queue) caps how many of them run at once.
+
+Configured through system properties:
+  -Dasync.enabled (true)          run requests asynchronously at all
+  -Dasync.threads (64)            threads doing the blocking I/O
+  -Dasync.queue (1000)            requests waiting for one of them, beyond that a request gets 503
+  -Dasync.timeout.millis (60000)  a request not answered by then gets 503, whatever its servlet is still doing
+
+A request that times out is answered with 503 and completed straight away, while its handler may still be running.
+The handler therefore writes through a guarded response. Completing or timing out marks the exchange done with a
+compare-and-set, and from then on every write fails with an IOException and every header change is dropped, so
+nothing the handler writes late can reach the 503, or the next response on the same connection after Jetty has
+recycled the response object. No lock is held while writing: the exchange counts the writes in progress instead,
+and a write that was already under way when the request timed out completes the request once it returns, so a slow
+client only holds up its own request.
+
+Error statuses (the 503 of a timeout or a full queue, the 500 of a failed handler, and sendError from a servlet)
+are written directly as a short text/plain body rather than through Jetty's sendError, which would start Jetty's
+error dispatch for a request that is being completed and leave the connection's next request broken.
+
+A request that reaches a servlet through a filter or holder without async support is simply run on the Jetty
+thread as before. The project targets Java 8, so there are no virtual threads to run the requests on; the I/O pool
+is sized for the number of DynamoDB calls that may be outstanding at once instead.
+
+The timeout is long enough for a paginated search that falls back to a Scan. That search reads the segments one
+after another, and each throttled page backs off up to ParallelMusicScanner's attempt limit, so a search on a
+busy table can take tens of seconds before it answers.
+
+Code adapted from the Servlet 3.1 and Jetty documentation on asynchronous servlets:
+https://docs.oracle.com/javaee/7/tutorial/servlets012.htm
+https://www.eclipse.org/jetty/documentation/jetty-9/index.html#continuations
+*/
+
+package com.amazonaws;
+
+import com.amazonaws.handlers.AsyncHandler;
+import org.eclipse.jetty.http.HttpStatus;
+import org.eclipse.jetty.server.HttpOutput;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class AsyncDispatcher {
+
+    static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("async.enabled", "true"));
+    private static final int THREADS = Integer.getInteger("async.threads", 64);
+    private static final int QUEUE = Integer.getInteger("async.queue", 1000);
+    private static final long TIMEOUT_MILLIS = Long.getLong("async.timeout.millis", 60000);
+
+    // Declared after the settings, which the constructor reads to size the pool.
+    private static final AsyncDispatcher INSTANCE = new AsyncDispatcher();
+
+    private final ThreadPoolExecutor executor;
+
+    private final AtomicLong dispatched = new AtomicLong();
+    private final AtomicLong inline = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong timedOut = new AtomicLong();
+
+    private AsyncDispatcher() {
+        AtomicInteger threadNumber = new AtomicInteger();
+        executor = new ThreadPoolExecutor(Math.max(THREADS, 1), Math.max(THREADS, 1), 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(Math.max(QUEUE, 1)), runnable -> {
+            Thread thread = new Thread(runnable, "request-io-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+
+        Metrics metrics = Metrics.getInstance();
+        metrics.counter("async_requests_dispatched_total", "Requests run on the async I/O pool", dispatched::get);
+        metrics.counter("async_requests_inline_total", "Requests run on the Jetty thread", inline::get);
+        metrics.counter("async_requests_rejected_total", "Requests refused with 503 because the I/O pool queue was full", rejected::get);
+        metrics.counter("async_requests_timed_out_total", "Requests answered with 503 after the async timeout", timedOut::get);
+        metrics.gauge("async_pool_active_threads", "I/O pool threads running a request", executor::getActiveCount);
+        metrics.gauge("async_pool_queued_requests", "Requests waiting for an I/O pool thread", () -> executor.getQueue().size());
+    }
+
+    public static AsyncDispatcher getInstance() {
+        return INSTANCE;
+    }
+
+    // The part of a servlet that may block, typically its service method.
+    public interface Handler {
+        void handle(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException;
+    }
+
+    /*
+     Runs the handler on the I/O pool and completes the request when it returns. When async processing is
+     off or not supported on this request's path, the handler runs right here instead.
+    */
+    public void dispatch(HttpServletRequest req, HttpServletResponse resp, Handler handler) throws ServletException, IOException {
+        if (!ENABLED || !req.isAsyncSupported()) {
+            inline.incrementAndGet();
+            handler.handle(req, resp);
+            return;
+        }
+
+        resume(begin(req), handler);
+    }
+
+    /*
+     Runs the handler on the I/O pool for a request that is already in async mode, and completes the request
+     when it returns. Used for the blocking part of a request that started with a call to the async client.
+    */
+    public void resume(Exchange exchange, Handler handler) {
+        if (exchange.isDone()) {
+            return;
+        }
+        // Jetty reuses the request object once the request is completed, so the URI is read now.
+        String uri = exchange.getRequest().getRequestURI();
+        exchange.resumed = true;
+        try {
+            executor.execute(() -> {
+                if (exchange.isDone()) {
+                    // Timed out while waiting in the queue, it has already been answered.
+                    return;
+                }
+                try {
+                    handler.handle(exchange.getRequest(), exchange.getResponse());
+                } catch (Exception e) {
+                    // After a timeout the handler's late writes fail, which is expected.
+                    if (!exchange.isDone()) {
+                        System.err.println("Request " + uri + " failed: " + e.getMessage());
+                        exchange.fail(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                    }
+                } finally {
+                    exchange.complete();
+                }
+            });
+            dispatched.incrementAndGet();
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            exchange.fail(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            exchange.complete();
+        }
+    }
+
+    /*
+     Switches the request to async processing with the configured timeout, for callers that complete it
+     themselves, for example from the callback of an AmazonDynamoDBAsync call.
+    */
+    public Exchange begin(HttpServletRequest req) {
+        AsyncContext context = req.startAsync();
+        context.setTimeout(TIMEOUT_MILLIS);
+        Exchange exchange = new Exchange(context);
+        context.addListener(new AsyncListener() {
+            @Override
+            public void onTimeout(AsyncEvent event) {
+                int writing = exchange.finish();
+                if (writing < 0) {
+                    return;
+                }
+                timedOut.incrementAndGet();
+                if (writing == 0) {
+                    // No write of the handler can start any more, nor is one half way through the response.
+                    writeStatus(exchange.original(), HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Request timed out");
+                    exchange.completeContext();
+                }
+                // Otherwise the write in progress completes the request when it returns, cutting the response off.
+            }
+
+            @Override
+            public void onError(AsyncEvent event) {
+                exchange.complete();
+            }
+
+            @Override
+            public void onComplete(AsyncEvent event) {
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) {
+            }
+        });
+        return exchange;
+    }
+
+    // The part of a request that runs when an AmazonDynamoDBAsync call returns: its result, or the exception it failed with.
+    public interface Callback<R> {
+        void handle(HttpServletResponse resp, R result, Exception error) throws IOException;
+    }
+
+    // Writes the response of an async request.
+    public interface Responder {
+        void respond(HttpServletResponse resp) throws IOException;
+    }
+
+    // An AsyncHandler that answers the request with respond() once the call returns, on the SDK's thread.
+    public static <Q extends AmazonWebServiceRequest, R> AsyncHandler<Q, R> completing(Exchange exchange, Callback<R> callback) {
+        return new AsyncHandler<Q, R>() {
+            @Override
+            public void onSuccess(Q request, R result) {
+                respond(exchange, resp -> callback.handle(resp, result, null));
+            }
+
+            @Override
+            public void onError(Exception e) {
+                respond(exchange, resp -> callback.handle(resp, null, e));
+            }
+        };
+    }
+
+    /*
+     Runs the responder with the exchange's response on this thread and then completes the exchange, unless
+     the responder handed the request on to the I/O pool with resume(). A responder that throws answers 500.
+    */
+    public static void respond(Exchange exchange, Responder responder) {
+        try {
+            responder.respond(exchange.getResponse());
+        } catch (IOException | RuntimeException e) {
+            if (!exchange.isDone()) {
+                System.err.println("Async request failed: " + e.getMessage());
+                exchange.fail(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            }
+            exchange.complete();
+            return;
+        }
+        if (!exchange.isResumed()) {
+            exchange.complete();
+        }
+    }
+
+    public long getDispatched() {
+        return dispatched.get();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    public long getTimedOut() {
+        return timedOut.get();
+    }
+
+    public int getActive() {
+        return executor.getActiveCount();
+    }
+
+    public int getQueued() {
+        return executor.getQueue().size();
+    }
+
+    @Override
+    public String toString() {
+        return "async requests: dispatched=" + dispatched.get() + ", inline=" + inline.get() + ", active="
+                + executor.getActiveCount() + ", queued=" + executor.getQueue().size() + ", rejected="
+                + rejected.get() + ", timedOut=" + timedOut.get();
+    }
+
+    // Replaces whatever the response holds with a short text/plain status, unless it has already started.
+    private static void writeStatus(HttpServletResponse response, int status, String message) {
+        try {
+            if (!response.isCommitted()) {
+                response.reset();
+                response.setStatus(status);
+                response.setContentType("text/plain");
+                try {
+                    response.getOutputStream().print(message);
+                } catch (IllegalStateException e) {
+                    // The handler already took the writer.
+                    response.getWriter().print(message);
+                }
+            }
+        } catch (IOException | IllegalStateException e) {
+            // The response was already partly written, or the client is gone; it is just cut off.
+        }
+    }
+
+    /*
+     One request in async mode. It is completed exactly once, by whichever comes first of the code
+     handling it and the timeout; whatever the other one does afterwards is ignored.
+    */
+    public static final class Exchange {
+        // Set in state once the exchange is done; the bits below it count the writes to the response in progress.
+        private static final int DONE = 1 << 30;
+
+        private final AsyncContext context;
+        private final AtomicInteger state = new AtomicInteger();
+        private final GuardedResponse response;
+        // Set once the request was handed to the I/O pool, which then completes it.
+        private volatile boolean resumed;
+
+        Exchange(AsyncContext context) {
+            this.context = context;
+            this.response = new GuardedResponse((HttpServletResponse) context.getResponse(), this);
+        }
+
+        public HttpServletRequest getRequest() {
+            return (HttpServletRequest) context.getRequest();
+        }
+
+        // The response to write to; once the exchange is done, whatever is written to it fails or is dropped.
+        public HttpServletResponse getResponse() {
+            return response;
+        }
+
+        private HttpServletResponse original() {
+            return (HttpServletResponse) context.getResponse();
+        }
+
+        boolean isResumed() {
+            return resumed;
+        }
+
+        boolean isDone() {
+            return (state.get() & DONE) != 0;
+        }
+
+        // Starts a write to the response, or returns false when the exchange is already done.
+        private boolean enter() {
+            while (true) {
+                int current = state.get();
+                if ((current & DONE) != 0) {
+                    return false;
+                }
+                if (state.compareAndSet(current, current + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        // Ends a write; the last one to end after the exchange was marked done completes the request.
+        private void exit() {
+            if (state.decrementAndGet() == DONE) {
+                completeContext();
+            }
+        }
+
+        // Marks the exchange done. Returns the number of writes still in progress, or -1 when it was already done.
+        private int finish() {
+            while (true) {
+                int current = state.get();
+                if ((current & DONE) != 0) {
+                    return -1;
+                }
+                if (state.compareAndSet(current, current | DONE)) {
+                    return current;
+                }
+            }
+        }
+
+        private void completeContext() {
+            try {
+                context.complete();
+            } catch (IllegalStateException e) {
+                // Jetty already ended the request, after its own timeout handling.
+            }
+        }
+
+        // Sends an error status, unless the request was already completed or its response started.
+        public void fail(int status) {
+            if (enter()) {
+                try {
+                    writeStatus(original(), status, HttpStatus.getMessage(status));
+                } finally {
+                    exit();
+                }
+            }
+        }
+
+        public void complete() {
+            if (finish() == 0) {
+                completeContext();
+            }
+        }
+    }
+
+    /*
+     The response handed to the handler. Every call that changes the response counts as a write of the
+     exchange and does nothing once the exchange is done (writes throw an IOException), so late writes cannot
+     interleave with the timeout's 503 or touch the response after Jetty has recycled it.
+    */
+    private static final class GuardedResponse extends HttpServletResponseWrapper {
+        private final Exchange exchange;
+        private ServletOutputStream outputStream;
+        private PrintWriter writer;
+
+        GuardedResponse(HttpServletResponse response, Exchange exchange) {
+            super(response);
+            this.exchange = exchange;
+        }
+
+        private interface Change {
+            void apply() throws IOException;
+        }
+
+        private void guarded(Change change) throws IOException {
+            if (!exchange.enter()) {
+                throw new IOException("The request was already completed");
+            }
+            try {
+                change.apply();
+            } finally {
+                exchange.exit();
+            }
+        }
+
+        // For the header changes, which cannot throw: once the exchange is done they are just dropped.
+        private void guardedQuietly(Runnable change) {
+            if (exchange.enter()) {
+                try {
+                    change.run();
+                } finally {
+                    exchange.exit();
+                }
+            }
+        }
+
+        @Override
+        public synchronized ServletOutputStream getOutputStream() throws IOException {
+            if (outputStream == null) {
+                if (exchange.isDone()) {
+                    throw new IOException("The request was already completed");
+                }
+                outputStream = new GuardedOutputStream(super.getOutputStream(), this);
+            }
+            return outputStream;
+        }
+
+        @Override
+        public synchronized PrintWriter getWriter() throws IOException {
+            if (writer == null) {
+                if (exchange.isDone()) {
+                    throw new IOException("The request was already completed");
+                }
+                writer = new PrintWriter(new GuardedWriter(super.getWriter(), this));
+            }
+            return writer;
+        }
+
+        // Written directly, see the class comment, and committed as sendError would.
+        @Override
+        public void sendError(int sc, String msg) throws IOException {
+            guarded(() -> {
+                writeStatus((HttpServletResponse) getResponse(), sc, msg != null ? msg : HttpStatus.getMessage(sc));
+                getResponse().flushBuffer();
+            });
+        }
+
+        @Override
+        public void sendError(int sc) throws IOException {
+            sendError(sc, null);
+        }
+
+        @Override
+        public void sendRedirect(String location) throws IOException {
+            guarded(() -> super.sendRedirect(location));
+        }
+
+        @Override
+        public void flushBuffer() throws IOException {
+            guarded(super::flushBuffer);
+        }
+
+        @Override
+        public void setStatus(int sc) {
+            guardedQuietly(() -> super.setStatus(sc));
+        }
+
+        @Override
+        public void setHeader(String name, String value) {
+            guardedQuietly(() -> super.setHeader(name, value));
+        }
+
+        @Override
+        public void addHeader(String name, String value) {
+            guardedQuietly(() -> super.addHeader(name, value));
+        }
+
+        @Override
+        public void setIntHeader(String name, int value) {
+            guardedQuietly(() -> super.setIntHeader(name, value));
+        }
+
+        @Override
+        public void addIntHeader(String name, int value) {
+            guardedQuietly(() -> super.addIntHeader(name, value));
+        }
+
+        @Override
+        public void setDateHeader(String name, long date) {
+            guardedQuietly(() -> super.setDateHeader(name, date));
+        }
+
+        @Override
+        public void addDateHeader(String name, long date) {
+            guardedQuietly(() -> super.addDateHeader(name, date));
+        }
+
+        @Override
+        public void setContentType(String type) {
+            guardedQuietly(() -> super.setContentType(type));
+        }
+
+        @Override
+        public void setCharacterEncoding(String charset) {
+            guardedQuietly(() -> super.setCharacterEncoding(charset));
+        }
+
+        @Override
+        public void setContentLength(int len) {
+            guardedQuietly(() -> super.setContentLength(len));
+        }
+
+        @Override
+        public void setContentLengthLong(long len) {
+            guardedQuietly(() -> super.setContentLengthLong(len));
+        }
+
+        @Override
+        public void setBufferSize(int size) {
+            guardedQuietly(() -> super.setBufferSize(size));
+        }
+
+        @Override
+        public void resetBuffer() {
+            guardedQuietly(super::resetBuffer);
+        }
+
+        @Override
+        public void reset() {
+            guardedQuietly(super::reset);
+        }
+    }
+
+    /*
+     Sends the buffer with Jetty's HttpOutput.sendContent, which hands it to the connector without copying,
+     also through a guarded response. Returns false when the stream is not Jetty's and the caller has to
+     copy the bytes itself.
+    */
+    public static boolean sendContent(ServletOutputStream out, ByteBuffer content) throws IOException {
+        if (out instanceof GuardedOutputStream) {
+            GuardedOutputStream guarded = (GuardedOutputStream) out;
+            if (!(guarded.out instanceof HttpOutput)) {
+                return false;
+            }
+            guarded.response.guarded(() -> ((HttpOutput) guarded.out).sendContent(content));
+            return true;
+        }
+        if (out instanceof HttpOutput) {
+            ((HttpOutput) out).sendContent(content);
+            return true;
+        }
+        return false;
+    }
+
+    // The response's output stream, whose writes are guarded like the rest of GuardedResponse.
+    private static final class GuardedOutputStream extends ServletOutputStream {
+        private final ServletOutputStream out;
+        private final GuardedResponse response;
+
+        GuardedOutputStream(ServletOutputStream out, GuardedResponse response) {
+            this.out = out;
+            this.response = response;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            response.guarded(() -> out.write(b));
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            response.guarded(() -> out.write(b, off, len));
+        }
+
+        @Override
+        public void flush() throws IOException {
+            response.guarded(out::flush);
+        }
+
+        @Override
+        public void close() throws IOException {
+            response.guarded(out::close);
+        }
+
+        @Override
+        public boolean isReady() {
+            return out.isReady();
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+            out.setWriteListener(writeListener);
+        }
+    }
+
+    // The response's writer, whose writes are guarded like the rest of GuardedResponse.
+    private static final class GuardedWriter extends Writer {
+        private final PrintWriter out;
+        private final GuardedResponse response;
+
+        GuardedWriter(PrintWriter out, GuardedResponse response) {
+            this.out = out;
+            this.response = response;
+        }
+
+        @Override
+        public void write(char[] buffer, int off, int len) throws IOException {
+            response.guarded(() -> out.write(buffer, off, len));
+        }
+
+        @Override
+        public void write(String text, int off, int len) throws IOException {
+            response.guarded(() -> out.write(text, off, len));
+        }
+
+        @Override
+        public void flush() throws IOException {
+            response.guarded(out::flush);
+        }
+
+        @Override
+        public void close() throws IOException {
+            response.guarded(out::close);
+        }
+    }
+}
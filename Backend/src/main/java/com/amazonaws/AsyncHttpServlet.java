@@ -0,0 +1,25 @@
+/*
+This class, is the base of the servlets whose requests block on DynamoDB or S3. Each request is handed to the
+AsyncDispatcher, which runs the servlet's usual doGet/doPost on its I/O pool instead of on a Jetty thread, so
+the servlets themselves are written exactly as blocking servlets. Their SDK calls still block, only on an I/O pool
+thread instead of a Jetty one, so the I/O pool size caps how many of these requests run at once. The busiest
+servlets do not use it: they call the AmazonDynamoDBAsync client themselves, see AsyncDispatcher.
+*/
+
+package com.amazonaws;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+public abstract class AsyncHttpServlet extends HttpServlet {
+
+    private final AsyncDispatcher dispatcher = AsyncDispatcher.getInstance();
+
+    @Override
+    protected void service(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        dispatcher.dispatch(req, resp, super::service);
+    }
+}
@@ -0,0 +1,161 @@
+/*
+This servlet, subscribes a user to (or unsubscribes them from) many songs in one POST request, for example a
+whole album at once or clearing their list. The request carries the user's email and an "actions" array, where
+every action has the same fields a single /subscribe request has (title, artist, album, year, an optional
+song_id and "action"). All actions are written with SubscriptionBatchWriter, 25 per BatchWriteItem call, or
+appended to the SubscriptionWriteBehind journal in one go when write-behind mode is on, and the response holds one outcome per action in the order they were sent.
+*/
+
+package com.amazonaws;
+
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Scanner;
+
+public class BatchSubscribeServlet extends AsyncHttpServlet {
+
+    private final DynamoDB dynamoDB = DynamoDBManager.getDynamoDB();
+    private final SubscriptionBatchWriter writer = new SubscriptionBatchWriter(dynamoDB, "subscriptions");
+    private final SubscriptionCache cache = SubscriptionCache.getInstance();
+    private final SubscriptionWriteBehind writeBehind = SubscriptionWriteBehind.getInstance();
+
+    // Upper bound on the number of actions in one request, -Dsubscriptions.batch.max to change it.
+    private static final int MAX_ACTIONS = Integer.getInteger("subscriptions.batch.max", 1000);
+
+    @Override
+    public void init() throws ServletException {
+        if (SubscriptionWriteBehind.ENABLED) {
+            try {
+                writeBehind.start(writer);
+            } catch (IOException e) {
+                throw new ServletException("Unable to open the subscription write-behind journal", e);
+            }
+        }
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        // Read the JSON request body
+        Scanner scanner = new Scanner(req.getInputStream()).useDelimiter("\\A");
+        String requestBody = scanner.hasNext() ? scanner.next() : "";
+        scanner.close();
+
+        ObjectMapper objectMapper = new ObjectMapper();
+        JsonNode jsonNode = objectMapper.readTree(requestBody);
+
+        String email = jsonNode.path("email").asText("");
+        JsonNode actions = jsonNode.path("actions");
+        if (email.isEmpty() || !actions.isArray() || actions.size() == 0) {
+            sendError(resp, objectMapper, HttpServletResponse.SC_BAD_REQUEST, "Error: an email and a non-empty \"actions\" array are required.");
+            return;
+        }
+        if (actions.size() > MAX_ACTIONS) {
+            sendError(resp, objectMapper, HttpServletResponse.SC_BAD_REQUEST, "Error: at most " + MAX_ACTIONS + " actions can be sent at once.");
+            return;
+        }
+
+        // Parse every action first, those without a song ID are reported straight away and not written.
+        List<SubscriptionBatchWriter.Write> writes = new ArrayList<>(actions.size());
+        for (JsonNode action : actions) {
+            String title = action.path("title").asText("");
+            String artist = action.path("artist").asText("");
+            String album = action.path("album").asText("");
+            String songId = action.hasNonNull("song_id")
+                    ? action.get("song_id").asText()
+                    : Subscription.generateSongId(title, artist, album);
+            if (songId == null || songId.isEmpty()) {
+                writes.add(null);
+            } else if ("unsubscribe".equals(action.path("action").asText("subscribe"))) {
+                writes.add(SubscriptionBatchWriter.Write.unsubscribe(email, songId));
+            } else {
+                writes.add(SubscriptionBatchWriter.Write.subscribe(new Subscription(
+                        email, songId, title, artist, album, action.path("year").asText(""))));
+            }
+        }
+
+        List<SubscriptionBatchWriter.Write> valid = new ArrayList<>(writes);
+        valid.removeAll(Collections.singleton(null));
+
+        Map<List<String>, String> failures;
+        try {
+            if (SubscriptionWriteBehind.ENABLED) {
+                // Going through the journal keeps these in order with single toggles that are still pending.
+                writeBehind.enqueue(valid);
+                failures = Collections.emptyMap();
+            } else {
+                failures = writer.write(valid);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            sendError(resp, objectMapper, HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Error: the batch was interrupted, please try again.");
+            return;
+        } catch (IOException e) {
+            sendError(resp, objectMapper, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Error saving subscriptions: " + e.getMessage());
+            return;
+        }
+
+        // The cached list is only updated for writes that DynamoDB (or the journal) accepted.
+        for (SubscriptionBatchWriter.Write write : valid) {
+            if (failures.containsKey(write.key())) {
+                continue;
+            }
+            if (write.isSubscribe()) {
+                cache.onSubscribed(write.getSubscription());
+            } else {
+                cache.onUnsubscribed(email, write.getSongId());
+            }
+        }
+
+        ObjectNode response = objectMapper.createObjectNode();
+        ArrayNode results = response.putArray("results");
+        int failed = 0;
+        for (SubscriptionBatchWriter.Write write : writes) {
+            ObjectNode result = results.addObject();
+            String error;
+            if (write == null) {
+                error = "Error: Song does not have an ID.";
+            } else {
+                result.put("song_id", write.getSongId());
+                result.put("action", write.isSubscribe() ? "subscribe" : "unsubscribe");
+                error = failures.get(write.key());
+            }
+            result.put("success", error == null);
+            if (error == null) {
+                result.put("message", write.isSubscribe() ? "Subscribed to " + write.getSubscription().getTitle()
+                        : "Unsubscribed from the song.");
+            } else {
+                result.put("message", error);
+                failed++;
+            }
+        }
+        response.put("success", failed == 0);
+        response.put("message", (writes.size() - failed) + " of " + writes.size() + " actions applied.");
+
+        System.out.println("📦 Batch for " + email + ": " + (writes.size() - failed) + "/" + writes.size() + " applied");
+
+        resp.setContentType("application/json");
+        resp.setCharacterEncoding("UTF-8");
+        objectMapper.writeValue(resp.getWriter(), response);
+    }
+
+    private void sendError(HttpServletResponse resp, ObjectMapper objectMapper, int status, String message) throws IOException {
+        resp.setStatus(status);
+        resp.setContentType("application/json");
+        ObjectNode response = objectMapper.createObjectNode();
+        response.put("success", false);
+        response.put("message", message);
+        objectMapper.writeValue(resp.getWriter(), response);
+    }
+}
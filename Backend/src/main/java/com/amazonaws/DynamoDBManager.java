@@ -1,15 +1,63 @@
+/*
+This class, is the one place the backend gets its AWS clients from. Every servlet used to build its own DynamoDB
+client, each with its own connection pool that had to warm up separately; now there is one DynamoDB client and one
+S3 client for the whole server, so every request reuses the same warm, kept-alive connections.
+
+Both clients share one ClientConfiguration, tuned through system properties:
+  -Daws.max.connections (50)               connections in each client's pool
+  -Daws.tcp.keepalive (true)               TCP keep-alive on pooled connections
+  -Daws.connection.timeout.millis (2000)   time to open a connection
+  -Daws.socket.timeout.millis (10000)      time to wait for data on an open connection
+  -Daws.request.timeout.millis (10000)     time for one HTTP request, retries not included
+  -Daws.connection.ttl.millis (60000)      how long a pooled connection is reused before it is replaced
+  -Daws.max.retries (3)
+-Ddynamodb.endpoint points the DynamoDB client at DynamoDB Local, -Dimage.s3.endpoint the S3 client at a local
+stand-in such as MinIO.
+
+The request paths that matter most (/login, the GetItem and Query searches of /queryMusic, /subscribe and
+/fetchSubscriptions) also go through an AmazonDynamoDBAsync client with the same configuration, whose calls run on
+-Daws.async.threads SDK threads (as many as there are pooled connections by default) and report back to a callback
+instead of blocking the caller. The Music table statistics the search planner uses are read through it as well.
+
+All clients also report SDK request metrics to PoolMetrics, which keeps track of how busy the connection pool is:
+how many connections are leased, and how many requests had to wait for one because the pool was saturated. Both
+DynamoDB clients also run DynamoDBMetrics, which records the latency, consumed capacity and throttles of every call
+by table for the /metrics endpoint (-Dmetrics.enabled=false leaves it out).
+
+Code adapted from the AWS SDK documentation on client configuration and request metrics:
+https://docs.aws.amazon.com/sdk-for-java/v1/developer-guide/section-client-configuration.html
+https://docs.aws.amazon.com/sdk-for-java/v1/developer-guide/generating-sdk-metrics.html
+*/
+
 package com.amazonaws;
 
+import com.amazonaws.auth.profile.ProfileCredentialsProvider;
 import com.amazonaws.client.builder.AwsClientBuilder;
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBAsync;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBAsyncClientBuilder;
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClientBuilder;
 import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class DynamoDBManager {
-    private static final AmazonDynamoDB client = AmazonDynamoDBClientBuilder.standard()
-            .withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(
-                    "https://dynamodb.us-east-1.amazonaws.com", "us-east-1"))
-            .build();
+
+    private static final String REGION = "us-east-1";
+
+    private static final ClientConfiguration configuration = new ClientConfiguration()
+            .withMaxConnections(Integer.getInteger("aws.max.connections", 50))
+            .withTcpKeepAlive(Boolean.parseBoolean(System.getProperty("aws.tcp.keepalive", "true")))
+            .withConnectionTimeout(Integer.getInteger("aws.connection.timeout.millis", 2000))
+            .withSocketTimeout(Integer.getInteger("aws.socket.timeout.millis", 10000))
+            .withRequestTimeout(Integer.getInteger("aws.request.timeout.millis", 10000))
+            .withConnectionTTL(Long.getLong("aws.connection.ttl.millis", 60000))
+            .withMaxErrorRetry(Integer.getInteger("aws.max.retries", 3));
+
+    private static final AmazonDynamoDB client = buildDynamoDB();
 
     private static final DynamoDB dynamoDB = new DynamoDB(client);
 
@@ -17,4 +65,87 @@ public class DynamoDBManager {
     {
         return dynamoDB;
     }
+
+    public static AmazonDynamoDB getClient() {
+        return client;
+    }
+
+    // The S3 client is only built when the first image is requested.
+    public static AmazonS3 getS3() {
+        return S3Holder.S3_CLIENT;
+    }
+
+    // The async client is only built when it is first used.
+    public static AmazonDynamoDBAsync getAsyncClient() {
+        return AsyncHolder.ASYNC_CLIENT;
+    }
+
+    public static ClientConfiguration getClientConfiguration() {
+        return configuration;
+    }
+
+    private static AmazonDynamoDB buildDynamoDB() {
+        AmazonDynamoDBClientBuilder builder = AmazonDynamoDBClientBuilder.standard()
+                .withCredentials(new ProfileCredentialsProvider("default"))
+                .withClientConfiguration(configuration)
+                .withMetricsCollector(PoolMetrics.getInstance().collector("dynamodb"));
+        if (Metrics.ENABLED) {
+            builder.withRequestHandlers(new DynamoDBMetrics());
+        }
+        String endpoint = System.getProperty("dynamodb.endpoint");
+        if (endpoint != null && !endpoint.isEmpty()) {
+            builder.withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(endpoint, REGION));
+        } else {
+            builder.withRegion(REGION);
+        }
+        return builder.build();
+    }
+
+    private static final class AsyncHolder {
+        static final AmazonDynamoDBAsync ASYNC_CLIENT = buildAsync();
+
+        private static AmazonDynamoDBAsync buildAsync() {
+            int threads = Integer.getInteger("aws.async.threads", configuration.getMaxConnections());
+            AtomicInteger threadNumber = new AtomicInteger();
+            AmazonDynamoDBAsyncClientBuilder builder = AmazonDynamoDBAsyncClientBuilder.standard()
+                    .withCredentials(new ProfileCredentialsProvider("default"))
+                    .withClientConfiguration(configuration)
+                    .withMetricsCollector(PoolMetrics.getInstance().collector("dynamodb-async"))
+                    .withExecutorFactory(() -> Executors.newFixedThreadPool(Math.max(threads, 1), runnable -> {
+                        Thread thread = new Thread(runnable, "dynamodb-async-" + threadNumber.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }));
+            if (Metrics.ENABLED) {
+                builder.withRequestHandlers(new DynamoDBMetrics());
+            }
+            String endpoint = System.getProperty("dynamodb.endpoint");
+            if (endpoint != null && !endpoint.isEmpty()) {
+                builder.withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(endpoint, REGION));
+            } else {
+                builder.withRegion(REGION);
+            }
+            return builder.build();
+        }
+    }
+
+    private static final class S3Holder {
+        static final AmazonS3 S3_CLIENT = buildS3();
+
+        private static AmazonS3 buildS3() {
+            AmazonS3ClientBuilder builder = AmazonS3ClientBuilder.standard()
+                    .withCredentials(new ProfileCredentialsProvider("default"))
+                    .withClientConfiguration(configuration)
+                    .withMetricsCollector(PoolMetrics.getInstance().collector("s3"));
+            String endpoint = System.getProperty("image.s3.endpoint");
+            if (endpoint != null && !endpoint.isEmpty()) {
+                // Local stand-ins such as MinIO only understand path-style bucket addressing.
+                builder.withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(endpoint, REGION))
+                        .withPathStyleAccessEnabled(true);
+            } else {
+                builder.withRegion(REGION);
+            }
+            return builder.build();
+        }
+    }
 }
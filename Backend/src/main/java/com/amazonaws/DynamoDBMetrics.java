@@ -0,0 +1,185 @@
+/*
+This class, is a request handler on the backend's DynamoDB clients that records, per table and operation, how long
+each call took (retries included), how much read and write capacity it consumed and how often DynamoDB throttled
+it, for the /metrics endpoint.
+
+DynamoDB only reports consumed capacity when it is asked to, so the handler sets ReturnConsumedCapacity to TOTAL on
+every request that has not set it itself; that only adds a few bytes to each response. -Dmetrics.dynamodb.capacity
+=false leaves the requests as they are, and then no capacity is recorded.
+
+A throttled attempt (ProvisionedThroughputExceededException and the like) is counted even when the SDK's retry
+then succeeds, because that is exactly when the table is running at its limit.
+
+Code adapted from the AWS SDK documentation on request handlers:
+https://docs.aws.amazon.com/AWSJavaSDK/latest/javadoc/com/amazonaws/handlers/RequestHandler2.html
+*/
+
+package com.amazonaws;
+
+import com.amazonaws.handlers.HandlerAfterAttemptContext;
+import com.amazonaws.handlers.HandlerContextKey;
+import com.amazonaws.handlers.RequestHandler2;
+import com.amazonaws.retry.RetryUtils;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemResult;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemResult;
+import com.amazonaws.services.dynamodbv2.model.ConsumedCapacity;
+import com.amazonaws.services.dynamodbv2.model.DeleteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.DeleteItemResult;
+import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.GetItemResult;
+import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
+import com.amazonaws.services.dynamodbv2.model.PutItemResult;
+import com.amazonaws.services.dynamodbv2.model.QueryRequest;
+import com.amazonaws.services.dynamodbv2.model.QueryResult;
+import com.amazonaws.services.dynamodbv2.model.ReturnConsumedCapacity;
+import com.amazonaws.services.dynamodbv2.model.ScanRequest;
+import com.amazonaws.services.dynamodbv2.model.ScanResult;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemRequest;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemResult;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+public class DynamoDBMetrics extends RequestHandler2 {
+
+    private static final boolean CAPACITY = Boolean.parseBoolean(System.getProperty("metrics.dynamodb.capacity", "true"));
+
+    private static final HandlerContextKey<Long> START = new HandlerContextKey<>("metrics.start");
+
+    private final Metrics metrics = Metrics.getInstance();
+
+    @Override
+    public AmazonWebServiceRequest beforeExecution(AmazonWebServiceRequest request) {
+        if (!CAPACITY) {
+            return request;
+        }
+        if (request instanceof GetItemRequest && ((GetItemRequest) request).getReturnConsumedCapacity() == null) {
+            ((GetItemRequest) request).setReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+        } else if (request instanceof PutItemRequest && ((PutItemRequest) request).getReturnConsumedCapacity() == null) {
+            ((PutItemRequest) request).setReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+        } else if (request instanceof UpdateItemRequest && ((UpdateItemRequest) request).getReturnConsumedCapacity() == null) {
+            ((UpdateItemRequest) request).setReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+        } else if (request instanceof DeleteItemRequest && ((DeleteItemRequest) request).getReturnConsumedCapacity() == null) {
+            ((DeleteItemRequest) request).setReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+        } else if (request instanceof QueryRequest && ((QueryRequest) request).getReturnConsumedCapacity() == null) {
+            ((QueryRequest) request).setReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+        } else if (request instanceof ScanRequest && ((ScanRequest) request).getReturnConsumedCapacity() == null) {
+            ((ScanRequest) request).setReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+        } else if (request instanceof BatchGetItemRequest && ((BatchGetItemRequest) request).getReturnConsumedCapacity() == null) {
+            ((BatchGetItemRequest) request).setReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+        } else if (request instanceof BatchWriteItemRequest && ((BatchWriteItemRequest) request).getReturnConsumedCapacity() == null) {
+            ((BatchWriteItemRequest) request).setReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+        }
+        return request;
+    }
+
+    @Override
+    public void beforeRequest(Request<?> request) {
+        request.addHandlerContext(START, System.nanoTime());
+    }
+
+    @Override
+    public void afterAttempt(HandlerAfterAttemptContext context) {
+        Exception exception = context.getException();
+        if (exception instanceof SdkBaseException && RetryUtils.isThrottlingException((SdkBaseException) exception)) {
+            metrics.counter("dynamodb_throttles_total", "DynamoDB attempts rejected by throttling, retried or not",
+                    "table", table(context.getRequest().getOriginalRequest())).increment();
+        }
+    }
+
+    @Override
+    public void afterResponse(Request<?> request, Response<?> response) {
+        record(request, false);
+        if (response == null) {
+            return;
+        }
+        for (ConsumedCapacity capacity : consumedCapacity(response.getAwsResponse())) {
+            if (capacity != null && capacity.getCapacityUnits() != null) {
+                String table = capacity.getTableName() != null ? capacity.getTableName() : table(request.getOriginalRequest());
+                metrics.counter("dynamodb_consumed_capacity_units_total", "Capacity units consumed, by table and operation",
+                        "table", table, "operation", operation(request)).add(capacity.getCapacityUnits());
+            }
+        }
+    }
+
+    @Override
+    public void afterError(Request<?> request, Response<?> response, Exception e) {
+        record(request, true);
+    }
+
+    private void record(Request<?> request, boolean failed) {
+        String table = table(request.getOriginalRequest());
+        String operation = operation(request);
+        Long start = request.getHandlerContext(START);
+        if (start != null) {
+            metrics.histogram("dynamodb_request_duration_seconds", "Time of a DynamoDB call with its retries, by table and operation",
+                    "table", table, "operation", operation).recordSince(start);
+        }
+        if (failed) {
+            metrics.counter("dynamodb_request_errors_total", "DynamoDB calls that failed after their retries, by table and operation",
+                    "table", table, "operation", operation).increment();
+        }
+    }
+
+    private static String operation(Request<?> request) {
+        String operation = request.getHandlerContext(HandlerContextKey.OPERATION_NAME);
+        if (operation != null) {
+            return operation;
+        }
+        String requestClass = request.getOriginalRequest().getClass().getSimpleName();
+        return requestClass.endsWith("Request") ? requestClass.substring(0, requestClass.length() - "Request".length()) : requestClass;
+    }
+
+    // The table the request is for; a batch over several tables is labelled "batch".
+    private static String table(AmazonWebServiceRequest request) {
+        if (request instanceof GetItemRequest) {
+            return ((GetItemRequest) request).getTableName();
+        } else if (request instanceof PutItemRequest) {
+            return ((PutItemRequest) request).getTableName();
+        } else if (request instanceof UpdateItemRequest) {
+            return ((UpdateItemRequest) request).getTableName();
+        } else if (request instanceof DeleteItemRequest) {
+            return ((DeleteItemRequest) request).getTableName();
+        } else if (request instanceof QueryRequest) {
+            return ((QueryRequest) request).getTableName();
+        } else if (request instanceof ScanRequest) {
+            return ((ScanRequest) request).getTableName();
+        } else if (request instanceof BatchGetItemRequest) {
+            return batchTable(((BatchGetItemRequest) request).getRequestItems());
+        } else if (request instanceof BatchWriteItemRequest) {
+            return batchTable(((BatchWriteItemRequest) request).getRequestItems());
+        }
+        return "";
+    }
+
+    private static String batchTable(Map<String, ?> requestItems) {
+        if (requestItems == null || requestItems.isEmpty()) {
+            return "";
+        }
+        return requestItems.size() == 1 ? requestItems.keySet().iterator().next() : "batch";
+    }
+
+    private static List<ConsumedCapacity> consumedCapacity(Object result) {
+        if (result instanceof GetItemResult) {
+            return Collections.singletonList(((GetItemResult) result).getConsumedCapacity());
+        } else if (result instanceof PutItemResult) {
+            return Collections.singletonList(((PutItemResult) result).getConsumedCapacity());
+        } else if (result instanceof UpdateItemResult) {
+            return Collections.singletonList(((UpdateItemResult) result).getConsumedCapacity());
+        } else if (result instanceof DeleteItemResult) {
+            return Collections.singletonList(((DeleteItemResult) result).getConsumedCapacity());
+        } else if (result instanceof QueryResult) {
+            return Collections.singletonList(((QueryResult) result).getConsumedCapacity());
+        } else if (result instanceof ScanResult) {
+            return Collections.singletonList(((ScanResult) result).getConsumedCapacity());
+        } else if (result instanceof BatchGetItemResult && ((BatchGetItemResult) result).getConsumedCapacity() != null) {
+            return ((BatchGetItemResult) result).getConsumedCapacity();
+        } else if (result instanceof BatchWriteItemResult && ((BatchWriteItemResult) result).getConsumedCapacity() != null) {
+            return ((BatchWriteItemResult) result).getConsumedCapacity();
+        }
+        return Collections.emptyList();
+    }
+}
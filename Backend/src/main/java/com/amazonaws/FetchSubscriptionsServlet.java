@@ -1,9 +1,15 @@
 /*
 This Java servlet retrieves the user's subscription details fro the DynamoDB table called subscriptions.
 After receiving the GET request with an "email" parameter that we've set to be the primary key, it queries
-the table to return the items for that particular email. The same process of returning the JSON response
+the table to return the items for that particular email. Because email is the partition key this is a Query
+that only reads the user's own items, and the result is kept in the per-user SubscriptionCache, so most page
+loads do not touch DynamoDB at all. The same process of returning the JSON response
 is also done here, but this time it contains all of the susbcription information like title, artist,album
-and song_id.
+and song_id. With ?view=enriched every subscription is also joined with its row in the Music table and the
+signed URL of its artist's image at the optional "size" (see SubscriptionEnricher), so the main page needs just this one request.
+A list served from the cache is answered right on the Jetty thread. A Query goes through the AmazonDynamoDBAsync
+client, whose callback answers the request, and only the enriched view, which reads the Music table and signs
+image URLs, runs on AsyncDispatcher's I/O pool.
  */
 
 package com.amazonaws;
@@ -12,24 +18,32 @@ import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.*;
 
-import com.amazonaws.auth.profile.ProfileCredentialsProvider;
-import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
-import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClientBuilder;
+import com.amazonaws.handlers.AsyncHandler;
 import com.amazonaws.services.dynamodbv2.document.*;
-import com.amazonaws.services.dynamodbv2.document.spec.QuerySpec;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.QueryRequest;
+import com.amazonaws.services.dynamodbv2.model.QueryResult;
+import com.fasterxml.jackson.databind.ObjectMapper;
 
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 
 @WebServlet("/fetchSubscriptions")
 public class FetchSubscriptionsServlet extends HttpServlet {
 
     // Name of the DynamoDB table to access which is 'subscriptions' table
     private static final String TABLE_NAME = "subscriptions";
-    private AmazonDynamoDB client;
     private DynamoDB dynamoDB;
     private Table table;
+    private final SubscriptionCache cache = SubscriptionCache.getInstance();
+    private final SubscriptionWriteBehind writeBehind = SubscriptionWriteBehind.getInstance();
+    private SubscriptionEnricher enricher;
+    private final AsyncDispatcher dispatcher = AsyncDispatcher.getInstance();
 
     /*
     Code adapted from AWS Java SDK examples and documentation:
@@ -39,54 +53,166 @@ public class FetchSubscriptionsServlet extends HttpServlet {
     @Override
     public void init() throws ServletException {
 
-        // Creates a DynamoDB client using default profile credentials and the us-east-1 region
-        client = AmazonDynamoDBClientBuilder.standard()
-                .withCredentials(new ProfileCredentialsProvider("default"))
-                .withRegion("us-east-1")
-                .build();
-
-        dynamoDB = new DynamoDB(client);
+        // Uses the DynamoDB client shared by all servlets
+        dynamoDB = DynamoDBManager.getDynamoDB();
 
         // Gets a reference to the "subscriptions" table
         table = dynamoDB.getTable(TABLE_NAME);
+        enricher = new SubscriptionEnricher(dynamoDB);
     }
 
     @Override
     protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
         String email = request.getParameter("email");
         response.setContentType("application/json");
-        PrintWriter out = response.getWriter();
 
         if (email == null || email.isEmpty()) {
+            PrintWriter out = response.getWriter();
             out.print("{\"error\":\"Missing email parameter\"}");
             return;
         }
 
+        boolean enriched = "enriched".equals(request.getParameter("view"));
+        int size = 0;
+        try {
+            size = Integer.parseInt(request.getParameter("size"));
+        } catch (NumberFormatException e) {
+            // No usable size hint, the original images are used.
+        }
+        int imageSize = size;
+
+        /*
+         The frontend sends subscribes and unsubscribes to the API Gateway Lambdas, which this backend never
+         sees, and then reloads with ?fresh=true (Cache-Control: no-cache does the same). The user's cached list
+         is dropped first, so the reload shows the change instead of the list from before it.
+        */
+        String cacheControl = request.getHeader("Cache-Control");
+        if (Boolean.parseBoolean(request.getParameter("fresh"))
+                || (cacheControl != null && cacheControl.contains("no-cache"))) {
+            cache.invalidate(email);
+        }
+
+        List<Subscription> subscriptions = cache.get(email);
+        if (subscriptions != null) {
+            if (enriched) {
+                // The enriched view may read the Music table and sign image URLs, which block, so it runs on the I/O pool.
+                List<Subscription> cached = subscriptions;
+                dispatcher.dispatch(request, response, (req, resp) -> writeEnriched(resp, cached, imageSize));
+            } else {
+                writeList(response, subscriptions);
+            }
+            return;
+        }
+
         /*
-        Code adapted from AWS Java SDK - Scanning a table:
-        https://docs.aws.amazon.com/amazondynamodb/latest/developerguide/Scan.html
+        Code adapted from AWS Java SDK - Querying a table:
+        https://docs.aws.amazon.com/amazondynamodb/latest/developerguide/GettingStarted.Java.03.html
         */
 
+        // Read before the Query, so a subscribe that lands while it runs keeps the result out of the cache.
+        long generation = cache.generation(email);
 
-        ItemCollection<ScanOutcome> items = table.scan(new ScanFilter("email").eq(email));
-        Iterator<Item> iterator = items.iterator();
+        if (!AsyncDispatcher.ENABLED || !request.isAsyncSupported()) {
+            List<Subscription> loaded = new ArrayList<>();
+            ItemCollection<QueryOutcome> items = table.query("email", email);
+            for (Item item : items) {
+                loaded.add(Subscription.fromItem(item));
+            }
+            loaded = cacheLoaded(email, loaded, generation);
+            if (enriched) {
+                writeEnriched(response, loaded, imageSize);
+            } else {
+                writeList(response, loaded);
+            }
+            return;
+        }
 
+        // The Query goes through the async client, and its callback answers the request.
+        AsyncDispatcher.Exchange exchange = dispatcher.begin(request);
+        Map<String, AttributeValue> values = new HashMap<>();
+        values.put(":email", new AttributeValue(email));
+        QueryRequest query = new QueryRequest()
+                .withTableName(TABLE_NAME)
+                .withKeyConditionExpression("email = :email")
+                .withExpressionAttributeValues(values);
+        queryPage(exchange, email, query, new ArrayList<>(), (resp, loaded) -> {
+            List<Subscription> all = cacheLoaded(email, loaded, generation);
+            if (enriched) {
+                dispatcher.resume(exchange, (req, enrichedResp) -> writeEnriched(enrichedResp, all, imageSize));
+            } else {
+                writeList(resp, all);
+            }
+        });
+    }
+
+    // What to do with the user's whole list once every page of the Query has been read.
+    private interface Loaded {
+        void accept(HttpServletResponse resp, List<Subscription> subscriptions) throws IOException;
+    }
+
+    // Reads one page of the user's items through the async client and asks for the next one from its callback.
+    private void queryPage(AsyncDispatcher.Exchange exchange, String email, QueryRequest query,
+                           List<Subscription> subscriptions, Loaded loaded) {
+        DynamoDBManager.getAsyncClient().queryAsync(query, new AsyncHandler<QueryRequest, QueryResult>() {
+            @Override
+            public void onSuccess(QueryRequest sent, QueryResult result) {
+                try {
+                    for (Map<String, AttributeValue> item : result.getItems()) {
+                        subscriptions.add(Subscription.fromItem(ItemUtils.toItem(item)));
+                    }
+                    Map<String, AttributeValue> lastKey = result.getLastEvaluatedKey();
+                    if (lastKey != null && !lastKey.isEmpty()) {
+                        queryPage(exchange, email, query.clone().withExclusiveStartKey(lastKey), subscriptions, loaded);
+                        return;
+                    }
+                } catch (RuntimeException e) {
+                    onError(e);
+                    return;
+                }
+                AsyncDispatcher.respond(exchange, resp -> loaded.accept(resp, subscriptions));
+            }
+
+            @Override
+            public void onError(Exception e) {
+                System.err.println("Unable to query subscriptions of " + email + ": " + e.getMessage());
+                exchange.fail(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                exchange.complete();
+            }
+        });
+    }
+
+    // Adds the writes still pending in write-behind mode and caches the list the Query returned.
+    private List<Subscription> cacheLoaded(String email, List<Subscription> subscriptions, long generation) {
+        if (SubscriptionWriteBehind.ENABLED) {
+            subscriptions = withPendingWrites(email, subscriptions);
+        }
+        cache.put(email, subscriptions, generation);
+        System.out.println("Querying DynamoDB for user: " + email);
+        return subscriptions;
+    }
+
+    private void writeEnriched(HttpServletResponse response, List<Subscription> subscriptions, int size) throws IOException {
+        ObjectMapper objectMapper = new ObjectMapper();
+        response.setCharacterEncoding("UTF-8");
+        PrintWriter out = response.getWriter();
+        objectMapper.writeValue(out, enricher.enrich(subscriptions, size, objectMapper));
+    }
+
+    private void writeList(HttpServletResponse response, List<Subscription> subscriptions) throws IOException {
+        PrintWriter out = response.getWriter();
 
         /*
-           This block scans the DynamoDB table for items matching the given email, then iterates through
-           the results to build a JSON response manually using StringBuilder. For each subscription,
-           it appends the song’s title, artist, album, year, and song_id in JSON format. The loop handles
-           comma placement between JSON objects and ensures the response is correctly formatted before
-           sending it to the client.
+           This block iterates through the user's subscriptions to build a JSON response manually using
+           StringBuilder. For each subscription, it appends the song’s title, artist, album, year, and
+           song_id in JSON format. The loop handles comma placement between JSON objects and ensures the
+           response is correctly formatted before sending it to the client.
         */
 
         StringBuilder jsonBuilder = new StringBuilder();
         jsonBuilder.append("{\"subscriptions\":[");
 
         boolean first = true;
-        while (iterator.hasNext()) {
-            Item item = iterator.next();
-
+        for (Subscription subscription : subscriptions) {
             if (!first) {
                 jsonBuilder.append(",");
             } else {
@@ -94,11 +220,11 @@ public class FetchSubscriptionsServlet extends HttpServlet {
             }
 
             jsonBuilder.append("{")
-                    .append("\"title\":\"").append(item.getString("title")).append("\",")
-                    .append("\"artist\":\"").append(item.getString("artist")).append("\",")
-                    .append("\"album\":\"").append(item.getString("album")).append("\",")
-                    .append("\"year\":\"").append(item.getString("year")).append("\",")
-                    .append("\"song_id\":\"").append(item.getString("song_id")).append("\"")
+                    .append("\"title\":\"").append(subscription.getTitle()).append("\",")
+                    .append("\"artist\":\"").append(subscription.getArtist()).append("\",")
+                    .append("\"album\":\"").append(subscription.getAlbum()).append("\",")
+                    .append("\"year\":\"").append(subscription.getYear()).append("\",")
+                    .append("\"song_id\":\"").append(subscription.getSongId()).append("\"")
                     .append("}");
         }
 
@@ -106,13 +232,21 @@ public class FetchSubscriptionsServlet extends HttpServlet {
 
         out.print(jsonBuilder.toString());
         out.flush();
-        System.out.println("Querying DynamoDB for user: " + email);
     }
 
-    @Override
-    public void destroy() {
-        if (client != null) {
-            client.shutdown();
+    // Lays the user's write-behind writes that are not in the table yet over what the Query returned.
+    private List<Subscription> withPendingWrites(String email, List<Subscription> subscriptions) {
+        Map<String, Subscription> songs = new TreeMap<>();
+        for (Subscription subscription : subscriptions) {
+            songs.put(subscription.getSongId(), subscription);
+        }
+        for (SubscriptionBatchWriter.Write write : writeBehind.pendingFor(email)) {
+            if (write.isSubscribe()) {
+                songs.put(write.getSongId(), write.getSubscription());
+            } else {
+                songs.remove(write.getSongId());
+            }
         }
+        return new ArrayList<>(songs.values());
     }
 }
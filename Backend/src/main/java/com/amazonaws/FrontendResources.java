@@ -0,0 +1,140 @@
+/*
+This class, serves the pages of the Frontend folder from the backend itself, so one Jetty process handles both the
+pages and the API calls they make and no separate Apache is needed in front of it. The folder is taken from
+-Dfrontend.dir ("../Frontend" by default, as the server is started from the Backend folder) and login.html is the start page.
+
+The files are served by Jetty's DefaultServlet, which answers with an ETag and a Last-Modified header and sends an
+empty 304 when the browser's copy is still current. Before the server starts, every html, css and js file is
+gzipped next to itself (login.html.gz) whenever the .gz is missing or older, and DefaultServlet sends the .gz to any
+browser that accepts gzip, so static pages are compressed once instead of on every request.
+
+Pages are sent with "Cache-Control: no-cache", which makes browsers revalidate them every time (a 304 when nothing
+changed), so a new version of a page is picked up straight away. Versioned assets, whose name carries a content hash
+such as app.3f2a9c1b.js, or whose URL has a ?v= parameter, never change under the same URL and are marked immutable
+for a year instead.
+
+Code adapted from the Jetty documentation on DefaultServlet:
+https://www.eclipse.org/jetty/javadoc/jetty-9/org/eclipse/jetty/servlet/DefaultServlet.html
+*/
+
+package com.amazonaws;
+
+import org.eclipse.jetty.servlet.DefaultServlet;
+import org.eclipse.jetty.servlet.FilterHolder;
+import org.eclipse.jetty.servlet.FilterMapping;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+
+import javax.servlet.DispatcherType;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.EnumSet;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+public class FrontendResources {
+
+    private static final String SERVLET_NAME = "frontend";
+
+    // File names with a content hash of 8 or more hex digits before the extension.
+    private static final Pattern VERSIONED = Pattern.compile(".*[.-][0-9a-fA-F]{8,}\\.[a-zA-Z0-9]+$");
+
+    private static final String IMMUTABLE = "public, max-age=31536000, immutable";
+    private static final String REVALIDATE = "no-cache";
+
+    /*
+     Maps DefaultServlet on "/" of the context, behind the API servlets which keep their own paths, and
+     puts the cache filter in front of it only. Returns false when there is no frontend folder.
+    */
+    public static boolean install(ServletContextHandler context) {
+        Path directory = Paths.get(System.getProperty("frontend.dir", "../Frontend")).toAbsolutePath().normalize();
+        if (!Files.isDirectory(directory)) {
+            System.out.println("No frontend at " + directory + ", only the API is served");
+            return false;
+        }
+        precompress(directory);
+
+        context.setResourceBase(directory.toString());
+        context.setWelcomeFiles(new String[]{"login.html"});
+
+        ServletHolder holder = new ServletHolder(SERVLET_NAME, DefaultServlet.class);
+        holder.setInitParameter("dirAllowed", "false");
+        holder.setInitParameter("etags", "true");
+        holder.setInitParameter("precompressed", "gzip=.gz");
+        holder.setAsyncSupported(true);
+        context.addServlet(holder, "/");
+
+        FilterHolder cache = new FilterHolder(new CacheHeaderFilter());
+        cache.setName("frontend-cache");
+        cache.setAsyncSupported(true);
+        FilterMapping mapping = new FilterMapping();
+        mapping.setFilterName(cache.getName());
+        mapping.setServletName(SERVLET_NAME);
+        mapping.setDispatcherTypes(EnumSet.of(DispatcherType.REQUEST));
+        context.getServletHandler().addFilter(cache, mapping);
+
+        System.out.println("🌐 Serving the frontend from " + directory);
+        return true;
+    }
+
+    // Writes a .gz next to every text file that has none yet, or an older one.
+    static void precompress(Path directory) {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.{html,css,js,svg,json}")) {
+            for (Path file : files) {
+                Path gzipped = file.resolveSibling(file.getFileName() + ".gz");
+                if (Files.exists(gzipped)
+                        && Files.getLastModifiedTime(gzipped).compareTo(Files.getLastModifiedTime(file)) >= 0) {
+                    continue;
+                }
+                Path temporary = file.resolveSibling(file.getFileName() + ".gz.tmp");
+                try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(temporary)) {
+                    {
+                        def.setLevel(Deflater.BEST_COMPRESSION);
+                    }
+                }) {
+                    Files.copy(file, out);
+                }
+                Files.move(temporary, gzipped, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+        } catch (IOException e) {
+            // Without the .gz files the pages are still served, just uncompressed.
+            System.err.println("Unable to precompress the frontend: " + e.getMessage());
+        }
+    }
+
+    // Sets the Cache-Control header of a static file, see the comment at the top.
+    static final class CacheHeaderFilter implements Filter {
+        @Override
+        public void init(FilterConfig filterConfig) {
+        }
+
+        @Override
+        public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+                throws IOException, ServletException {
+            HttpServletRequest httpReq = (HttpServletRequest) request;
+            String query = httpReq.getQueryString();
+            boolean versioned = VERSIONED.matcher(httpReq.getRequestURI()).matches()
+                    || (query != null && (query.startsWith("v=") || query.contains("&v=")));
+            ((HttpServletResponse) response).setHeader("Cache-Control", versioned ? IMMUTABLE : REVALIDATE);
+            chain.doFilter(request, response);
+        }
+
+        @Override
+        public void destroy() {
+        }
+    }
+}
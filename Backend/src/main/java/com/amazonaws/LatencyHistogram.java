@@ -0,0 +1,115 @@
+/*
+This class records latencies in the way HdrHistogram does, with buckets whose width grows with the value: every
+power of two is split into 32 equal buckets, so any recorded latency is known to within about 3% whatever its size,
+from a microsecond up to hours, in a fixed array of about a thousand counters. Recording only increments one
+counter of an AtomicLongArray and two LongAdders, so the servlets and the SDK threads never wait on a lock to
+record, and reading the percentiles (p50, p99, p999) just walks the counters.
+
+The figures cover everything recorded since the server started, which is what a Prometheus summary reports.
+
+Code adapted from the HdrHistogram documentation on its bucket layout:
+https://github.com/HdrHistogram/HdrHistogram
+*/
+
+package com.amazonaws;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+public class LatencyHistogram {
+
+    // Buckets per power of two are 2^SUB_BITS.
+    private static final int SUB_BITS = 5;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+
+    // Latencies are recorded in microseconds and capped at 2^36 of them, about 19 hours.
+    private static final int MAX_EXPONENT = 36;
+    private static final long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+    private static final int BUCKETS = SUB_COUNT + (MAX_EXPONENT - SUB_BITS + 1) * SUB_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalMicros = new LongAdder();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    public void record(long duration, TimeUnit unit) {
+        long micros = Math.min(Math.max(unit.toMicros(duration), 0), MAX_VALUE);
+        counts.incrementAndGet(bucket(micros));
+        count.increment();
+        totalMicros.add(micros);
+        if (micros > maxMicros.get()) {
+            maxMicros.accumulateAndGet(micros, Math::max);
+        }
+    }
+
+    // Records the time since start, a System.nanoTime() reading.
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /*
+     Values below 32 get a bucket each. Above that, the position of the highest bit picks the power of two
+     and the next SUB_BITS bits pick one of its 32 buckets.
+    */
+    static int bucket(long micros) {
+        if (micros < SUB_COUNT) {
+            return (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int shift = exponent - SUB_BITS;
+        int sub = (int) (micros >>> shift) & (SUB_COUNT - 1);
+        return SUB_COUNT + shift * SUB_COUNT + sub;
+    }
+
+    // The highest value that falls into the bucket.
+    static long highestValue(int bucket) {
+        if (bucket < SUB_COUNT) {
+            return bucket;
+        }
+        int shift = (bucket - SUB_COUNT) / SUB_COUNT;
+        int sub = (bucket - SUB_COUNT) % SUB_COUNT;
+        return ((long) (SUB_COUNT + sub) << shift) + (1L << shift) - 1;
+    }
+
+    // The latency in microseconds below which the given fraction (0.99 for p99) of the recorded ones fall.
+    public long percentile(double fraction) {
+        long total = 0;
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(fraction * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(highestValue(i), maxMicros.get());
+            }
+        }
+        return maxMicros.get();
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getTotalMicros() {
+        return totalMicros.sum();
+    }
+
+    public long getMaxMicros() {
+        return maxMicros.get();
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + getCount() + ", p50=" + percentile(0.5) + "us, p99=" + percentile(0.99) + "us, p999="
+                + percentile(0.999) + "us, max=" + maxMicros.get() + "us";
+    }
+}
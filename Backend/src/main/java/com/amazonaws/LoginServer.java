@@ -1,71 +1,136 @@
 /*
-This class sets up and runs a Jetty HTTP server on port 8080. It configures various servlets
+This class sets up and runs a Jetty HTTP server on port 8080 (-Dhttp.port). It configures various servlets
 for handling different API endpoints, including login, registration, querying music, subscribing/unsubscribing,
 fetching artist images, and retrieving user subscriptions. It also includes a CORS filter to handle
 cross-origin requests. The LoginServlet within this class handles user authentication by verifying provided
 email and password against the "Login" DynamoDB table.
+
+The same server also serves the pages of the Frontend folder (see FrontendResources), so no separate Apache is
+needed. Responses of 1 KB or more (-Dhttp.gzip.min.bytes) are gzipped for clients that accept it, which shrinks the
+JSON of broad searches considerably, and the connector speaks HTTP/2 in cleartext (h2c, -Dhttp.h2c) next to
+HTTP/1.1: browsers only use HTTP/2 over TLS, which is terminated in front of this server if at all, but h2c clients
+and proxies get one multiplexed connection instead of several.
+
+Request counts, errors and latency percentiles of every servlet, of every DynamoDB table and of the S3 URL signing
+are served on /metrics in the Prometheus text format (see Metrics), unless -Dmetrics.enabled=false.
 */
 
 package com.amazonaws;
 
-import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
-import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClientBuilder;
 import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+import com.amazonaws.handlers.AsyncHandler;
 import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.ItemUtils;
 import com.amazonaws.services.dynamodbv2.document.Table;
 import com.amazonaws.services.dynamodbv2.document.spec.GetItemSpec;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.GetItemResult;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import org.eclipse.jetty.http2.server.HTTP2CServerConnectionFactory;
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.HttpConnectionFactory;
 import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.gzip.GzipHandler;
 import org.eclipse.jetty.servlet.FilterHolder;
-import org.eclipse.jetty.servlet.ServletHandler;
+import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
-import com.amazonaws.auth.profile.ProfileCredentialsProvider;
 
+import javax.servlet.DispatcherType;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.Collections;
+import java.util.EnumSet;
 import java.util.Scanner;
 
 public class LoginServer {
 
     // Entry point for the server
     public static void main(String[] args) throws Exception {
+        int port = Integer.getInteger("http.port", 8080);
+
         // Creates a Jetty HTTP server instance on port 8080 (standard web server port).
-        Server server = new Server(8080);
-        ServletHandler handler = new ServletHandler();
-        server.setHandler(handler);
+        Server server = new Server();
+        HttpConfiguration httpConfig = new HttpConfiguration();
+        httpConfig.setSendServerVersion(false);
+        ServerConnector connector;
+        if (Boolean.parseBoolean(System.getProperty("http.h2c", "true"))) {
+            // HTTP/1.1 and cleartext HTTP/2 on the same port, told apart by the first bytes of the connection.
+            connector = new ServerConnector(server, new HttpConnectionFactory(httpConfig),
+                    new HTTP2CServerConnectionFactory(httpConfig));
+        } else {
+            connector = new ServerConnector(server, new HttpConnectionFactory(httpConfig));
+        }
+        connector.setPort(port);
+        server.addConnector(connector);
 
-        // Adds a CORS filter to allow cross-origin requests (for frontend to communicate with backend).
-        handler.addFilterWithMapping(new FilterHolder(new CORSFilter()), "/*", null);
+        ServletContextHandler handler = new ServletContextHandler(ServletContextHandler.NO_SESSIONS);
+        handler.setContextPath("/");
 
+        // Gzips the pages and JSON responses on the fly; the pages' precompressed .gz files are sent as they are.
+        GzipHandler gzipHandler = new GzipHandler();
+        gzipHandler.setMinGzipSize(Integer.getInteger("http.gzip.min.bytes", 1024));
+        gzipHandler.setIncludedMethods("GET", "POST");
+        gzipHandler.setIncludedMimeTypes("text/html", "text/css", "application/javascript", "text/javascript",
+                "application/json", "image/svg+xml");
+        gzipHandler.setHandler(handler);
+        server.setHandler(gzipHandler);
 
-        handler.addServletWithMapping(new ServletHolder(new LoginServlet()), "/login");
-        handler.addServletWithMapping(new ServletHolder(new RegisterServlet()), "/Register");
-        handler.addServletWithMapping(new ServletHolder(new QueryMusicServlet()), "/queryMusic");
-        handler.addServletWithMapping(new ServletHolder(new SubscribeServlet()), "/subscribe");
-        handler.addServletWithMapping(new ServletHolder(new ArtistImageServlet()), "/artistImage");
-        handler.addServletWithMapping(new ServletHolder(new FetchSubscriptionsServlet()), "/fetchSubscriptions");
+        // Adds a CORS filter to allow cross-origin requests (for frontend to communicate with backend).
+        // Every filter and servlet on the way must support async processing for AsyncDispatcher to use it.
+        FilterHolder corsHolder = new FilterHolder(new CORSFilter());
+        corsHolder.setAsyncSupported(true);
+        handler.addFilter(corsHolder, "/*", EnumSet.of(DispatcherType.REQUEST, DispatcherType.ASYNC));
+
+
+        handler.addServlet(asyncHolder(new LoginServlet()), "/login");
+        handler.addServlet(asyncHolder(new RegisterServlet()), "/Register");
+        // Initialised at startup rather than on the first search so the catalog index is loaded up front.
+        ServletHolder queryMusicHolder = asyncHolder(new QueryMusicServlet());
+        queryMusicHolder.setInitOrder(0);
+        handler.addServlet(queryMusicHolder, "/queryMusic");
+        // Also initialised at startup, so a write-behind journal left by a crash is replayed straight away.
+        ServletHolder subscribeHolder = asyncHolder(new SubscribeServlet());
+        subscribeHolder.setInitOrder(0);
+        handler.addServlet(subscribeHolder, "/subscribe");
+        handler.addServlet(asyncHolder(new BatchSubscribeServlet()), "/subscribe/batch");
+        handler.addServlet(asyncHolder(new ArtistImageServlet()), "/artistImage");
+        handler.addServlet(asyncHolder(new ArtistImageProxyServlet()), "/images/*");
+        handler.addServlet(asyncHolder(new FetchSubscriptionsServlet()), "/fetchSubscriptions");
+
+        // Everything else is a page of the frontend.
+        FrontendResources.install(handler);
+
+        // Times every servlet added above, and serves the figures on /metrics for Prometheus.
+        if (Metrics.ENABLED) {
+            MetricsFilter.install(handler);
+            handler.addServlet(new ServletHolder(new MetricsServlet()), "/metrics");
+        }
 
 
         server.start();
-        System.out.println("✅ Server started on port 8080");
+        System.out.println("✅ Server started on port " + port);
         server.join();
     }
 
+    private static ServletHolder asyncHolder(HttpServlet servlet) {
+        ServletHolder holder = new ServletHolder(servlet);
+        holder.setAsyncSupported(true);
+        return holder;
+    }
+
 
     public static class LoginServlet extends HttpServlet {
 
-        private final AmazonDynamoDB client = AmazonDynamoDBClientBuilder.standard()
-                .withCredentials(new ProfileCredentialsProvider("default"))  // use local creds
-                .withRegion("us-east-1")
-                .build();
-
-        private final DynamoDB dynamoDB = new DynamoDB(client);
+        private final DynamoDB dynamoDB = DynamoDBManager.getDynamoDB();
         private final Table table = dynamoDB.getTable("Login"); // DynamoDB table name
+        private final AsyncDispatcher dispatcher = AsyncDispatcher.getInstance();
 
 
         /*
@@ -92,9 +157,43 @@ public class LoginServer {
             System.out.println("🔐 Login attempt by: " + email);
 
 
-            GetItemSpec spec = new GetItemSpec().withPrimaryKey("email", email);
-            Item item = table.getItem(spec);
+            if (!AsyncDispatcher.ENABLED || !req.isAsyncSupported()) {
+                GetItemSpec spec = new GetItemSpec().withPrimaryKey("email", email);
+                writeResult(resp, table.getItem(spec), email, password);
+                return;
+            }
+
+            /*
+             In async mode the lookup goes through the AmazonDynamoDBAsync client: this Jetty thread is released
+             as soon as the request is handed to the SDK, and the callback writes the response and completes it.
+            */
+            AsyncDispatcher.Exchange exchange = dispatcher.begin(req);
+            GetItemRequest request = new GetItemRequest()
+                    .withTableName("Login")
+                    .withKey(Collections.singletonMap("email", new AttributeValue(email)));
+            DynamoDBManager.getAsyncClient().getItemAsync(request, new AsyncHandler<GetItemRequest, GetItemResult>() {
+                @Override
+                public void onSuccess(GetItemRequest request, GetItemResult result) {
+                    try {
+                        Item item = result.getItem() == null ? null : ItemUtils.toItem(result.getItem());
+                        writeResult(exchange.getResponse(), item, email, password);
+                    } catch (IOException | RuntimeException e) {
+                        exchange.fail(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                    } finally {
+                        exchange.complete();
+                    }
+                }
+
+                @Override
+                public void onError(Exception e) {
+                    System.err.println("Unable to look up " + email + ": " + e.getMessage());
+                    exchange.fail(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                    exchange.complete();
+                }
+            });
+        }
 
+        private void writeResult(HttpServletResponse resp, Item item, String email, String password) throws IOException {
             resp.setContentType("application/json");
             PrintWriter out = resp.getWriter();
 
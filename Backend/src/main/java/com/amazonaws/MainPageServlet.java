@@ -7,14 +7,11 @@ And sends the list of songs back in a format that web browsers understand (like
 
 package com.amazonaws;
 
-import com.amazonaws.auth.profile.ProfileCredentialsProvider;
 import com.amazonaws.services.dynamodbv2.document.DynamoDB;
 import com.amazonaws.services.dynamodbv2.document.Table;
 import com.amazonaws.services.dynamodbv2.document.Item;
 import com.amazonaws.services.dynamodbv2.document.ItemCollection;
 import com.amazonaws.services.dynamodbv2.document.QueryOutcome;
-import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
-import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClientBuilder;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
@@ -30,25 +27,8 @@ import java.util.Iterator;
 
 public class MainPageServlet extends HttpServlet {
 
-    /*
-      AWS SDK for Java documentation for creating a DynamoDB client:
-      https://docs.aws.amazon.com/sdk-for-java/v1/developer-guide/java-dg-dynamodb-client.html
-      https://github.com/aws/aws-sdk-java/tree/master/src/samples/AmazonDynamoDB
-    */
-
-    private final AmazonDynamoDB client = AmazonDynamoDBClientBuilder.standard()
-
-            /*
-               Code adapted from AWS SDK for ProfileCredentialsProvider:
-               https://docs.aws.amazon.com/sdk-for-java/v1/developer-guide/credentials.html#credentials-file
-             */
-
-            .withCredentials(new ProfileCredentialsProvider("default"))
-            .withRegion("us-east-1")
-            .build();
-
-
-    private final DynamoDB dynamoDB = new DynamoDB(client);
+    // The DynamoDB client shared by all servlets, see DynamoDBManager
+    private final DynamoDB dynamoDB = DynamoDBManager.getDynamoDB();
     private final Table subscriptionsTable = dynamoDB.getTable("subscriptions");
 
     /*
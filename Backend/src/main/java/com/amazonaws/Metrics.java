@@ -0,0 +1,186 @@
+/*
+This class is the registry behind the /metrics endpoint. Every figure the backend keeps is registered here under a
+Prometheus metric name and a set of labels, and MetricsServlet prints them all in the Prometheus text format.
+
+There are three kinds of figures:
+  counters      things that only go up, such as requests and errors, kept here in a DoubleAdder
+  histograms    latencies, kept in a LatencyHistogram and printed as a summary with p50, p99 and p999
+  callbacks     counters and gauges that another class already keeps, such as the cache hit counts, read
+                through a Supplier when /metrics is requested, so nothing is counted twice
+
+Looking a counter or histogram up by its labels costs one map lookup, and recording into it never takes a lock.
+Callers on a hot path look theirs up once and keep it.
+
+Code adapted from the Prometheus documentation on the text exposition format:
+https://prometheus.io/docs/instrumenting/exposition_formats/
+*/
+
+package com.amazonaws;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+public class Metrics {
+
+    private static final Metrics INSTANCE = new Metrics();
+
+    static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("metrics.enabled", "true"));
+
+    private static final double[] QUANTILES = {0.5, 0.99, 0.999};
+
+    private final ConcurrentMap<String, Family> families = new ConcurrentHashMap<>();
+
+    private Metrics() {
+    }
+
+    public static Metrics getInstance() {
+        return INSTANCE;
+    }
+
+    // A counter that only goes up.
+    public static final class Counter {
+        private final DoubleAdder value = new DoubleAdder();
+
+        public void increment() {
+            value.add(1);
+        }
+
+        public void add(double amount) {
+            value.add(amount);
+        }
+
+        public double get() {
+            return value.sum();
+        }
+    }
+
+    /*
+     The counter with this name and labels, created on first use. Labels are given as name and value pairs,
+     for example counter("dynamodb_throttles_total", "...", "table", "Music").
+    */
+    public Counter counter(String name, String help, String... labels) {
+        return (Counter) family(name, help, "counter").child(labels, key -> new Counter());
+    }
+
+    public LatencyHistogram histogram(String name, String help, String... labels) {
+        return (LatencyHistogram) family(name, help, "summary").child(labels, key -> new LatencyHistogram());
+    }
+
+    // A counter kept elsewhere, read when /metrics is requested.
+    public void counter(String name, String help, Supplier<? extends Number> value, String... labels) {
+        family(name, help, "counter").children.put(labelString(labels), value);
+    }
+
+    public void gauge(String name, String help, Supplier<? extends Number> value, String... labels) {
+        family(name, help, "gauge").children.put(labelString(labels), value);
+    }
+
+    private Family family(String name, String help, String type) {
+        Family family = families.computeIfAbsent(name, key -> new Family(name, help, type));
+        if (!family.type.equals(type)) {
+            throw new IllegalArgumentException(name + " is already registered as a " + family.type);
+        }
+        return family;
+    }
+
+    // Writes every metric in the Prometheus text format, ordered by name.
+    public void write(Appendable out) throws IOException {
+        for (Family family : new TreeMap<>(families).values()) {
+            out.append("# HELP ").append(family.name).append(' ').append(escapeHelp(family.help)).append('\n');
+            out.append("# TYPE ").append(family.name).append(' ').append(family.type).append('\n');
+            for (Map.Entry<String, Object> child : new TreeMap<>(family.children).entrySet()) {
+                String labels = child.getKey();
+                Object metric = child.getValue();
+                if (metric instanceof LatencyHistogram) {
+                    LatencyHistogram histogram = (LatencyHistogram) metric;
+                    for (double quantile : QUANTILES) {
+                        String withQuantile = (labels.isEmpty() ? "" : labels + ",") + "quantile=\"" + quantile + "\"";
+                        sample(out, family.name, withQuantile, seconds(histogram.percentile(quantile)));
+                    }
+                    sample(out, family.name + "_sum", labels, seconds(histogram.getTotalMicros()));
+                    sample(out, family.name + "_count", labels, histogram.getCount());
+                } else if (metric instanceof Counter) {
+                    sample(out, family.name, labels, ((Counter) metric).get());
+                } else {
+                    Object value = ((Supplier<?>) metric).get();
+                    if (value instanceof Number) {
+                        sample(out, family.name, labels, ((Number) value).doubleValue());
+                    }
+                }
+            }
+        }
+    }
+
+    private static void sample(Appendable out, String name, String labels, double value) throws IOException {
+        out.append(name);
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ');
+        if (value == Math.rint(value) && !Double.isInfinite(value)) {
+            out.append(Long.toString((long) value));
+        } else {
+            out.append(Double.toString(value));
+        }
+        out.append('\n');
+    }
+
+    private static double seconds(long micros) {
+        return micros / 1_000_000.0;
+    }
+
+    // Label pairs as Prometheus writes them, name="value",... without the braces.
+    static String labelString(String... labels) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("Labels must be name and value pairs");
+        }
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) {
+                result.append(',');
+            }
+            result.append(labels[i]).append("=\"");
+            String value = labels[i + 1] == null ? "" : labels[i + 1];
+            for (int j = 0; j < value.length(); j++) {
+                char c = value.charAt(j);
+                if (c == '\\' || c == '"') {
+                    result.append('\\').append(c);
+                } else if (c == '\n') {
+                    result.append("\\n");
+                } else {
+                    result.append(c);
+                }
+            }
+            result.append('"');
+        }
+        return result.toString();
+    }
+
+    private static String escapeHelp(String help) {
+        return help.replace("\\", "\\\\").replace("\n", "\\n");
+    }
+
+    // All the figures registered under one metric name, by their labels.
+    private static final class Family {
+        final String name;
+        final String help;
+        final String type;
+        final ConcurrentMap<String, Object> children = new ConcurrentHashMap<>();
+
+        Family(String name, String help, String type) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+        }
+
+        Object child(String[] labels, Function<String, Object> create) {
+            return children.computeIfAbsent(labelString(labels), create);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/*
+This class, times every request of one servlet for the /metrics endpoint: how many requests it answered, how many
+of them failed (a 5xx status or an exception) and how long they took, in a LatencyHistogram. One filter is mapped
+on each servlet by install(), labelled with the servlet's path, for example servlet="/queryMusic".
+
+Requests that AsyncDispatcher moved to its I/O pool are still running when the filter chain returns, so those are
+timed until their AsyncContext completes or times out instead.
+*/
+
+package com.amazonaws;
+
+import org.eclipse.jetty.servlet.FilterHolder;
+import org.eclipse.jetty.servlet.FilterMapping;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletMapping;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.DispatcherType;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.EnumSet;
+
+public class MetricsFilter implements Filter {
+
+    private final Metrics.Counter requests;
+    private final Metrics.Counter errors;
+    private final LatencyHistogram latency;
+
+    public MetricsFilter(String servlet) {
+        Metrics metrics = Metrics.getInstance();
+        this.requests = metrics.counter("http_requests_total", "Requests answered, by servlet", "servlet", servlet);
+        this.errors = metrics.counter("http_request_errors_total",
+                "Requests answered with a 5xx status or an exception, by servlet", "servlet", servlet);
+        this.latency = metrics.histogram("http_request_duration_seconds",
+                "Time from receiving a request to completing its response, by servlet", "servlet", servlet);
+    }
+
+    // Maps a MetricsFilter on every servlet added to the context so far.
+    public static void install(ServletContextHandler context) {
+        for (ServletMapping mapping : context.getServletHandler().getServletMappings()) {
+            String servletName = mapping.getServletName();
+            FilterHolder holder = new FilterHolder(new MetricsFilter(mapping.getPathSpecs()[0]));
+            holder.setName("metrics-" + servletName);
+            holder.setAsyncSupported(true);
+            FilterMapping filterMapping = new FilterMapping();
+            filterMapping.setFilterName(holder.getName());
+            filterMapping.setServletName(servletName);
+            filterMapping.setDispatcherTypes(EnumSet.of(DispatcherType.REQUEST));
+            context.getServletHandler().addFilter(holder, filterMapping);
+        }
+    }
+
+    @Override
+    public void init(FilterConfig filterConfig) {
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+            throws IOException, ServletException {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            chain.doFilter(request, response);
+            failed = false;
+        } finally {
+            if (!failed && request.isAsyncStarted()) {
+                request.getAsyncContext().addListener(new AsyncListener() {
+                    private volatile boolean timedOut;
+
+                    @Override
+                    public void onComplete(AsyncEvent event) {
+                        record(start, (HttpServletResponse) response, timedOut);
+                    }
+
+                    @Override
+                    public void onTimeout(AsyncEvent event) {
+                        // Completed right after, with a 503 unless the response had already started.
+                        timedOut = true;
+                    }
+
+                    @Override
+                    public void onError(AsyncEvent event) {
+                    }
+
+                    @Override
+                    public void onStartAsync(AsyncEvent event) {
+                    }
+                });
+            } else {
+                record(start, (HttpServletResponse) response, failed);
+            }
+        }
+    }
+
+    private void record(long start, HttpServletResponse response, boolean failed) {
+        latency.recordSince(start);
+        requests.increment();
+        if (failed || (response != null && response.getStatus() >= 500)) {
+            errors.increment();
+        }
+    }
+
+    @Override
+    public void destroy() {
+    }
+}
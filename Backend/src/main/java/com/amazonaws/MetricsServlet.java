@@ -0,0 +1,30 @@
+/*
+This class, answers GET /metrics with every figure registered in Metrics, in the Prometheus text format, so a
+Prometheus server (or just curl) can scrape the backend. It lists the latency, error and request figures of every
+servlet and of every DynamoDB table, the S3 URL signing times, and the counters the backend already kept for its
+connection pools, caches and async I/O pool.
+*/
+
+package com.amazonaws;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+public class MetricsServlet extends HttpServlet {
+
+    private final Metrics metrics = Metrics.getInstance();
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        resp.setContentType("text/plain; version=0.0.4; charset=utf-8");
+        resp.setHeader("Cache-Control", "no-store");
+        StringBuilder body = new StringBuilder(16 * 1024);
+        metrics.write(body);
+        PrintWriter out = resp.getWriter();
+        out.print(body);
+        out.flush();
+    }
+}
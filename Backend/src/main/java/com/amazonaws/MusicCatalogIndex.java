@@ -0,0 +1,320 @@
+/*
+This class keeps an in-memory copy of the "Music" table so that /queryMusic can answer searches without
+touching DynamoDB. The table is read once when the backend starts (and again on every refresh), and for each
+of the searchable attributes (title, artist, album and year) an inverted index is built that maps a value to
+the sorted list of songs carrying it. A search with any mix of criteria is then answered by intersecting those
+posting lists, starting with the shortest one, which keeps lookups well under a millisecond for our catalog.
+*/
+
+package com.amazonaws;
+
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.Table;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+public class MusicCatalogIndex {
+
+    private static final MusicCatalogIndex INSTANCE = new MusicCatalogIndex();
+
+    // How often the catalog is re-read from DynamoDB, 0 disables the periodic refresh.
+    private static final int REFRESH_MINUTES = Integer.getInteger("catalog.refresh.minutes", 15);
+    // How long to wait before trying again while the catalog has never been loaded.
+    private static final int RETRY_SECONDS = Integer.getInteger("catalog.retry.seconds", 30);
+
+    private volatile Snapshot snapshot;
+    private ScheduledExecutorService refresher;
+    private final List<Runnable> reloadListeners = new CopyOnWriteArrayList<>();
+
+    public static MusicCatalogIndex getInstance() {
+        return INSTANCE;
+    }
+
+    // True once the catalog has been loaded at least once and searches can be served from memory.
+    public boolean isLoaded() {
+        return snapshot != null;
+    }
+
+    public int size() {
+        Snapshot current = snapshot;
+        return current == null ? 0 : current.json.length;
+    }
+
+    /*
+     Reads the whole "Music" table with a parallel segmented Scan and swaps in a freshly built snapshot.
+     Searches that are running while the table is being read keep using the previous snapshot, so a
+     reload never blocks or breaks requests.
+    */
+    public synchronized void load(Table musicTable) {
+        long start = System.currentTimeMillis();
+        List<Item> items = new ArrayList<>();
+        try {
+            new ParallelMusicScanner().scan(musicTable, (page, result) -> {
+                items.addAll(page);
+                return true;
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while loading the catalog", e);
+        }
+        // Segments finish in any order, so sort by (year, title) to keep search results in a stable order.
+        items.sort(Comparator.comparingInt(MusicCatalogIndex::yearKey).thenComparing(MusicCatalogIndex::titleKey));
+        snapshot = new Snapshot(items);
+        System.out.println("🎵 Catalog index loaded " + items.size() + " songs in "
+                + (System.currentTimeMillis() - start) + " ms");
+        reloadListeners.forEach(Runnable::run);
+    }
+
+    // Called after every (re)load, so caches built on top of the catalog can drop what they hold.
+    public void addReloadListener(Runnable listener) {
+        reloadListeners.add(listener);
+    }
+
+    /*
+     Loads the catalog now and then keeps refreshing it in the background. The refresher is set up before
+     the first load, so a failed first load (which is rethrown) is retried every RETRY_SECONDS until there
+     is a snapshot, instead of leaving the backend on DynamoDB for good.
+    */
+    public synchronized void start(final Table musicTable) {
+        if (refresher == null) {
+            refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "catalog-refresh");
+                thread.setDaemon(true);
+                return thread;
+            });
+            if (REFRESH_MINUTES > 0) {
+                refresher.scheduleWithFixedDelay(() -> {
+                    try {
+                        load(musicTable);
+                    } catch (Exception e) {
+                        System.err.println("Catalog refresh failed, keeping previous snapshot: " + e.getMessage());
+                    }
+                }, REFRESH_MINUTES, REFRESH_MINUTES, TimeUnit.MINUTES);
+            }
+        }
+        try {
+            load(musicTable);
+        } catch (RuntimeException e) {
+            retryUntilLoaded(musicTable);
+            throw e;
+        }
+    }
+
+    private void retryUntilLoaded(final Table musicTable) {
+        refresher.schedule(() -> {
+            if (snapshot != null) {
+                return;
+            }
+            try {
+                load(musicTable);
+            } catch (Exception e) {
+                System.err.println("Catalog load failed, retrying in " + RETRY_SECONDS + " s: " + e.getMessage());
+                retryUntilLoaded(musicTable);
+            }
+        }, RETRY_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /*
+     Writes the JSON of every song matching all of the given criteria to the sink, in the same shape as
+     Item.toJSON(). Criteria that were not given are simply not intersected. Songs are kept in
+     (year, title) order, so a cursor only has to remember the last (year, title) it returned; that also
+     keeps cursors valid across a catalog refresh. With a positive limit at most that many songs are
+     written and the cursor for the next page is returned, otherwise null is returned.
+    */
+    public MusicQueryCursor search(MusicSearchCriteria criteria, MusicQueryCursor after, int limit, Consumer<String> sink) {
+        Snapshot current = snapshot;
+        if (current == null) {
+            throw new IllegalStateException("Catalog index has not been loaded");
+        }
+
+        List<int[]> postings = new ArrayList<>();
+        if (criteria.hasTitle()) postings.add(current.lookup(current.byTitle, criteria.getTitle()));
+        if (criteria.hasYear()) postings.add(current.lookup(current.byYear, String.valueOf(criteria.getYear())));
+        if (criteria.hasArtist()) postings.add(current.lookup(current.byArtist, criteria.getArtist()));
+        if (criteria.hasAlbum()) postings.add(current.lookup(current.byAlbum, criteria.getAlbum()));
+
+        // Without any criteria every song matches, which is the same as an identity posting list.
+        int[] matches = null;
+        if (!postings.isEmpty()) {
+            // Intersecting from the shortest list first keeps every step bounded by the rarest criterion.
+            postings.sort(Comparator.comparingInt(list -> list.length));
+            matches = postings.get(0);
+            for (int i = 1; i < postings.size() && matches.length > 0; i++) {
+                matches = intersect(matches, postings.get(i));
+            }
+        }
+        int count = matches == null ? current.json.length : matches.length;
+
+        int position = 0;
+        if (after != null) {
+            position = current.firstAfter(matches, count, after.getKey());
+        }
+
+        int written = 0;
+        for (; position < count; position++) {
+            if (limit > 0 && written == limit) {
+                int last = matches == null ? position - 1 : matches[position - 1];
+                Map<String, Object> key = new LinkedHashMap<>();
+                key.put("year", current.years[last]);
+                key.put("title", current.titles[last]);
+                return new MusicQueryCursor(MusicQueryPlan.Access.CATALOG_INDEX, 0, key);
+            }
+            sink.accept(current.json[matches == null ? position : matches[position]]);
+            written++;
+        }
+        return null;
+    }
+
+    // Every distinct artist in the catalog.
+    public Set<String> artists() {
+        Snapshot current = snapshot;
+        return current == null ? Collections.emptySet() : current.byArtist.keySet();
+    }
+
+    // The JSON of the song with this (year, title) primary key, or null when the catalog does not have it.
+    public String find(int year, String title) {
+        Snapshot current = snapshot;
+        if (current == null) {
+            throw new IllegalStateException("Catalog index has not been loaded");
+        }
+        for (int id : current.lookup(current.byTitle, title)) {
+            if (current.years[id] == year) {
+                return current.json[id];
+            }
+        }
+        return null;
+    }
+
+    // Both arrays are sorted ascending, so a single merge pass is enough.
+    static int[] intersect(int[] left, int[] right) {
+        int[] out = new int[Math.min(left.length, right.length)];
+        int i = 0, j = 0, n = 0;
+        while (i < left.length && j < right.length) {
+            if (left[i] < right[j]) {
+                i++;
+            } else if (left[i] > right[j]) {
+                j++;
+            } else {
+                out[n++] = left[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    // Songs without a usable year sort last.
+    static int yearKey(Item item) {
+        Integer year = item.hasAttribute("year") ? MusicSearchCriteria.parseYear(item.get("year").toString()) : null;
+        return year == null ? Integer.MAX_VALUE : year;
+    }
+
+    static String titleKey(Item item) {
+        String title = item.getString("title");
+        return title == null ? "" : title;
+    }
+
+    /*
+     An immutable view of the catalog. Song ids are positions in the json array, and every posting list
+     is built in id order, which is what lets intersect() work with a simple merge.
+    */
+    private static final class Snapshot {
+        private static final int[] EMPTY = new int[0];
+
+        final String[] json;
+        final int[] years;
+        final String[] titles;
+        final Map<String, int[]> byTitle;
+        final Map<String, int[]> byArtist;
+        final Map<String, int[]> byAlbum;
+        final Map<String, int[]> byYear;
+
+        Snapshot(List<Item> items) {
+            json = new String[items.size()];
+            years = new int[items.size()];
+            titles = new String[items.size()];
+            Map<String, List<Integer>> titleIndex = new HashMap<>();
+            Map<String, List<Integer>> artistIndex = new HashMap<>();
+            Map<String, List<Integer>> albumIndex = new HashMap<>();
+            Map<String, List<Integer>> yearIndex = new HashMap<>();
+
+            for (int id = 0; id < items.size(); id++) {
+                Item item = items.get(id);
+                json[id] = item.toJSON();
+                years[id] = yearKey(item);
+                titles[id] = titleKey(item);
+                addPosting(titleIndex, item, "title", id);
+                addPosting(artistIndex, item, "artist", id);
+                addPosting(albumIndex, item, "album", id);
+                if (years[id] != Integer.MAX_VALUE) {
+                    yearIndex.computeIfAbsent(String.valueOf(years[id]), k -> new ArrayList<>()).add(id);
+                }
+            }
+
+            byTitle = freeze(titleIndex);
+            byArtist = freeze(artistIndex);
+            byAlbum = freeze(albumIndex);
+            byYear = freeze(yearIndex);
+        }
+
+        /*
+         Binary search for the first match that sorts after the (year, title) in a cursor key. The
+         matches are in id order, and ids are in (year, title) order.
+        */
+        int firstAfter(int[] matches, int count, Map<String, Object> key) {
+            Object yearValue = key.get("year");
+            int year = yearValue instanceof Number ? ((Number) yearValue).intValue() : Integer.MAX_VALUE;
+            String title = key.get("title") == null ? "" : key.get("title").toString();
+            int low = 0;
+            int high = count;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                int id = matches == null ? middle : matches[middle];
+                int order = years[id] != year ? Integer.compare(years[id], year) : titles[id].compareTo(title);
+                if (order <= 0) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        int[] lookup(Map<String, int[]> index, String value) {
+            int[] posting = index.get(value);
+            return posting == null ? EMPTY : posting;
+        }
+
+        private static void addPosting(Map<String, List<Integer>> index, Item item, String attribute, int id) {
+            if (item.hasAttribute(attribute)) {
+                index.computeIfAbsent(item.getString(attribute), k -> new ArrayList<>()).add(id);
+            }
+        }
+
+        private static Map<String, int[]> freeze(Map<String, List<Integer>> index) {
+            Map<String, int[]> frozen = new HashMap<>(index.size() * 2);
+            for (Map.Entry<String, List<Integer>> entry : index.entrySet()) {
+                List<Integer> ids = entry.getValue();
+                int[] posting = new int[ids.size()];
+                for (int i = 0; i < posting.length; i++) {
+                    posting[i] = ids.get(i);
+                }
+                frozen.put(entry.getKey(), posting);
+            }
+            return frozen;
+        }
+    }
+}
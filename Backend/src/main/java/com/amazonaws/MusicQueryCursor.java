@@ -0,0 +1,129 @@
+/*
+This class is the opaque "cursor" that /queryMusic hands out when a search was cut off by its "limit". It wraps
+the DynamoDB key of the last song that was returned (the same thing DynamoDB calls LastEvaluatedKey and accepts
+back as ExclusiveStartKey), the access path it belongs to and, for scans, the segment being read. The client
+only ever sees it as a URL-safe Base64 string and sends it back unchanged to get the next page. The encoded cursor
+also carries a hash of the search criteria it was handed out for, and is rejected when it comes back with others.
+*/
+
+package com.amazonaws;
+
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.KeyAttribute;
+import com.amazonaws.services.dynamodbv2.document.ItemUtils;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+public class MusicQueryCursor {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final MusicQueryPlan.Access access;
+    private final int segment;
+    private final Map<String, Object> key;
+
+    public MusicQueryCursor(MusicQueryPlan.Access access, int segment, Map<String, Object> key) {
+        this.access = access;
+        this.segment = segment;
+        this.key = key;
+    }
+
+    // A cursor that resumes right after the given item, keeping only the attributes that make up its key.
+    public static MusicQueryCursor after(MusicQueryPlan.Access access, int segment, Item item, List<String> keyAttributes) {
+        Map<String, Object> key = new LinkedHashMap<>();
+        for (String attribute : keyAttributes) {
+            if (item.hasAttribute(attribute)) {
+                key.put(attribute, item.get(attribute));
+            }
+        }
+        return new MusicQueryCursor(access, segment, key);
+    }
+
+    public MusicQueryPlan.Access getAccess() {
+        return access;
+    }
+
+    public int getSegment() {
+        return segment;
+    }
+
+    public Map<String, Object> getKey() {
+        return key;
+    }
+
+    public KeyAttribute[] toKeyAttributes() {
+        List<KeyAttribute> attributes = new ArrayList<>(key.size());
+        for (Map.Entry<String, Object> entry : key.entrySet()) {
+            attributes.add(new KeyAttribute(entry.getKey(), entry.getValue()));
+        }
+        return attributes.toArray(new KeyAttribute[0]);
+    }
+
+    // The key as the low-level API takes it, for an ExclusiveStartKey sent through the async client.
+    public Map<String, AttributeValue> toAttributeValues() {
+        return ItemUtils.fromSimpleMap(key);
+    }
+
+    // Encodes the cursor for the next page of a search on the given criteria.
+    public String encode(MusicSearchCriteria criteria) {
+        ObjectNode node = MAPPER.createObjectNode();
+        node.put("c", criteriaHash(criteria));
+        node.put("a", access.name());
+        node.put("s", segment);
+        node.set("k", MAPPER.valueToTree(key));
+        try {
+            byte[] json = MAPPER.writeValueAsBytes(node);
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(json);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to encode cursor", e);
+        }
+    }
+
+    /*
+     Throws IllegalArgumentException for anything that is not a cursor this class produced, and for a cursor
+     that was handed out for other criteria.
+    */
+    public static MusicQueryCursor decode(String cursor, MusicSearchCriteria criteria) {
+        JsonNode node;
+        try {
+            node = MAPPER.readTree(new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8));
+        } catch (IOException | RuntimeException e) {
+            throw new IllegalArgumentException("Invalid cursor", e);
+        }
+        if (node == null || !node.has("c") || node.get("c").asLong() != criteriaHash(criteria)) {
+            throw new IllegalArgumentException("Cursor belongs to a different search");
+        }
+        try {
+            MusicQueryPlan.Access access = MusicQueryPlan.Access.valueOf(node.get("a").asText());
+            Map<String, Object> key = new LinkedHashMap<>();
+            Iterator<Map.Entry<String, JsonNode>> fields = node.get("k").fields();
+            while (fields.hasNext()) {
+                Map.Entry<String, JsonNode> field = fields.next();
+                JsonNode value = field.getValue();
+                key.put(field.getKey(), value.isNumber() ? value.decimalValue() : value.asText());
+            }
+            return new MusicQueryCursor(access, node.path("s").asInt(), key);
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Invalid cursor", e);
+        }
+    }
+
+    // CRC32 of the criteria as text, which is the same in every JVM so cursors keep working across restarts.
+    private static long criteriaHash(MusicSearchCriteria criteria) {
+        CRC32 crc = new CRC32();
+        crc.update(criteria.toString().getBytes(StandardCharsets.UTF_8));
+        return crc.getValue();
+    }
+}
@@ -0,0 +1,137 @@
+/*
+This class describes how one /queryMusic search is going to be answered: which access path the planner picked
+(a cached result, the in-memory catalog, a GetItem, a Query on the table or on a Global Secondary Index, or a Scan), which
+criteria are covered by the key and which ones are left as residual filters, and what the planner expected it
+to cost. While the plan runs it also records what DynamoDB actually charged, so that the "explain" output of
+/queryMusic can show both the estimate and the real consumed capacity side by side.
+*/
+
+package com.amazonaws;
+
+import com.amazonaws.services.dynamodbv2.model.ConsumedCapacity;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.util.Collections;
+import java.util.List;
+
+public class MusicQueryPlan {
+
+    public enum Access {
+        RESULT_CACHE,
+        CATALOG_INDEX,
+        GET_ITEM,
+        TABLE_QUERY,
+        GSI_QUERY,
+        SCAN
+    }
+
+    private final Access access;
+    private final String indexName;
+    private final String hashKey;
+    private final String rangeKey;
+    private final List<String> residualFilters;
+    private final double estimatedItemsRead;
+    private final double estimatedReadUnits;
+
+    // Filled in while the plan is executed.
+    private double consumedReadUnits;
+    private long itemsRead;
+    private long itemsReturned;
+    private long elapsedMillis;
+    private int segments;
+    private int throttles;
+
+    public MusicQueryPlan(Access access, String indexName, String hashKey, String rangeKey,
+                          List<String> residualFilters, double estimatedItemsRead, double estimatedReadUnits) {
+        this.access = access;
+        this.indexName = indexName;
+        this.hashKey = hashKey;
+        this.rangeKey = rangeKey;
+        this.residualFilters = Collections.unmodifiableList(residualFilters);
+        this.estimatedItemsRead = estimatedItemsRead;
+        this.estimatedReadUnits = estimatedReadUnits;
+    }
+
+    public Access getAccess() {
+        return access;
+    }
+
+    public String getIndexName() {
+        return indexName;
+    }
+
+    public String getHashKey() {
+        return hashKey;
+    }
+
+    public String getRangeKey() {
+        return rangeKey;
+    }
+
+    public List<String> getResidualFilters() {
+        return residualFilters;
+    }
+
+    public double getEstimatedReadUnits() {
+        return estimatedReadUnits;
+    }
+
+    public synchronized double getConsumedReadUnits() {
+        return consumedReadUnits;
+    }
+
+    // Adds the capacity and item count reported for one GetItem call or one Query/Scan page.
+    public synchronized void recordRead(ConsumedCapacity capacity, long items) {
+        if (capacity != null && capacity.getCapacityUnits() != null) {
+            consumedReadUnits += capacity.getCapacityUnits();
+        }
+        itemsRead += items;
+    }
+
+    public synchronized void recordReturned(long items) {
+        itemsReturned += items;
+    }
+
+    public synchronized void setElapsedMillis(long elapsedMillis) {
+        this.elapsedMillis = elapsedMillis;
+    }
+
+    // Number of parallel segments a Scan plan was split into.
+    public synchronized void setSegments(int segments) {
+        this.segments = segments;
+    }
+
+    public synchronized void recordThrottles(int throttles) {
+        this.throttles += throttles;
+    }
+
+    // The "plan" object that /queryMusic adds to its response when the request sets "explain": true.
+    public synchronized ObjectNode toJson(ObjectMapper objectMapper) {
+        ObjectNode node = objectMapper.createObjectNode();
+        node.put("access", access.name());
+        if (indexName != null) node.put("index", indexName);
+        ArrayNode keys = node.putArray("keyConditions");
+        if (hashKey != null) keys.add(hashKey);
+        if (rangeKey != null) keys.add(rangeKey);
+        ArrayNode residual = node.putArray("residualFilters");
+        residualFilters.forEach(residual::add);
+        node.put("estimatedItemsRead", Math.round(estimatedItemsRead));
+        node.put("estimatedReadUnits", estimatedReadUnits);
+        node.put("consumedReadUnits", consumedReadUnits);
+        node.put("itemsRead", itemsRead);
+        node.put("itemsReturned", itemsReturned);
+        node.put("elapsedMs", elapsedMillis);
+        if (segments > 0) node.put("segments", segments);
+        if (throttles > 0) node.put("throttles", throttles);
+        return node;
+    }
+
+    @Override
+    public String toString() {
+        return access + (indexName != null ? "(" + indexName + ")" : "")
+                + " keys=" + (hashKey == null ? "[]" : rangeKey == null ? "[" + hashKey + "]" : "[" + hashKey + ", " + rangeKey + "]")
+                + " residual=" + residualFilters;
+    }
+}
@@ -0,0 +1,541 @@
+/*
+This class decides how a /queryMusic search should reach the "Music" table and then runs that decision. The
+table is keyed on year (partition key) and title (sort key), so a search that names both can be a single
+GetItem and a search that names a year can be a Query on one partition. Searches on the attributes of a
+Global Secondary Index (for example artist and album on ArtistAlbumIndex) can query that index instead, and
+only when no key fits at all does the planner fall back to a Scan, which is run as a parallel segmented
+Scan by ParallelMusicScanner.
+
+Every candidate access path is given an estimated cost in read capacity units, using the item count and size
+that DescribeTable reports together with a rough selectivity for each attribute, and the cheapest one wins.
+Whatever the chosen key does not cover is applied as a residual filter on our side, which costs the same read
+capacity as a DynamoDB filter expression would, since filters are only applied after items have been read.
+
+execute() runs a plan on the calling thread with the blocking client. executeAsync() runs the GetItem and Query
+plans through the AmazonDynamoDBAsync client instead, so /queryMusic holds no thread while DynamoDB answers. The
+table statistics are refreshed in the background through the async client as well, so planning never waits on
+DescribeTable; until the first answer arrives the planner uses the key and index MusicCreateTable creates.
+*/
+
+package com.amazonaws;
+
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.dynamodbv2.document.GetItemOutcome;
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.ItemCollection;
+import com.amazonaws.services.dynamodbv2.document.ItemUtils;
+import com.amazonaws.services.dynamodbv2.document.Page;
+import com.amazonaws.services.dynamodbv2.document.QueryOutcome;
+import com.amazonaws.services.dynamodbv2.document.RangeKeyCondition;
+import com.amazonaws.services.dynamodbv2.document.Table;
+import com.amazonaws.services.dynamodbv2.document.spec.GetItemSpec;
+import com.amazonaws.services.dynamodbv2.document.spec.QuerySpec;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.DescribeTableRequest;
+import com.amazonaws.services.dynamodbv2.model.DescribeTableResult;
+import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.GetItemResult;
+import com.amazonaws.services.dynamodbv2.model.GlobalSecondaryIndexDescription;
+import com.amazonaws.services.dynamodbv2.model.KeySchemaElement;
+import com.amazonaws.services.dynamodbv2.model.QueryRequest;
+import com.amazonaws.services.dynamodbv2.model.QueryResult;
+import com.amazonaws.services.dynamodbv2.model.ReturnConsumedCapacity;
+import com.amazonaws.services.dynamodbv2.model.TableDescription;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+public class MusicQueryPlanner {
+
+    // One read capacity unit covers 4 KB, and eventually consistent reads are charged half a unit.
+    private static final double READ_UNIT_BYTES = 4096.0;
+    private static final double EVENTUALLY_CONSISTENT_UNIT = 0.5;
+
+    // Used until DescribeTable has answered, or if the caller is not allowed to describe the table.
+    private static final long DEFAULT_ITEM_COUNT = 1000;
+    private static final long DEFAULT_ITEM_BYTES = 200;
+
+    // DescribeTable statistics are only refreshed by DynamoDB every few hours, so there is no point asking often.
+    private static final long STATS_TTL_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    /*
+     Rough share of the catalog that one value of each attribute covers. A title is almost unique, a year
+     spans a couple of dozen songs, and artists and albums sit in between. These only have to rank access
+     paths against each other, they are not used to size anything.
+    */
+    private static final Map<String, Double> SELECTIVITY = new HashMap<>();
+
+    static {
+        SELECTIVITY.put("title", 0.002);
+        SELECTIVITY.put("year", 0.05);
+        SELECTIVITY.put("artist", 0.02);
+        SELECTIVITY.put("album", 0.01);
+    }
+
+    private final Table musicTable;
+    private final MusicCatalogIndex catalogIndex;
+    private final ParallelMusicScanner scanner = new ParallelMusicScanner();
+    private volatile TableStats stats;
+    private final AtomicBoolean describing = new AtomicBoolean();
+
+    public MusicQueryPlanner(Table musicTable, MusicCatalogIndex catalogIndex) {
+        this.musicTable = musicTable;
+        this.catalogIndex = catalogIndex;
+    }
+
+    /*
+     Picks the cheapest way to answer the search. The in-memory catalog always wins when it is loaded,
+     since it costs no read capacity at all. Otherwise every key that the criteria can use is costed
+     against a full Scan.
+    */
+    public MusicQueryPlan plan(MusicSearchCriteria criteria) {
+        if (catalogIndex.isLoaded()) {
+            return new MusicQueryPlan(MusicQueryPlan.Access.CATALOG_INDEX, null, null, null,
+                    criteria.attributes(), 0, 0);
+        }
+
+        TableStats tableStats = stats();
+        List<MusicQueryPlan> candidates = new ArrayList<>();
+
+        if (criteria.valueOf(tableStats.hashKey) != null) {
+            if (tableStats.rangeKey != null && criteria.valueOf(tableStats.rangeKey) != null) {
+                candidates.add(candidate(MusicQueryPlan.Access.GET_ITEM, null, tableStats.hashKey,
+                        tableStats.rangeKey, criteria, tableStats, 1));
+            }
+            candidates.add(candidate(MusicQueryPlan.Access.TABLE_QUERY, null, tableStats.hashKey, null,
+                    criteria, tableStats, tableStats.itemCount * selectivity(tableStats.hashKey)));
+        }
+
+        for (Map.Entry<String, String[]> index : tableStats.indexes.entrySet()) {
+            String hashKey = index.getValue()[0];
+            String rangeKey = index.getValue()[1];
+            if (criteria.valueOf(hashKey) == null) {
+                continue;
+            }
+            double rows = tableStats.itemCount * selectivity(hashKey);
+            if (rangeKey != null && criteria.valueOf(rangeKey) != null) {
+                rows *= selectivity(rangeKey);
+            } else {
+                rangeKey = null;
+            }
+            candidates.add(candidate(MusicQueryPlan.Access.GSI_QUERY, index.getKey(), hashKey, rangeKey,
+                    criteria, tableStats, rows));
+        }
+
+        candidates.add(candidate(MusicQueryPlan.Access.SCAN, null, null, null,
+                criteria, tableStats, tableStats.itemCount));
+
+        // Candidates are added from most to least specific, so ties keep the more specific path.
+        MusicQueryPlan best = candidates.get(0);
+        for (MusicQueryPlan candidate : candidates) {
+            if (candidate.getEstimatedReadUnits() < best.getEstimatedReadUnits()) {
+                best = candidate;
+            }
+        }
+        return best;
+    }
+
+    /*
+     Runs the plan and hands the JSON of every song that passes the residual filters to the sink as soon
+     as its page has been read, so nothing is buffered here. With a positive limit it stops after that many
+     songs and returns the cursor for the next page, otherwise it returns null once everything was
+     returned. The consumed capacity of every call or page is recorded on the plan so it can be explained.
+    */
+    public MusicQueryCursor execute(MusicQueryPlan plan, MusicSearchCriteria criteria, MusicQueryCursor cursor,
+                                    int limit, Consumer<String> sink) {
+        if (cursor != null && cursor.getAccess() != plan.getAccess()) {
+            throw new IllegalArgumentException("The cursor belongs to a different search, start it again without one");
+        }
+
+        long start = System.currentTimeMillis();
+        PagedSink results = new PagedSink(plan, criteria, limit, sink);
+        // Without residual filters every item read is returned, so there is no need to read more than a page.
+        int pageSize = limit > 0 && plan.getResidualFilters().isEmpty() ? limit : 0;
+        MusicQueryCursor next = null;
+
+        switch (plan.getAccess()) {
+            case CATALOG_INDEX: {
+                next = catalogIndex.search(criteria, cursor, limit, json -> {
+                    plan.recordReturned(1);
+                    sink.accept(json);
+                });
+                break;
+            }
+            case GET_ITEM: {
+                GetItemOutcome outcome = musicTable.getItemOutcome(new GetItemSpec()
+                        .withPrimaryKey(plan.getHashKey(), criteria.valueOf(plan.getHashKey()),
+                                plan.getRangeKey(), criteria.valueOf(plan.getRangeKey()))
+                        .withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL));
+                Item item = outcome.getItem();
+                plan.recordRead(outcome.getGetItemResult().getConsumedCapacity(), item == null ? 0 : 1);
+                results.accept(item);
+                break;
+            }
+            case TABLE_QUERY:
+            case GSI_QUERY: {
+                QuerySpec querySpec = new QuerySpec()
+                        .withHashKey(plan.getHashKey(), criteria.valueOf(plan.getHashKey()))
+                        .withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+                if (plan.getRangeKey() != null) {
+                    querySpec.withRangeKeyCondition(
+                            new RangeKeyCondition(plan.getRangeKey()).eq(criteria.valueOf(plan.getRangeKey())));
+                }
+                if (cursor != null) {
+                    querySpec.withExclusiveStartKey(cursor.toKeyAttributes());
+                }
+                if (pageSize > 0) {
+                    querySpec.withMaxPageSize(pageSize);
+                }
+                ItemCollection<QueryOutcome> items = plan.getIndexName() == null
+                        ? musicTable.query(querySpec)
+                        : musicTable.getIndex(plan.getIndexName()).query(querySpec);
+                pages:
+                for (Page<Item, QueryOutcome> page : items.pages()) {
+                    QueryResult result = page.getLowLevelResult().getQueryResult();
+                    plan.recordRead(result.getConsumedCapacity(), result.getScannedCount());
+                    for (Item item : page) {
+                        if (!results.accept(item)) {
+                            break pages;
+                        }
+                    }
+                }
+                if (results.isFull()) {
+                    next = MusicQueryCursor.after(plan.getAccess(), 0, results.last, keyAttributes(plan));
+                }
+                break;
+            }
+            case SCAN: {
+                plan.setSegments(scanner.getTotalSegments());
+                try {
+                    if (limit <= 0 && cursor == null) {
+                        // Unindexed searches read every segment in parallel and merge the pages as they arrive.
+                        plan.recordThrottles(scanner.scan(musicTable, (items, result) -> {
+                            plan.recordRead(result.getConsumedCapacity(), result.getScannedCount());
+                            items.forEach(results::accept);
+                            return true;
+                        }));
+                    } else {
+                        // A paginated Scan walks the segments in order, so the cursor only points into one of them.
+                        for (int segment = cursor == null ? 0 : cursor.getSegment(); segment < scanner.getTotalSegments(); segment++) {
+                            boolean resume = cursor != null && segment == cursor.getSegment();
+                            plan.recordThrottles(scanner.scanSegment(musicTable, segment,
+                                    resume ? cursor.toKeyAttributes() : null, pageSize, (items, result) -> {
+                                        plan.recordRead(result.getConsumedCapacity(), result.getScannedCount());
+                                        for (Item item : items) {
+                                            if (!results.accept(item)) {
+                                                return false;
+                                            }
+                                        }
+                                        return true;
+                                    }));
+                            if (results.isFull()) {
+                                next = MusicQueryCursor.after(plan.getAccess(), segment, results.last, keyAttributes(plan));
+                                break;
+                            }
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while scanning the Music table", e);
+                }
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("Unknown plan " + plan.getAccess());
+        }
+        plan.setElapsedMillis(System.currentTimeMillis() - start);
+        return next;
+    }
+
+    // Hears back from executeAsync, on an SDK thread, once the search has finished.
+    public interface Completion {
+        // next is the cursor for the page after this one, or null when everything was returned.
+        void completed(MusicQueryCursor next);
+
+        void failed(Exception e);
+    }
+
+    // Whether executeAsync can run the plan; the others still go through execute().
+    public static boolean runsAsync(MusicQueryPlan plan) {
+        return plan.getAccess() == MusicQueryPlan.Access.GET_ITEM
+                || plan.getAccess() == MusicQueryPlan.Access.TABLE_QUERY
+                || plan.getAccess() == MusicQueryPlan.Access.GSI_QUERY;
+    }
+
+    /*
+     Same as execute() for a GetItem or Query plan, but through the AmazonDynamoDBAsync client: it returns
+     as soon as the first call is sent. Each page is handed to the sink from the SDK's callback, the next
+     page is only asked for once the previous one has been written, and the completion is called last.
+    */
+    public void executeAsync(MusicQueryPlan plan, MusicSearchCriteria criteria, MusicQueryCursor cursor,
+                             int limit, Consumer<String> sink, Completion completion) {
+        if (!runsAsync(plan)) {
+            throw new IllegalArgumentException("Plan " + plan.getAccess() + " cannot run asynchronously");
+        }
+        if (cursor != null && cursor.getAccess() != plan.getAccess()) {
+            throw new IllegalArgumentException("The cursor belongs to a different search, start it again without one");
+        }
+
+        long start = System.currentTimeMillis();
+        PagedSink results = new PagedSink(plan, criteria, limit, sink);
+        int pageSize = limit > 0 && plan.getResidualFilters().isEmpty() ? limit : 0;
+
+        if (plan.getAccess() == MusicQueryPlan.Access.GET_ITEM) {
+            Map<String, AttributeValue> key = new HashMap<>();
+            key.put(plan.getHashKey(), ItemUtils.toAttributeValue(criteria.valueOf(plan.getHashKey())));
+            key.put(plan.getRangeKey(), ItemUtils.toAttributeValue(criteria.valueOf(plan.getRangeKey())));
+            GetItemRequest request = new GetItemRequest()
+                    .withTableName(musicTable.getTableName())
+                    .withKey(key)
+                    .withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+            DynamoDBManager.getAsyncClient().getItemAsync(request, new AsyncHandler<GetItemRequest, GetItemResult>() {
+                @Override
+                public void onSuccess(GetItemRequest request, GetItemResult result) {
+                    try {
+                        Item item = result.getItem() == null ? null : ItemUtils.toItem(result.getItem());
+                        plan.recordRead(result.getConsumedCapacity(), item == null ? 0 : 1);
+                        results.accept(item);
+                    } catch (RuntimeException e) {
+                        completion.failed(e);
+                        return;
+                    }
+                    plan.setElapsedMillis(System.currentTimeMillis() - start);
+                    completion.completed(null);
+                }
+
+                @Override
+                public void onError(Exception e) {
+                    completion.failed(e);
+                }
+            });
+            return;
+        }
+
+        Map<String, String> names = new HashMap<>();
+        Map<String, AttributeValue> values = new HashMap<>();
+        names.put("#h", plan.getHashKey());
+        values.put(":h", ItemUtils.toAttributeValue(criteria.valueOf(plan.getHashKey())));
+        String keyCondition = "#h = :h";
+        if (plan.getRangeKey() != null) {
+            names.put("#r", plan.getRangeKey());
+            values.put(":r", ItemUtils.toAttributeValue(criteria.valueOf(plan.getRangeKey())));
+            keyCondition += " AND #r = :r";
+        }
+        QueryRequest request = new QueryRequest()
+                .withTableName(musicTable.getTableName())
+                .withIndexName(plan.getIndexName())
+                .withKeyConditionExpression(keyCondition)
+                .withExpressionAttributeNames(names)
+                .withExpressionAttributeValues(values)
+                .withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+        if (cursor != null) {
+            request.withExclusiveStartKey(cursor.toAttributeValues());
+        }
+        if (pageSize > 0) {
+            request.withLimit(pageSize);
+        }
+        queryPage(plan, request, results, start, completion);
+    }
+
+    // Reads one page of the Query and asks for the next one from its callback until the search is done.
+    private void queryPage(MusicQueryPlan plan, QueryRequest request, PagedSink results, long start, Completion completion) {
+        DynamoDBManager.getAsyncClient().queryAsync(request, new AsyncHandler<QueryRequest, QueryResult>() {
+            @Override
+            public void onSuccess(QueryRequest sent, QueryResult result) {
+                MusicQueryCursor next = null;
+                try {
+                    plan.recordRead(result.getConsumedCapacity(), result.getScannedCount());
+                    for (Map<String, AttributeValue> attributes : result.getItems()) {
+                        if (!results.accept(ItemUtils.toItem(attributes))) {
+                            break;
+                        }
+                    }
+                    Map<String, AttributeValue> lastKey = result.getLastEvaluatedKey();
+                    if (!results.isFull() && lastKey != null && !lastKey.isEmpty()) {
+                        queryPage(plan, request.clone().withExclusiveStartKey(lastKey), results, start, completion);
+                        return;
+                    }
+                    if (results.isFull()) {
+                        next = MusicQueryCursor.after(plan.getAccess(), 0, results.last, keyAttributes(plan));
+                    }
+                } catch (RuntimeException e) {
+                    completion.failed(e);
+                    return;
+                }
+                plan.setElapsedMillis(System.currentTimeMillis() - start);
+                completion.completed(next);
+            }
+
+            @Override
+            public void onError(Exception e) {
+                completion.failed(e);
+            }
+        });
+    }
+
+    // The attributes DynamoDB expects in an ExclusiveStartKey: the table key, plus the index key for a GSI.
+    private List<String> keyAttributes(MusicQueryPlan plan) {
+        TableStats tableStats = stats();
+        List<String> attributes = new ArrayList<>();
+        attributes.add(tableStats.hashKey);
+        if (tableStats.rangeKey != null) attributes.add(tableStats.rangeKey);
+        String[] indexKey = plan.getIndexName() == null ? null : tableStats.indexes.get(plan.getIndexName());
+        if (indexKey != null) {
+            for (String attribute : indexKey) {
+                if (attribute != null && !attributes.contains(attribute)) attributes.add(attribute);
+            }
+        }
+        return attributes;
+    }
+
+    /*
+     Applies the residual filters, writes the matches out and stops accepting once the limit is reached.
+     It remembers the last song written, which is where the next page has to resume.
+    */
+    private static final class PagedSink {
+        private final MusicQueryPlan plan;
+        private final MusicSearchCriteria criteria;
+        private final int limit;
+        private final Consumer<String> sink;
+        private int written;
+        Item last;
+
+        PagedSink(MusicQueryPlan plan, MusicSearchCriteria criteria, int limit, Consumer<String> sink) {
+            this.plan = plan;
+            this.criteria = criteria;
+            this.limit = limit;
+            this.sink = sink;
+        }
+
+        boolean isFull() {
+            return limit > 0 && written >= limit;
+        }
+
+        // Returns false once no more items are wanted.
+        boolean accept(Item item) {
+            if (isFull()) {
+                return false;
+            }
+            if (item != null && criteria.matches(item)) {
+                plan.recordReturned(1);
+                sink.accept(item.toJSON());
+                written++;
+                last = item;
+            }
+            return !isFull();
+        }
+    }
+
+    private MusicQueryPlan candidate(MusicQueryPlan.Access access, String indexName, String hashKey, String rangeKey,
+                                     MusicSearchCriteria criteria, TableStats tableStats, double rows) {
+        List<String> residual = new ArrayList<>(criteria.attributes());
+        residual.remove(hashKey);
+        residual.remove(rangeKey);
+
+        double itemsRead = Math.max(1, rows);
+        double readUnits;
+        if (access == MusicQueryPlan.Access.GET_ITEM) {
+            readUnits = Math.ceil(tableStats.itemBytes / READ_UNIT_BYTES) * EVENTUALLY_CONSISTENT_UNIT;
+        } else {
+            // Query and Scan add up the size of everything they read and round up once per page.
+            readUnits = Math.ceil(itemsRead * tableStats.itemBytes / READ_UNIT_BYTES) * EVENTUALLY_CONSISTENT_UNIT;
+        }
+        return new MusicQueryPlan(access, indexName, hashKey, rangeKey, residual, itemsRead, readUnits);
+    }
+
+    private static double selectivity(String attribute) {
+        Double value = SELECTIVITY.get(attribute);
+        return value == null ? 0.1 : value;
+    }
+
+    // The last statistics DescribeTable returned, asking for fresh ones in the background once they are old.
+    private TableStats stats() {
+        TableStats current = stats;
+        if ((current == null || System.currentTimeMillis() - current.loadedAt >= STATS_TTL_MILLIS)
+                && describing.compareAndSet(false, true)) {
+            describe();
+        }
+        return current != null ? current : TableStats.defaults();
+    }
+
+    private void describe() {
+        DescribeTableRequest request = new DescribeTableRequest(musicTable.getTableName());
+        DynamoDBManager.getAsyncClient().describeTableAsync(request, new AsyncHandler<DescribeTableRequest, DescribeTableResult>() {
+            @Override
+            public void onSuccess(DescribeTableRequest request, DescribeTableResult result) {
+                stats = TableStats.from(result.getTable());
+                describing.set(false);
+            }
+
+            @Override
+            public void onError(Exception e) {
+                System.err.println("Unable to describe Music table, planning with defaults: " + e.getMessage());
+                stats = TableStats.defaults();
+                describing.set(false);
+            }
+        });
+    }
+
+    /*
+     What the planner knows about the table: its key, the active Global Secondary Indexes with their keys,
+     and the size figures used to cost each access path.
+    */
+    private static final class TableStats {
+        final String hashKey;
+        final String rangeKey;
+        final Map<String, String[]> indexes;
+        final long itemCount;
+        final long itemBytes;
+        final long loadedAt = System.currentTimeMillis();
+
+        TableStats(String hashKey, String rangeKey, Map<String, String[]> indexes, long itemCount, long itemBytes) {
+            this.hashKey = hashKey;
+            this.rangeKey = rangeKey;
+            this.indexes = indexes;
+            this.itemCount = itemCount;
+            this.itemBytes = itemBytes;
+        }
+
+        // The key and the ArtistAlbumIndex created by MusicCreateTable, for when the table cannot be described.
+        static TableStats defaults() {
+            Map<String, String[]> indexes = new LinkedHashMap<>();
+            indexes.put("ArtistAlbumIndex", new String[]{"artist", "album"});
+            return new TableStats("year", "title", indexes, DEFAULT_ITEM_COUNT, DEFAULT_ITEM_BYTES);
+        }
+
+        static TableStats from(TableDescription description) {
+            String[] tableKey = keyOf(description.getKeySchema());
+            Map<String, String[]> indexes = new LinkedHashMap<>();
+            if (description.getGlobalSecondaryIndexes() != null) {
+                for (GlobalSecondaryIndexDescription index : description.getGlobalSecondaryIndexes()) {
+                    if ("ACTIVE".equals(index.getIndexStatus())) {
+                        indexes.put(index.getIndexName(), keyOf(index.getKeySchema()));
+                    }
+                }
+            }
+            long itemCount = description.getItemCount() == null || description.getItemCount() == 0
+                    ? DEFAULT_ITEM_COUNT : description.getItemCount();
+            long itemBytes = description.getTableSizeBytes() == null || description.getTableSizeBytes() == 0
+                    ? DEFAULT_ITEM_BYTES : Math.max(1, description.getTableSizeBytes() / itemCount);
+            return new TableStats(tableKey[0], tableKey[1], indexes, itemCount, itemBytes);
+        }
+
+        private static String[] keyOf(List<KeySchemaElement> keySchema) {
+            String[] key = new String[2];
+            for (KeySchemaElement element : keySchema) {
+                if ("HASH".equals(element.getKeyType())) {
+                    key[0] = element.getAttributeName();
+                } else {
+                    key[1] = element.getAttributeName();
+                }
+            }
+            return key;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+This class holds the search criteria sent to /queryMusic (title, year, artist and album) in one place, so the
+query planner, the catalog index and the servlet all agree on what an empty field or a bad year means. Empty
+strings mean "not given", and a year that is not a number is dropped, which is what the old Scan filters did.
+It can also check whether a song returned by DynamoDB matches every criterion, which is how the residual
+filters that a key lookup cannot express are applied on our side.
+*/
+
+package com.amazonaws;
+
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+public class MusicSearchCriteria {
+
+    private final String title;
+    private final Integer year;
+    private final String artist;
+    private final String album;
+
+    public MusicSearchCriteria(String title, Integer year, String artist, String album) {
+        this.title = title == null ? "" : title;
+        this.year = year;
+        this.artist = artist == null ? "" : artist;
+        this.album = album == null ? "" : album;
+    }
+
+    // Builds the criteria from the /queryMusic request body, ignoring any field that is missing.
+    public static MusicSearchCriteria fromJson(JsonNode jsonNode) {
+        String title = jsonNode.has("title") ? jsonNode.get("title").asText() : "";
+        String year = jsonNode.has("year") ? jsonNode.get("year").asText() : "";
+        String artist = jsonNode.has("artist") ? jsonNode.get("artist").asText() : "";
+        String album = jsonNode.has("album") ? jsonNode.get("album").asText() : "";
+        return new MusicSearchCriteria(title, parseYear(year), artist, album);
+    }
+
+    static Integer parseYear(String year) {
+        if (year == null || year.trim().isEmpty()) {
+            return null;
+        }
+        try {
+            return Integer.parseInt(year.trim());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    public Integer getYear() {
+        return year;
+    }
+
+    public String getArtist() {
+        return artist;
+    }
+
+    public String getAlbum() {
+        return album;
+    }
+
+    public boolean hasTitle() {
+        return !title.isEmpty();
+    }
+
+    public boolean hasYear() {
+        return year != null;
+    }
+
+    public boolean hasArtist() {
+        return !artist.isEmpty();
+    }
+
+    public boolean hasAlbum() {
+        return !album.isEmpty();
+    }
+
+    public boolean isEmpty() {
+        return !hasTitle() && !hasYear() && !hasArtist() && !hasAlbum();
+    }
+
+    // The value given for one of the Music attributes, or null when that attribute was not searched on.
+    public Object valueOf(String attribute) {
+        switch (attribute) {
+            case "title":
+                return hasTitle() ? title : null;
+            case "year":
+                return year;
+            case "artist":
+                return hasArtist() ? artist : null;
+            case "album":
+                return hasAlbum() ? album : null;
+            default:
+                return null;
+        }
+    }
+
+    // Names of the attributes that were actually given, in a fixed order.
+    public List<String> attributes() {
+        List<String> names = new ArrayList<>();
+        if (hasTitle()) names.add("title");
+        if (hasYear()) names.add("year");
+        if (hasArtist()) names.add("artist");
+        if (hasAlbum()) names.add("album");
+        return names;
+    }
+
+    // True when the item carries every value that was searched for.
+    public boolean matches(Item item) {
+        if (hasTitle() && !title.equals(item.getString("title"))) return false;
+        if (hasArtist() && !artist.equals(item.getString("artist"))) return false;
+        if (hasAlbum() && !album.equals(item.getString("album"))) return false;
+        if (hasYear()) {
+            if (!item.hasAttribute("year")) return false;
+            Integer itemYear = parseYear(item.get("year").toString());
+            if (!year.equals(itemYear)) return false;
+        }
+        return true;
+    }
+
+    // Two searches are equal when they ask for the same values, which is what the result cache is keyed on.
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) return true;
+        if (!(other instanceof MusicSearchCriteria)) return false;
+        MusicSearchCriteria that = (MusicSearchCriteria) other;
+        return title.equals(that.title) && Objects.equals(year, that.year)
+                && artist.equals(that.artist) && album.equals(that.album);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(title, year, artist, album);
+    }
+
+    @Override
+    public String toString() {
+        return "title=" + title + ", year=" + (year == null ? "" : year) + ", artist=" + artist + ", album=" + album;
+    }
+}
@@ -0,0 +1,309 @@
+/*
+This class runs a DynamoDB Scan as several parallel segments instead of one long sequential walk over the table.
+The table is split into TotalSegments parts, every segment is read page by page on a shared, bounded pool of
+worker threads, and the pages are handed back to the calling thread through a small queue as soon as they
+arrive, so results can be filtered and written while the other segments are still being read.
+
+In adaptive mode the number of segments that may hit DynamoDB at the same time shrinks every time a segment
+is throttled with ProvisionedThroughputExceededException, and grows back slowly while pages keep succeeding.
+The throttled page is retried from the same position after a short, jittered back-off, so nothing is skipped.
+A page that is still throttled after -Dmusic.scan.max.attempts (8) attempts fails the scan with the throttling
+exception, so a search on a table that stays over its capacity gets an error instead of waiting forever.
+
+Code adapted from the AWS documentation on parallel scans:
+https://docs.aws.amazon.com/amazondynamodb/latest/developerguide/Scan.html#Scan.ParallelScan
+*/
+
+package com.amazonaws;
+
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.ItemUtils;
+import com.amazonaws.services.dynamodbv2.document.KeyAttribute;
+import com.amazonaws.services.dynamodbv2.document.Page;
+import com.amazonaws.services.dynamodbv2.document.ScanOutcome;
+import com.amazonaws.services.dynamodbv2.document.Table;
+import com.amazonaws.services.dynamodbv2.document.spec.ScanSpec;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughputExceededException;
+import com.amazonaws.services.dynamodbv2.model.ReturnConsumedCapacity;
+import com.amazonaws.services.dynamodbv2.model.ScanResult;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ParallelMusicScanner {
+
+    // Number of segments a Scan is split into, and the size of the worker pool shared by every scan.
+    static final int DEFAULT_SEGMENTS = Integer.getInteger("music.scan.segments", 4);
+    private static final int POOL_SIZE = Integer.getInteger("music.scan.threads", 8);
+
+    // Adaptive mode backs off when DynamoDB throttles, it can be switched off with -Dmusic.scan.adaptive=false.
+    private static final boolean ADAPTIVE = Boolean.parseBoolean(System.getProperty("music.scan.adaptive", "true"));
+
+    // Attempts at one page before its ProvisionedThroughputExceededException is passed on to the caller.
+    private static final int MAX_ATTEMPTS = Math.max(1, Integer.getInteger("music.scan.max.attempts", 8));
+
+    private static final long BASE_BACKOFF_MILLIS = 50;
+    private static final long MAX_BACKOFF_MILLIS = 5000;
+
+    private static final AtomicInteger THREAD_IDS = new AtomicInteger();
+    private static final ExecutorService WORKERS = Executors.newFixedThreadPool(POOL_SIZE, runnable -> {
+        Thread thread = new Thread(runnable, "music-scan-" + THREAD_IDS.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /*
+     Receives every page of the scan on the thread that called scan(). Returning false stops the scan,
+     which is how a caller that already has enough results cancels the remaining segments.
+    */
+    public interface PageHandler {
+        boolean onPage(List<Item> items, ScanResult result) throws InterruptedException;
+    }
+
+    private final int totalSegments;
+
+    public ParallelMusicScanner() {
+        this(DEFAULT_SEGMENTS);
+    }
+
+    public ParallelMusicScanner(int totalSegments) {
+        this.totalSegments = Math.max(1, totalSegments);
+    }
+
+    public int getTotalSegments() {
+        return totalSegments;
+    }
+
+    /*
+     Scans the whole table. Each segment is submitted to the worker pool, and this thread merges their
+     pages in whatever order they finish. Returns the number of times a segment was throttled.
+    */
+    public int scan(Table table, PageHandler handler) throws InterruptedException {
+        BlockingQueue<SegmentPage> pages = new ArrayBlockingQueue<>(totalSegments * 2);
+        AtomicBoolean cancelled = new AtomicBoolean();
+        ConcurrencyLimit limit = new ConcurrencyLimit(totalSegments);
+
+        for (int segment = 0; segment < totalSegments; segment++) {
+            final int current = segment;
+            WORKERS.execute(() -> readSegment(table, current, pages, cancelled, limit));
+        }
+
+        int finished = 0;
+        try {
+            while (finished < totalSegments) {
+                SegmentPage page = pages.take();
+                if (page.error != null) {
+                    throw page.error;
+                }
+                if (page.items == null) {
+                    finished++;
+                } else if (!handler.onPage(page.items, page.result)) {
+                    break;
+                }
+            }
+        } finally {
+            cancelled.set(true);
+        }
+        return limit.throttles.get();
+    }
+
+    /*
+     Reads a single segment on the calling thread, starting right after the given key (or at the start of
+     the segment when it is null). Paginated searches use this so that a cursor only ever has to point
+     into one segment. Returns the number of times the segment was throttled.
+    */
+    public int scanSegment(Table table, int segment, KeyAttribute[] startKey, int pageSize, PageHandler handler)
+            throws InterruptedException {
+        ConcurrencyLimit limit = new ConcurrencyLimit(1);
+        readPages(table, segment, startKey, pageSize, limit, new AtomicBoolean(), handler);
+        return limit.throttles.get();
+    }
+
+    /*
+     Reads one segment for scan(). Whatever happens, the segment ends with a last page in the queue, either
+     the end marker or the error, since scan() waits until every segment has sent one.
+    */
+    private void readSegment(Table table, int segment, BlockingQueue<SegmentPage> pages,
+                             AtomicBoolean cancelled, ConcurrencyLimit limit) {
+        RuntimeException error = null;
+        boolean interrupted = false;
+        try {
+            readPages(table, segment, null, 0, limit, cancelled, (items, result) -> {
+                offer(pages, new SegmentPage(items, result, null), cancelled);
+                return !cancelled.get();
+            });
+        } catch (InterruptedException e) {
+            interrupted = true;
+            error = new IllegalStateException("Interrupted while scanning segment " + segment, e);
+        } catch (RuntimeException e) {
+            error = e;
+        } catch (Error e) {
+            error = new IllegalStateException("Segment " + segment + " failed", e);
+            throw e;
+        } finally {
+            SegmentPage last = new SegmentPage(null, null, error);
+            while (true) {
+                try {
+                    offer(pages, last, cancelled);
+                    break;
+                } catch (InterruptedException e) {
+                    // The last page must still get through, the interrupt is restored below.
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /*
+     Pages through one segment, retrying a throttled page from the same key up to MAX_ATTEMPTS times.
+     Stops quietly when the scan is cancelled while it waits to retry.
+    */
+    private void readPages(Table table, int segment, KeyAttribute[] startKey, int pageSize,
+                           ConcurrencyLimit limit, AtomicBoolean cancelled, PageHandler handler) throws InterruptedException {
+        int attempt = 0;
+        while (true) {
+            ScanSpec scanSpec = new ScanSpec()
+                    .withSegment(segment)
+                    .withTotalSegments(totalSegments)
+                    .withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+            if (startKey != null) {
+                scanSpec.withExclusiveStartKey(startKey);
+            }
+            if (pageSize > 0) {
+                scanSpec.withMaxPageSize(pageSize);
+            }
+
+            Page<Item, ScanOutcome> page;
+            limit.acquire();
+            try {
+                page = table.scan(scanSpec).firstPage();
+            } catch (ProvisionedThroughputExceededException e) {
+                limit.onThrottle();
+                if (++attempt >= MAX_ATTEMPTS) {
+                    throw e;
+                }
+                Thread.sleep(backoff(attempt - 1));
+                if (cancelled.get()) {
+                    return;
+                }
+                continue;
+            } finally {
+                limit.release();
+            }
+            limit.onSuccess();
+            attempt = 0;
+
+            List<Item> items = new ArrayList<>(page.size());
+            for (Item item : page) {
+                items.add(item);
+            }
+            ScanResult result = page.getLowLevelResult().getScanResult();
+            if (!handler.onPage(items, result)) {
+                return;
+            }
+
+            Map<String, AttributeValue> lastKey = result.getLastEvaluatedKey();
+            if (lastKey == null || lastKey.isEmpty()) {
+                return;
+            }
+            startKey = toKeyAttributes(lastKey);
+        }
+    }
+
+    // Waits for room in the queue, but gives up as soon as the caller has stopped reading.
+    private static void offer(BlockingQueue<SegmentPage> pages, SegmentPage page, AtomicBoolean cancelled)
+            throws InterruptedException {
+        while (!cancelled.get()) {
+            if (pages.offer(page, 100, TimeUnit.MILLISECONDS)) {
+                return;
+            }
+        }
+    }
+
+    // Exponential back-off with full jitter, so throttled segments do not all retry at the same moment.
+    static long backoff(int attempt) {
+        long ceiling = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << Math.min(attempt, 10));
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    // Turns a LastEvaluatedKey into the key attributes the Document API accepts as ExclusiveStartKey.
+    static KeyAttribute[] toKeyAttributes(Map<String, AttributeValue> key) {
+        Map<String, Object> values = ItemUtils.toSimpleMapValue(key);
+        List<KeyAttribute> attributes = new ArrayList<>(values.size());
+        for (Map.Entry<String, Object> entry : values.entrySet()) {
+            attributes.add(new KeyAttribute(entry.getKey(), entry.getValue()));
+        }
+        return attributes.toArray(new KeyAttribute[0]);
+    }
+
+    private static final class SegmentPage {
+        final List<Item> items;
+        final ScanResult result;
+        final RuntimeException error;
+
+        SegmentPage(List<Item> items, ScanResult result, RuntimeException error) {
+            this.items = items;
+            this.result = result;
+            this.error = error;
+        }
+    }
+
+    /*
+     Caps how many segments of one scan may call DynamoDB at once. A throttle halves the cap and every
+     run of successful pages as long as the cap raises it by one again (additive increase, multiplicative
+     decrease). Without adaptive mode the cap stays at the number of segments.
+    */
+    private static final class ConcurrencyLimit {
+        private final int max;
+        private int limit;
+        private int active;
+        private int successes;
+        final AtomicInteger throttles = new AtomicInteger();
+
+        ConcurrencyLimit(int max) {
+            this.max = max;
+            this.limit = max;
+        }
+
+        synchronized void acquire() throws InterruptedException {
+            while (active >= limit) {
+                wait();
+            }
+            active++;
+        }
+
+        synchronized void release() {
+            active--;
+            notifyAll();
+        }
+
+        synchronized void onThrottle() {
+            throttles.incrementAndGet();
+            if (ADAPTIVE) {
+                limit = Math.max(1, limit / 2);
+                successes = 0;
+            }
+        }
+
+        synchronized void onSuccess() {
+            if (ADAPTIVE && limit < max && ++successes >= limit) {
+                limit++;
+                successes = 0;
+                notifyAll();
+            }
+        }
+    }
+}
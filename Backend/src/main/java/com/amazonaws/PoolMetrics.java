@@ -0,0 +1,183 @@
+/*
+This class collects the AWS SDK request metrics of the shared clients built by DynamoDBManager, one set of figures
+per client. After every request the SDK reports how many connections of the client's pool were leased, how many
+were free and how many requests were waiting for a connection at that moment. A request that saw waiting requests
+is counted as saturated: when that count grows, the pool is too small for the load (-Daws.max.connections).
+
+The figures of every client are printed every -Daws.metrics.log.seconds (60 by default, 0 turns it off) while
+there is traffic.
+
+Code adapted from the AWS SDK documentation on request metric collectors:
+https://docs.aws.amazon.com/AWSJavaSDK/latest/javadoc/com/amazonaws/metrics/RequestMetricCollector.html
+*/
+
+package com.amazonaws;
+
+import com.amazonaws.metrics.RequestMetricCollector;
+import com.amazonaws.util.AWSRequestMetrics;
+import com.amazonaws.util.TimingInfo;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class PoolMetrics {
+
+    private static final int LOG_SECONDS = Integer.getInteger("aws.metrics.log.seconds", 60);
+
+    // Declared after LOG_SECONDS, which the constructor reads to schedule the log.
+    private static final PoolMetrics INSTANCE = new PoolMetrics();
+
+    private final Map<String, ClientStats> clients = new ConcurrentHashMap<>();
+
+    private PoolMetrics() {
+        if (LOG_SECONDS > 0) {
+            ScheduledExecutorService logger = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "aws-pool-metrics");
+                thread.setDaemon(true);
+                return thread;
+            });
+            logger.scheduleAtFixedRate(this::log, LOG_SECONDS, LOG_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    public static PoolMetrics getInstance() {
+        return INSTANCE;
+    }
+
+    // The collector to register on the client with this name, for example "dynamodb" or "s3".
+    public RequestMetricCollector collector(String client) {
+        ClientStats stats = clients.computeIfAbsent(client, ClientStats::new);
+        return new RequestMetricCollector() {
+            @Override
+            public void collectMetrics(Request<?> request, Response<?> response) {
+                stats.record(request.getAWSRequestMetrics(), response == null);
+            }
+        };
+    }
+
+    public ClientStats get(String client) {
+        return clients.get(client);
+    }
+
+    public Map<String, ClientStats> getClients() {
+        return clients;
+    }
+
+    private void log() {
+        for (ClientStats stats : clients.values()) {
+            if (stats.requests.get() != stats.loggedRequests) {
+                stats.loggedRequests = stats.requests.get();
+                System.out.println("🔌 " + stats);
+            }
+        }
+    }
+
+    // The pool figures of one client.
+    public static final class ClientStats {
+        private final String name;
+        private final AtomicLong requests = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+        private final AtomicLong saturated = new AtomicLong();
+        private final AtomicLong totalMillis = new AtomicLong();
+        private final AtomicInteger leased = new AtomicInteger();
+        private final AtomicInteger available = new AtomicInteger();
+        private final AtomicInteger pending = new AtomicInteger();
+        private final AtomicInteger peakLeased = new AtomicInteger();
+        private volatile long loggedRequests;
+
+        ClientStats(String name) {
+            this.name = name;
+
+            Metrics metrics = Metrics.getInstance();
+            metrics.counter("aws_client_requests_total", "AWS SDK requests, by client", requests::get, "client", name);
+            metrics.counter("aws_client_failures_total", "AWS SDK requests that failed, by client", failures::get, "client", name);
+            metrics.counter("aws_client_pool_saturated_total", "AWS SDK requests that found others waiting for a connection",
+                    saturated::get, "client", name);
+            metrics.gauge("aws_client_pool_leased", "Pooled connections in use after the last request", leased::get, "client", name);
+            metrics.gauge("aws_client_pool_available", "Idle pooled connections after the last request", available::get, "client", name);
+            metrics.gauge("aws_client_pool_pending", "Requests waiting for a connection after the last request", pending::get, "client", name);
+            metrics.gauge("aws_client_pool_peak_leased", "Most pooled connections in use at once", peakLeased::get, "client", name);
+        }
+
+        void record(AWSRequestMetrics metrics, boolean failed) {
+            requests.incrementAndGet();
+            if (failed) {
+                failures.incrementAndGet();
+            }
+            if (metrics == null) {
+                return;
+            }
+            TimingInfo timing = metrics.getTimingInfo();
+            int leasedNow = counter(timing, AWSRequestMetrics.Field.HttpClientPoolLeasedCount);
+            int pendingNow = counter(timing, AWSRequestMetrics.Field.HttpClientPoolPendingCount);
+            leased.set(leasedNow);
+            available.set(counter(timing, AWSRequestMetrics.Field.HttpClientPoolAvailableCount));
+            pending.set(pendingNow);
+            peakLeased.accumulateAndGet(leasedNow, Math::max);
+            if (pendingNow > 0) {
+                saturated.incrementAndGet();
+            }
+
+            TimingInfo execute = timing.getSubMeasurement(AWSRequestMetrics.Field.ClientExecuteTime.name());
+            if (execute != null && execute.getTimeTakenMillisIfKnown() != null) {
+                totalMillis.addAndGet(execute.getTimeTakenMillisIfKnown().longValue());
+            }
+        }
+
+        private static int counter(TimingInfo timing, AWSRequestMetrics.Field field) {
+            Number value = timing.getCounter(field.name());
+            return value == null ? 0 : value.intValue();
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getRequests() {
+            return requests.get();
+        }
+
+        public long getFailures() {
+            return failures.get();
+        }
+
+        // Requests that found other requests waiting for a pooled connection.
+        public long getSaturated() {
+            return saturated.get();
+        }
+
+        public long getTotalMillis() {
+            return totalMillis.get();
+        }
+
+        public int getLeased() {
+            return leased.get();
+        }
+
+        public int getAvailable() {
+            return available.get();
+        }
+
+        public int getPending() {
+            return pending.get();
+        }
+
+        public int getPeakLeased() {
+            return peakLeased.get();
+        }
+
+        @Override
+        public String toString() {
+            long count = requests.get();
+            return name + " pool: requests=" + count + ", failures=" + failures.get() + ", leased=" + leased.get()
+                    + ", available=" + available.get() + ", pending=" + pending.get() + ", peakLeased="
+                    + peakLeased.get() + ", saturated=" + saturated.get() + ", avgMillis="
+                    + (count == 0 ? 0 : totalMillis.get() / count);
+        }
+    }
+}
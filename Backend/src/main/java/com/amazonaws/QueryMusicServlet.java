@@ -1,24 +1,24 @@
 /*
 This servlet, handles POST requests to search the "Music" DynamoDB table based on
-provided criteria like title, year, artist, and album. It prioritizes an efficient query using the
-ArtistAlbumIndex Global Secondary Index if both artist and album are supplied. Otherwise, it performs a
-scan with applied filters for the given search terms. The servlet then returns the matching music records
-as a JSON array in the HTTP response.
+provided criteria like title, year, artist, and album. Searches are answered from the in-memory
+MusicCatalogIndex that is loaded when the servlet starts. Only while that index has not been loaded (a failed
+first load is retried in the background) does it go to DynamoDB, where MusicQueryPlanner uses the (year, title) primary key or a Global Secondary Index whenever the
+criteria allow it and only scans when no key fits. The servlet streams the matching music records into a JSON
+array in the HTTP response, page by page, optionally together with an explanation of the plan that was used.
+Repeated searches that had to go to DynamoDB are served from a small LRU/TTL result cache.
+
+Searches answered from memory run on the Jetty thread, as there is nothing to wait for. GetItem and Query plans go
+through the AmazonDynamoDBAsync client, whose callbacks write the results, so no thread waits on DynamoDB; only a
+search that falls back to a Scan still blocks, on AsyncDispatcher's I/O pool.
 */
 
 
 
 package com.amazonaws;
 
-import com.amazonaws.auth.profile.ProfileCredentialsProvider;
-import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
-import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClientBuilder;
 import com.amazonaws.services.dynamodbv2.document.DynamoDB;
-import com.amazonaws.services.dynamodbv2.document.Item;
-import com.amazonaws.services.dynamodbv2.document.ItemCollection;
-import com.amazonaws.services.dynamodbv2.document.ScanFilter;
 import com.amazonaws.services.dynamodbv2.document.Table;
-import com.amazonaws.services.dynamodbv2.document.spec.ScanSpec;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
@@ -28,25 +28,74 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
 
 public class QueryMusicServlet extends HttpServlet {
-    private final AmazonDynamoDB client = AmazonDynamoDBClientBuilder.standard()
-            .withCredentials(new ProfileCredentialsProvider("default"))
-            .withRegion("us-east-1")
-            .build();
-    private final DynamoDB dynamoDB = new DynamoDB(client);
+    private final DynamoDB dynamoDB = DynamoDBManager.getDynamoDB();
     private final Table musicTable = dynamoDB.getTable("Music");
+    private final MusicCatalogIndex catalogIndex = MusicCatalogIndex.getInstance();
+    private final MusicQueryPlanner planner = new MusicQueryPlanner(musicTable, catalogIndex);
+    private final AsyncDispatcher dispatcher = AsyncDispatcher.getInstance();
+
+    // How many results are written between two flushes of the streamed response.
+    private static final int FLUSH_EVERY = 100;
+
+    /*
+     Repeated searches that go to DynamoDB, with -Dcatalog.index.enabled=false or while the catalog has not
+     been loaded, are answered from memory. The cache is keyed by the parsed criteria together with the page
+     limit and cursor and holds up to query.cache.size pages for query.cache.ttl.seconds. Once the catalog is
+     loaded, searches are answered by the index and the cached pages are never read again, so every load
+     drops them. Pages with more than MAX_CACHED_RESULTS songs are not kept.
+    */
+    private static final ResultCache<List<Object>, CachedPage> SEARCH_CACHE = new ResultCache<>("search",
+            Integer.getInteger("query.cache.size", 1000), Integer.getInteger("query.cache.ttl.seconds", 300), TimeUnit.SECONDS);
+    private static final int MAX_CACHED_RESULTS = 500;
+
+    // The catalog index can be switched off with -Dcatalog.index.enabled=false to always query DynamoDB.
+    private static final boolean INDEX_ENABLED =
+            Boolean.parseBoolean(System.getProperty("catalog.index.enabled", "true"));
+
+    // Pre-signs the image URL of every artist in the catalog after each load, -Dimage.prewarm=false to skip it.
+    // The images are signed at the size the search results show them at (100 pixels).
+    private static final boolean PREWARM_IMAGES =
+            Boolean.parseBoolean(System.getProperty("image.prewarm", "true"));
+    private static final int PREWARM_IMAGE_SIZE = Integer.getInteger("image.prewarm.size", 100);
+
+    /*
+     Loads the whole catalog into memory once at startup. If that fails (for example the table is not
+     reachable yet) the servlet still starts and serves searches straight from DynamoDB instead.
+    */
+    @Override
+    public void init() throws ServletException {
+        if (!INDEX_ENABLED) {
+            return;
+        }
+        catalogIndex.addReloadListener(SEARCH_CACHE::invalidateAll);
+        if (PREWARM_IMAGES) {
+            catalogIndex.addReloadListener(() -> ArtistImageUrls.getInstance().prewarm(catalogIndex.artists(), PREWARM_IMAGE_SIZE));
+        }
+        try {
+            catalogIndex.start(musicTable);
+        } catch (Exception e) {
+            System.err.println("Unable to load catalog index, falling back to DynamoDB until it loads: " + e.getMessage());
+        }
+    }
 
 
     /*
      This method processes POST requests to query music data from the DynamoDB "Music" table. It parses
-     the JSON request body to extract optional search parameters like title, year, artist, and album.
-     If both artist and album are provided, it performs an efficient query using the ArtistAlbumIndex GSI.
-     Otherwise, it builds a list of ScanFilters to perform a fallback scan. Matching records are collected
-     as JSON strings and returned in a JSON array in the response.
+     the JSON request body into MusicSearchCriteria (title, year, artist, album) and lets the planner pick
+     the cheapest way to answer it: the in-memory catalog index when it is loaded, otherwise a GetItem on
+     (year, title), a Query on a year partition, a Query on a Global Secondary Index such as
+     ArtistAlbumIndex, or a Scan as the last resort. Matching records are streamed into the "results"
+     array of the response as they are read. An optional "limit" caps the page size, in which case a
+     "cursor" is returned that can be sent back to fetch the next page. When the request sets
+     "explain": true, the chosen plan and the read capacity it consumed are returned after the results.
      */
 
     @Override
@@ -59,74 +108,219 @@ public class QueryMusicServlet extends HttpServlet {
         ObjectMapper objectMapper = new ObjectMapper();
         JsonNode jsonNode = objectMapper.readTree(requestBody);
 
-        String title = jsonNode.has("title") ? jsonNode.get("title").asText() : "";
-        String year = jsonNode.has("year") ? jsonNode.get("year").asText() : "";
-        String artist = jsonNode.has("artist") ? jsonNode.get("artist").asText() : "";
-        String album = jsonNode.has("album") ? jsonNode.get("album").asText() : "";
+        MusicSearchCriteria criteria = MusicSearchCriteria.fromJson(jsonNode);
+        boolean explain = jsonNode.has("explain") && jsonNode.get("explain").asBoolean();
+        int limit = jsonNode.has("limit") ? Math.max(0, jsonNode.get("limit").asInt()) : 0;
+
+        MusicQueryPlan plan = planner.plan(criteria);
+
+        resp.setContentType("application/json");
+        resp.setCharacterEncoding("UTF-8");
 
-        List<String> results = new ArrayList<>();
+        String cursorText = jsonNode.hasNonNull("cursor") ? jsonNode.get("cursor").asText() : "";
+        MusicQueryCursor cursor = null;
+        try {
+            if (!cursorText.isEmpty()) {
+                cursor = MusicQueryCursor.decode(cursorText, criteria);
+                if (cursor.getAccess() != plan.getAccess()) {
+                    throw new IllegalArgumentException("Cursor no longer matches this search");
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            PrintWriter out = resp.getWriter();
+            out.print(objectMapper.writeValueAsString(objectMapper.createObjectNode()
+                    .put("error", e.getMessage() + ", please search again without a cursor")));
+            out.flush();
+            return;
+        }
 
         /*
-         Code and logic adapted for the use of Global Secondary Index (GSI) for efficient querying when
-         both artist and album are given
+         Code and logic adapted for the use of Global Secondary Index (GSI) for efficient querying
          https://docs.aws.amazon.com/amazondynamodb/latest/developerguide/GSI.html
-        */
+         https://docs.aws.amazon.com/amazondynamodb/latest/APIReference/API_Scan.html
 
-        try {
+         Results are streamed: every matching song is written to the response as soon as its page has
+         been read from DynamoDB, so memory per request stays flat however broad the search is.
+         Streaming JSON with Jackson adapted from https://github.com/FasterXML/jackson-core
+        */
+        Search search = new Search(objectMapper, criteria, plan, cursor, cursorText, limit, explain);
 
-            if (!artist.isEmpty() && !album.isEmpty()) {
-                com.amazonaws.services.dynamodbv2.document.Index gsi = musicTable.getIndex("ArtistAlbumIndex");
+        if (search.cached != null || search.plan.getAccess() == MusicQueryPlan.Access.CATALOG_INDEX
+                || !AsyncDispatcher.ENABLED || !req.isAsyncSupported()) {
+            // Answered from memory, or async processing is off: there is nothing to wait for, it runs right here.
+            search.run(planner, resp);
+        } else if (!MusicQueryPlanner.runsAsync(search.plan)) {
+            // A Scan still reads through the blocking client, so it runs on the I/O pool.
+            dispatcher.dispatch(req, resp, (request, response) -> search.run(planner, response));
+        } else {
+            // GetItem and Query go through the async client, and its callbacks write the results.
+            AsyncDispatcher.Exchange exchange = dispatcher.begin(req);
+            try {
+                search.start(exchange.getResponse());
+                planner.executeAsync(search.plan, criteria, cursor, limit, search::accept, new MusicQueryPlanner.Completion() {
+                    @Override
+                    public void completed(MusicQueryCursor next) {
+                        finish(exchange, search, next, null);
+                    }
 
-                com.amazonaws.services.dynamodbv2.document.spec.QuerySpec querySpec = new com.amazonaws.services.dynamodbv2.document.spec.QuerySpec()
-                        .withHashKey("artist", artist)
-                        .withRangeKeyCondition(new com.amazonaws.services.dynamodbv2.document.RangeKeyCondition("album").eq(album));
+                    @Override
+                    public void failed(Exception e) {
+                        finish(exchange, search, null, e);
+                    }
+                });
+            } catch (IOException | RuntimeException e) {
+                finish(exchange, search, null, e);
+            }
+        }
+    }
 
-                ItemCollection<?> items = gsi.query(querySpec);
-                items.forEach(item -> results.add(item.toJSON()));
+    private static void finish(AsyncDispatcher.Exchange exchange, Search search, MusicQueryCursor next, Exception failure) {
+        try {
+            search.finish(next, failure);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Search aborted while writing results: " + e.getMessage());
+        } finally {
+            exchange.complete();
+        }
+    }
 
-                /*
-                 Even though scanning a table is resource-intensive compared to querying,
-                 there are many permutations of how title, album, artist, and year can be combined.
-                 Therefore, we apply our learning by using Query only when both artist and album are provided,
-                 and fallback to Scan for other combinations.
-                */
+    /*
+     One search as it is written into the response. Matching songs are streamed out as the planner reads
+     them, and a page that came from DynamoDB is kept for the result cache. run() does the whole search on
+     the calling thread; with the async client start(), accept() and finish() are called as the pages arrive.
+    */
+    private static final class Search {
+        final ObjectMapper objectMapper;
+        final MusicSearchCriteria criteria;
+        final MusicQueryCursor cursor;
+        final int limit;
+        final boolean explain;
+        final List<Object> cacheKey;
+        final CachedPage cached;
+        final List<String> collected;
+        MusicQueryPlan plan;
 
+        private JsonGenerator generator;
+        private int written;
 
-            } else {
+        Search(ObjectMapper objectMapper, MusicSearchCriteria criteria, MusicQueryPlan plan, MusicQueryCursor cursor,
+               String cursorText, int limit, boolean explain) {
+            this.objectMapper = objectMapper;
+            this.criteria = criteria;
+            this.plan = plan;
+            this.cursor = cursor;
+            this.limit = limit;
+            this.explain = explain;
 
+            // The in-memory catalog is already faster than a cache lookup would be, so only DynamoDB results are cached.
+            this.cacheKey = Arrays.asList(criteria, limit, cursorText);
+            boolean cacheable = plan.getAccess() != MusicQueryPlan.Access.CATALOG_INDEX;
+            this.cached = cacheable ? SEARCH_CACHE.get(cacheKey) : null;
+            if (cached != null) {
+                this.plan = new MusicQueryPlan(MusicQueryPlan.Access.RESULT_CACHE, null, null, null,
+                        criteria.attributes(), 0, 0);
+                this.plan.recordReturned(cached.results.size());
+            }
+            this.collected = cacheable && cached == null ? new ArrayList<>() : null;
+        }
 
-                /*
-                 Code adapted and learned to use the scanning the full table with filters if GSI is not usable
-                 https://docs.aws.amazon.com/amazondynamodb/latest/APIReference/API_Scan.html
-                */
+        void start(HttpServletResponse resp) throws IOException {
+            generator = objectMapper.getFactory().createGenerator(resp.getOutputStream());
+            generator.writeStartObject();
+            generator.writeArrayFieldStart("results");
+        }
 
-                List<ScanFilter> filters = new ArrayList<>();
-                if (!title.isEmpty()) filters.add(new ScanFilter("title").eq(title));
-                if (!year.isEmpty()) {
-                    try {
-                        int yearInt = Integer.parseInt(year);
-                        filters.add(new ScanFilter("year").eq(yearInt));
-                    } catch (NumberFormatException ignored) {}
+        void accept(String json) {
+            try {
+                generator.writeRawValue(json);
+                // Push the first match out straight away, then flush in batches.
+                if (written++ % FLUSH_EVERY == 0) {
+                    generator.flush();
                 }
-                if (!artist.isEmpty()) filters.add(new ScanFilter("artist").eq(artist));
-                if (!album.isEmpty()) filters.add(new ScanFilter("album").eq(album));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            if (collected != null && collected.size() <= MAX_CACHED_RESULTS) {
+                collected.add(json);
+            }
+        }
 
-                ScanSpec scanSpec = new ScanSpec();
-                if (!filters.isEmpty()) scanSpec.withScanFilters(filters.toArray(new ScanFilter[0]));
+        void run(MusicQueryPlanner planner, HttpServletResponse resp) throws IOException {
+            start(resp);
+            if (cached != null) {
+                for (String json : cached.results) {
+                    generator.writeRawValue(json);
+                }
+                end(cached.cursor, null);
+                return;
+            }
+            MusicQueryCursor next;
+            try {
+                next = planner.execute(plan, criteria, cursor, limit, this::accept);
+            } catch (Exception e) {
+                finish(null, e);
+                return;
+            }
+            finish(next, null);
+        }
 
-                ItemCollection<?> items = musicTable.scan(scanSpec);
-                items.forEach(item -> results.add(item.toJSON()));
+        // Ends the response once the planner is done, with the exception it failed with, if any.
+        void finish(MusicQueryCursor next, Exception failure) throws IOException {
+            if (failure instanceof UncheckedIOException) {
+                // The client went away while results were being written, nothing more can be sent.
+                System.err.println("Search aborted while writing results: " + failure.getMessage());
+                return;
+            }
+            String nextCursor = null;
+            String error = null;
+            if (failure != null) {
+                failure.printStackTrace();
+                error = "Search failed: " + failure.getMessage();
+            } else {
+                nextCursor = next == null ? null : next.encode(criteria);
+                if (collected != null && collected.size() <= MAX_CACHED_RESULTS) {
+                    SEARCH_CACHE.put(cacheKey, new CachedPage(collected, nextCursor));
+                }
             }
+            end(nextCursor, error);
+        }
 
-        } catch (Exception e) {
-            e.printStackTrace();
+        private void end(String nextCursor, String error) throws IOException {
+            System.out.println("🔎 Search [" + criteria + "] via " + plan + ", consumed "
+                    + plan.getConsumedReadUnits() + " RCU");
+
+            generator.writeEndArray();
+            if (nextCursor != null) {
+                generator.writeStringField("cursor", nextCursor);
+            }
+            if (error != null) {
+                generator.writeStringField("error", error);
+            }
+            if (explain) {
+                generator.writeFieldName("plan");
+                generator.writeTree(plan.toJson(objectMapper));
+                generator.writeObjectFieldStart("cache");
+                generator.writeNumberField("size", SEARCH_CACHE.size());
+                generator.writeNumberField("hits", SEARCH_CACHE.getHits());
+                generator.writeNumberField("misses", SEARCH_CACHE.getMisses());
+                generator.writeNumberField("evictions", SEARCH_CACHE.getEvictions());
+                generator.writeEndObject();
+            }
+            generator.writeEndObject();
+            generator.close();
         }
+    }
 
-        // Send results back
-        resp.setContentType("application/json");
-        PrintWriter out = resp.getWriter();
-        out.print("{\"results\": " + results + "}");
-        out.flush();
+    // One page of search results as it was sent, together with the cursor for the page after it.
+    private static final class CachedPage {
+        final List<String> results;
+        final String cursor;
+
+        CachedPage(List<String> results, String cursor) {
+            this.results = results;
+            this.cursor = cursor;
+        }
     }
 
 }
@@ -7,33 +7,24 @@ registered. The servlet responds with a JSON object indicating the success or fa
 
 package com.amazonaws;
 
-import com.amazonaws.auth.profile.ProfileCredentialsProvider;
 import com.amazonaws.services.dynamodbv2.document.DynamoDB;
 import com.amazonaws.services.dynamodbv2.document.Table;
 import com.amazonaws.services.dynamodbv2.document.spec.GetItemSpec;
 import com.amazonaws.services.dynamodbv2.document.spec.PutItemSpec;
 import com.amazonaws.services.dynamodbv2.document.Item;
-import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
-import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClientBuilder;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import javax.servlet.ServletException;
-import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.Scanner;
 
-public class RegisterServlet extends HttpServlet {
+public class RegisterServlet extends AsyncHttpServlet {
 
-    // Establishing connection to DynamoDB using AWS SDK and local profile
-    private final AmazonDynamoDB client = AmazonDynamoDBClientBuilder.standard()
-            .withCredentials(new ProfileCredentialsProvider("default"))
-            .withRegion("us-east-1")
-            .build();
-
-    private final DynamoDB dynamoDB = new DynamoDB(client);
+    // Connection to DynamoDB through the client shared by all servlets
+    private final DynamoDB dynamoDB = DynamoDBManager.getDynamoDB();
     private final Table table = dynamoDB.getTable("Login");
 
 
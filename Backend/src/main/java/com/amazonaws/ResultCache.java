@@ -0,0 +1,136 @@
+/*
+This class is a small in-memory cache used by the servlets to answer repeated requests without going back to
+DynamoDB or S3. It holds at most a fixed number of entries and drops the least recently used one when it is
+full, and every entry also expires after a fixed time to live so that changes in the tables show up again.
+Entries can be dropped explicitly through invalidate() and invalidateAll(), which is what a catalog reload
+calls, and hit, miss and eviction counters are kept so we can see how well the cache is doing.
+*/
+
+package com.amazonaws;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ResultCache<K, V> {
+
+    private final String name;
+    private final int maxEntries;
+    private final long ttlMillis;
+    private final LinkedHashMap<K, CacheEntry<V>> entries;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+
+    public ResultCache(String name, int maxEntries, long ttl, TimeUnit unit) {
+        this.name = name;
+        this.maxEntries = maxEntries;
+        this.ttlMillis = unit.toMillis(ttl);
+
+        Metrics metrics = Metrics.getInstance();
+        metrics.gauge("cache_entries", "Entries held by an in-memory cache", this::size, "cache", name);
+        metrics.counter("cache_hits_total", "Lookups answered by an in-memory cache", hits::get, "cache", name);
+        metrics.counter("cache_misses_total", "Lookups an in-memory cache could not answer", misses::get, "cache", name);
+        metrics.counter("cache_evictions_total", "Entries dropped because an in-memory cache was full", evictions::get, "cache", name);
+        metrics.counter("cache_expirations_total", "Entries dropped because they expired", expirations::get, "cache", name);
+        // Access order makes the eldest entry the least recently used one.
+        this.entries = new LinkedHashMap<K, CacheEntry<V>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, CacheEntry<V>> eldest) {
+                if (size() > ResultCache.this.maxEntries) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    // Returns the cached value, or null when there is none or it has expired.
+    public V get(K key) {
+        if (maxEntries <= 0) {
+            return null;
+        }
+        synchronized (entries) {
+            CacheEntry<V> entry = entries.get(key);
+            if (entry == null) {
+                misses.incrementAndGet();
+                return null;
+            }
+            if (entry.expiresAt <= System.currentTimeMillis()) {
+                entries.remove(key);
+                expirations.incrementAndGet();
+                misses.incrementAndGet();
+                return null;
+            }
+            hits.incrementAndGet();
+            return entry.value;
+        }
+    }
+
+    public void put(K key, V value) {
+        if (maxEntries <= 0 || value == null) {
+            return;
+        }
+        synchronized (entries) {
+            entries.put(key, new CacheEntry<>(value, System.currentTimeMillis() + ttlMillis));
+        }
+    }
+
+    public void invalidate(K key) {
+        synchronized (entries) {
+            entries.remove(key);
+        }
+    }
+
+    public void invalidateAll() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public long getExpirations() {
+        return expirations.get();
+    }
+
+    @Override
+    public String toString() {
+        return name + " cache: size=" + size() + ", hits=" + hits.get() + ", misses=" + misses.get()
+                + ", evictions=" + evictions.get() + ", expirations=" + expirations.get();
+    }
+
+    private static final class CacheEntry<V> {
+        final V value;
+        final long expiresAt;
+
+        CacheEntry(V value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
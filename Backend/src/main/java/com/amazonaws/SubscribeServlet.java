@@ -3,20 +3,26 @@ This servlet, manages user subscriptions to music in the "subscriptions" DynamoD
 It handles both subscribing to and unsubscribing from songs via POST requests. Upon receiving a request with
 user email, song details (title, artist, album, year), and an optional "action" parameter
 ("subscribe" or "unsubscribe"), it either adds a new subscription record or deletes an existing one. It also
-includes logic to generate a unique song ID if not provided and checks if a subscription already exists before
-performing the action. The servlet responds with a JSON object indicating the success or failure of the operation.
+includes logic to generate a unique song ID if not provided. Whether the subscription already exists is checked
+by DynamoDB itself through a condition on the write, so every action is a single round trip. That write goes
+through the AmazonDynamoDBAsync client and its callback writes the response, so no thread waits on DynamoDB. In
+write-behind mode (-Dsubscriptions.writebehind=true) the action is only appended to the local SubscriptionWriteBehind
+journal, on AsyncDispatcher's I/O pool, and written to the table later in a batch. The servlet responds with a JSON object indicating the success or failure of the operation.
 */
 
 package com.amazonaws;
 
-import com.amazonaws.auth.profile.ProfileCredentialsProvider;
-import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
-import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClientBuilder;
 import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+import com.amazonaws.services.dynamodbv2.document.ItemUtils;
 import com.amazonaws.services.dynamodbv2.document.Table;
 import com.amazonaws.services.dynamodbv2.document.spec.PutItemSpec;
 import com.amazonaws.services.dynamodbv2.document.spec.DeleteItemSpec;
-import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
+import com.amazonaws.services.dynamodbv2.model.DeleteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.DeleteItemResult;
+import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
+import com.amazonaws.services.dynamodbv2.model.PutItemResult;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
@@ -26,17 +32,32 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Scanner;
 
 public class SubscribeServlet extends HttpServlet {
 
-    private final AmazonDynamoDB client = AmazonDynamoDBClientBuilder.standard()
-            .withCredentials(new ProfileCredentialsProvider("default"))
-            .withRegion("us-east-1")
-            .build();
+    private static final String TABLE_NAME = "subscriptions";
 
-    private final DynamoDB dynamoDB = new DynamoDB(client);
-    private final Table subscriptionsTable = dynamoDB.getTable("subscriptions");
+    private final DynamoDB dynamoDB = DynamoDBManager.getDynamoDB();
+    private final Table subscriptionsTable = dynamoDB.getTable(TABLE_NAME);
+    private final AsyncDispatcher dispatcher = AsyncDispatcher.getInstance();
+    private final SubscriptionCache cache = SubscriptionCache.getInstance();
+    private final SubscriptionWriteBehind writeBehind = SubscriptionWriteBehind.getInstance();
+
+    // Replays the write-behind journal at startup, so writes acknowledged before a crash are not lost.
+    @Override
+    public void init() throws ServletException {
+        if (SubscriptionWriteBehind.ENABLED) {
+            try {
+                writeBehind.start(new SubscriptionBatchWriter(dynamoDB, TABLE_NAME));
+            } catch (IOException e) {
+                throw new ServletException("Unable to open the subscription write-behind journal", e);
+            }
+        }
+    }
 
     @Override
     protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
@@ -67,7 +88,7 @@ public class SubscribeServlet extends HttpServlet {
         String year = jsonNode.get("year").asText();
         String action = jsonNode.has("action") ? jsonNode.get("action").asText() : "subscribe"; // "subscribe" or "unsubscribe"
 
-        String songId = jsonNode.has("song_id") ? jsonNode.get("song_id").asText() : generateSongId(title, artist, album);
+        String songId = jsonNode.has("song_id") ? jsonNode.get("song_id").asText() : Subscription.generateSongId(title, artist, album);
 
         if (songId == null || songId.isEmpty()) {
             sendErrorResponse(resp, "Error: Song does not have an ID.");
@@ -76,85 +97,123 @@ public class SubscribeServlet extends HttpServlet {
 
         System.out.println("Generated Song ID: " + songId); // Debugging
 
-        if (action.equals("unsubscribe")) {
-            unsubscribeSong(email, songId, resp);
+        boolean async = AsyncDispatcher.ENABLED && req.isAsyncSupported();
+        if (SubscriptionWriteBehind.ENABLED) {
+            SubscriptionBatchWriter.Write write = action.equals("unsubscribe")
+                    ? SubscriptionBatchWriter.Write.unsubscribe(email, songId)
+                    : SubscriptionBatchWriter.Write.subscribe(new Subscription(email, songId, title, artist, album, year));
+            // Appending to the journal blocks on the disk, so it runs on the I/O pool.
+            dispatcher.dispatch(req, resp, (request, response) -> enqueue(write, response));
+        } else if (action.equals("unsubscribe")) {
+            unsubscribeSong(email, songId, req, resp, async);
         } else {
-            subscribeSong(email, songId, title, artist, album, year, resp);
+            subscribeSong(new Subscription(email, songId, title, artist, album, year), req, resp, async);
         }
     }
 
     // Handles song subscription
-    private void subscribeSong(String email, String songId, String title, String artist, String album, String year, HttpServletResponse resp) throws IOException {
-        if (isSongSubscribed(email, songId)) {
-            sendErrorResponse(resp, "You have already subscribed to this song.");
+    private void subscribeSong(Subscription subscription, HttpServletRequest req, HttpServletResponse resp, boolean async) throws IOException {
+        /*
+        Code adapted from AWS SDK for Java documentation on the DynamoDB Document API for putting an item:
+        https://docs.aws.amazon.com/amazondynamodb/latest/APIReference/API_PutItem.html
+
+        The condition makes DynamoDB reject the put when the user already has this song, instead of
+        reading the item first and racing another request between the read and the write.
+        https://docs.aws.amazon.com/amazondynamodb/latest/developerguide/Expressions.ConditionExpressions.html
+        */
+        if (async) {
+            AsyncDispatcher.Exchange exchange = dispatcher.begin(req);
+            PutItemRequest request = new PutItemRequest(TABLE_NAME, ItemUtils.toAttributeValues(subscription.toItem()))
+                    .withConditionExpression("attribute_not_exists(song_id)");
+            DynamoDBManager.getAsyncClient().putItemAsync(request, AsyncDispatcher.<PutItemRequest, PutItemResult>completing(exchange,
+                    (response, result, error) -> subscribed(response, subscription, error)));
             return;
         }
-
         try {
-            /*
-            Code adapted from AWS SDK for Java documentation on the DynamoDB Document API for putting an item:
-            https://docs.aws.amazon.com/amazondynamodb/latest/APIReference/API_PutItem.html
-            */
-            Item item = new Item()
-                    .withPrimaryKey("email", email, "song_id", songId)
-                    .withString("title", title)
-                    .withString("artist", artist)
-                    .withString("album", album)
-                    .withString("year", year);
-
-            subscriptionsTable.putItem(new PutItemSpec().withItem(item));
-
-            sendSuccessResponse(resp, "Subscribed to " + title + " by " + artist);
+            subscriptionsTable.putItem(new PutItemSpec()
+                    .withItem(subscription.toItem())
+                    .withConditionExpression("attribute_not_exists(song_id)"));
         } catch (Exception e) {
-            sendErrorResponse(resp, "Error subscribing to song: " + e.getMessage());
+            subscribed(resp, subscription, e);
+            return;
+        }
+        subscribed(resp, subscription, null);
+    }
+
+    // Answers a subscribe once its put has returned, with the exception it failed with, if any.
+    private void subscribed(HttpServletResponse resp, Subscription subscription, Exception error) throws IOException {
+        if (error == null) {
+            // Write-through, so the next /fetchSubscriptions is served from memory.
+            cache.onSubscribed(subscription);
+            sendSuccessResponse(resp, "Subscribed to " + subscription.getTitle() + " by " + subscription.getArtist());
+        } else if (error instanceof ConditionalCheckFailedException) {
+            sendErrorResponse(resp, "You have already subscribed to this song.");
+        } else {
+            sendErrorResponse(resp, "Error subscribing to song: " + error.getMessage());
         }
     }
 
 
-    private void unsubscribeSong(String email, String songId, HttpServletResponse resp) throws IOException {
-        if (!isSongSubscribed(email, songId)) {
-            sendErrorResponse(resp, "You are not subscribed to this song.");
+    private void unsubscribeSong(String email, String songId, HttpServletRequest req, HttpServletResponse resp, boolean async) throws IOException {
+        /*
+        Code adapted from AWS SDK for Java documentation on the DynamoDB Document API for deleting an item:
+        https://docs.aws.amazon.com/AmazonS3/latest/userguide/delete-objects.html
+        */
+        if (async) {
+            AsyncDispatcher.Exchange exchange = dispatcher.begin(req);
+            Map<String, AttributeValue> key = new HashMap<>();
+            key.put("email", new AttributeValue(email));
+            key.put("song_id", new AttributeValue(songId));
+            DeleteItemRequest request = new DeleteItemRequest()
+                    .withTableName(TABLE_NAME)
+                    .withKey(key)
+                    .withConditionExpression("attribute_exists(song_id)");
+            DynamoDBManager.getAsyncClient().deleteItemAsync(request, AsyncDispatcher.<DeleteItemRequest, DeleteItemResult>completing(exchange,
+                    (response, result, error) -> unsubscribed(response, email, songId, error)));
             return;
         }
-
         try {
-            /*
-            Code adapted from AWS SDK for Java documentation on the DynamoDB Document API for deleting an item:
-            https://docs.aws.amazon.com/AmazonS3/latest/userguide/delete-objects.html
-            */
-            subscriptionsTable.deleteItem(new DeleteItemSpec().withPrimaryKey("email", email, "song_id", songId));
-
-            sendSuccessResponse(resp, "Unsubscribed from the song.");
+            subscriptionsTable.deleteItem(new DeleteItemSpec()
+                    .withPrimaryKey("email", email, "song_id", songId)
+                    .withConditionExpression("attribute_exists(song_id)"));
         } catch (Exception e) {
-            sendErrorResponse(resp, "Error unsubscribing from song: " + e.getMessage());
+            unsubscribed(resp, email, songId, e);
+            return;
         }
+        unsubscribed(resp, email, songId, null);
     }
 
-    // Generates a unique song ID (standard Java string manipulation).
-    private String generateSongId(String title, String artist, String album) {
-        if (title == null || artist == null || album == null) {
-            return null;
+    private void unsubscribed(HttpServletResponse resp, String email, String songId, Exception error) throws IOException {
+        if (error == null) {
+            cache.onUnsubscribed(email, songId);
+            sendSuccessResponse(resp, "Unsubscribed from the song.");
+        } else if (error instanceof ConditionalCheckFailedException) {
+            sendErrorResponse(resp, "You are not subscribed to this song.");
+        } else {
+            sendErrorResponse(resp, "Error unsubscribing from song: " + error.getMessage());
         }
-        return (title + "_" + artist + "_" + album).replaceAll("\\s+", "").toLowerCase();
     }
 
-    // Checks if a song is already subscribed
-    private boolean isSongSubscribed(String email, String songId) {
+    /*
+     Write-behind: the action is acknowledged once it is in the journal on disk. The table is written by
+     the next background flush, so a subscribe that is already there is simply written again.
+    */
+    private void enqueue(SubscriptionBatchWriter.Write write, HttpServletResponse resp) throws IOException {
         try {
-
-            /*
-             Code adapted from AWS SDK for Java documentation on the DynamoDB Document API for getting an item:
-             https://docs.aws.amazon.com/amazondynamodb/latest/developerguide/example_dynamodb_GetItem_section.html
-            */
-            Item existingItem = subscriptionsTable.getItem("email", email, "song_id", songId);
-            return existingItem != null;
+            writeBehind.enqueue(Collections.singletonList(write));
+            if (write.isSubscribe()) {
+                cache.onSubscribed(write.getSubscription());
+                sendSuccessResponse(resp, "Subscribed to " + write.getSubscription().getTitle() + " by "
+                        + write.getSubscription().getArtist());
+            } else {
+                cache.onUnsubscribed(write.getEmail(), write.getSongId());
+                sendSuccessResponse(resp, "Unsubscribed from the song.");
+            }
         } catch (Exception e) {
-            System.err.println("Error checking subscription: " + e.getMessage());
-            return false;
+            sendErrorResponse(resp, "Error saving subscription: " + e.getMessage());
         }
     }
 
-
     private void sendErrorResponse(HttpServletResponse resp, String message) throws IOException {
         resp.setContentType("application/json");
         PrintWriter out = resp.getWriter();
@@ -0,0 +1,75 @@
+/*
+This class is one row of the "subscriptions" table: the user's email (partition key), the song_id (sort key)
+and the song details that are copied in when the user subscribes. It is shared by the servlets that read and
+write subscriptions and by the per-user SubscriptionCache, so they all convert to and from DynamoDB items the
+same way.
+*/
+
+package com.amazonaws;
+
+import com.amazonaws.services.dynamodbv2.document.Item;
+
+public class Subscription {
+
+    private final String email;
+    private final String songId;
+    private final String title;
+    private final String artist;
+    private final String album;
+    private final String year;
+
+    public Subscription(String email, String songId, String title, String artist, String album, String year) {
+        this.email = email;
+        this.songId = songId;
+        this.title = title;
+        this.artist = artist;
+        this.album = album;
+        this.year = year;
+    }
+
+    public static Subscription fromItem(Item item) {
+        return new Subscription(item.getString("email"), item.getString("song_id"), item.getString("title"),
+                item.getString("artist"), item.getString("album"), item.getString("year"));
+    }
+
+    // Generates a unique song ID (standard Java string manipulation).
+    public static String generateSongId(String title, String artist, String album) {
+        if (title == null || artist == null || album == null) {
+            return null;
+        }
+        return (title + "_" + artist + "_" + album).replaceAll("\\s+", "").toLowerCase();
+    }
+
+    public Item toItem() {
+        return new Item()
+                .withPrimaryKey("email", email, "song_id", songId)
+                .withString("title", title)
+                .withString("artist", artist)
+                .withString("album", album)
+                .withString("year", year);
+    }
+
+    public String getEmail() {
+        return email;
+    }
+
+    public String getSongId() {
+        return songId;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    public String getArtist() {
+        return artist;
+    }
+
+    public String getAlbum() {
+        return album;
+    }
+
+    public String getYear() {
+        return year;
+    }
+}
@@ -0,0 +1,201 @@
+/*
+This class writes many subscribe and unsubscribe actions to the "subscriptions" table with BatchWriteItem
+instead of one PutItem or DeleteItem per song. Actions are de-duplicated by (email, song_id) first, keeping
+the last one, because DynamoDB rejects a batch that names the same key twice. They are then sent 25 at a time,
+which is the most a single BatchWriteItem call accepts.
+
+DynamoDB may write only part of a batch and hand the rest back as UnprocessedItems, usually when the table is
+being throttled. Those items are sent again after a jittered, exponential back-off until they go through or
+subscriptions.batch.attempts is reached, and whatever is left is reported back as failed.
+
+Code adapted from the AWS documentation on batch writes:
+https://docs.aws.amazon.com/amazondynamodb/latest/developerguide/batch-operation-document-api-java.html
+https://docs.aws.amazon.com/amazondynamodb/latest/APIReference/API_BatchWriteItem.html
+*/
+
+package com.amazonaws;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.dynamodbv2.document.BatchWriteItemOutcome;
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+import com.amazonaws.services.dynamodbv2.document.TableWriteItems;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughputExceededException;
+import com.amazonaws.services.dynamodbv2.model.RequestLimitExceededException;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public class SubscriptionBatchWriter {
+
+    // The most items a single BatchWriteItem call accepts.
+    static final int MAX_BATCH_SIZE = 25;
+
+    // How many times a batch is sent before its unprocessed items are given up on.
+    private static final int MAX_ATTEMPTS = Integer.getInteger("subscriptions.batch.attempts", 8);
+
+    private final DynamoDB dynamoDB;
+    private final String tableName;
+
+    public SubscriptionBatchWriter(DynamoDB dynamoDB, String tableName) {
+        this.dynamoDB = dynamoDB;
+        this.tableName = tableName;
+    }
+
+    /*
+     Writes all the given actions and returns the ones that could not be written, keyed by
+     Write.key() with the reason. An empty map means every action was applied.
+    */
+    public Map<List<String>, String> write(Collection<Write> writes) throws InterruptedException {
+        Map<List<String>, Write> latest = new LinkedHashMap<>();
+        for (Write write : writes) {
+            latest.put(write.key(), write);
+        }
+
+        Map<List<String>, String> failures = new LinkedHashMap<>();
+        List<Write> batch = new ArrayList<>(MAX_BATCH_SIZE);
+        for (Write write : latest.values()) {
+            batch.add(write);
+            if (batch.size() == MAX_BATCH_SIZE) {
+                writeBatch(batch, failures);
+                batch = new ArrayList<>(MAX_BATCH_SIZE);
+            }
+        }
+        if (!batch.isEmpty()) {
+            writeBatch(batch, failures);
+        }
+        return failures;
+    }
+
+    // Sends one batch of at most 25 writes, resending the unprocessed ones after a back-off.
+    private void writeBatch(List<Write> batch, Map<List<String>, String> failures) throws InterruptedException {
+        List<Write> remaining = batch;
+        for (int attempt = 0; !remaining.isEmpty(); attempt++) {
+            if (attempt >= MAX_ATTEMPTS) {
+                for (Write write : remaining) {
+                    failures.put(write.key(), "Not written after " + MAX_ATTEMPTS + " attempts, please try again.");
+                }
+                return;
+            }
+            if (attempt > 0) {
+                Thread.sleep(ParallelMusicScanner.backoff(attempt));
+            }
+
+            try {
+                BatchWriteItemOutcome outcome = dynamoDB.batchWriteItem(toTableWriteItems(remaining));
+                remaining = unprocessed(remaining, outcome.getUnprocessedItems());
+            } catch (ProvisionedThroughputExceededException | RequestLimitExceededException e) {
+                // Nothing in the batch was written, so the same writes are sent again after the back-off.
+                System.out.println("⏳ Batch of " + remaining.size() + " subscription writes throttled, retrying");
+            } catch (AmazonServiceException e) {
+                if (e.getErrorType() == AmazonServiceException.ErrorType.Client && remaining.size() > 1) {
+                    // One invalid write, say a ValidationException, fails the whole batch. Each write is sent on
+                    // its own so only the one at fault is reported and the others still go through.
+                    for (Write write : remaining) {
+                        writeBatch(Collections.singletonList(write), failures);
+                    }
+                    return;
+                }
+                for (Write write : remaining) {
+                    failures.put(write.key(), e.getMessage());
+                }
+                return;
+            } catch (Exception e) {
+                for (Write write : remaining) {
+                    failures.put(write.key(), e.getMessage());
+                }
+                return;
+            }
+        }
+    }
+
+    private TableWriteItems toTableWriteItems(List<Write> writes) {
+        TableWriteItems items = new TableWriteItems(tableName);
+        for (Write write : writes) {
+            if (write.isSubscribe()) {
+                items.addItemToPut(write.getSubscription().toItem());
+            } else {
+                items.addHashAndRangePrimaryKeyToDelete("email", write.getEmail(), "song_id", write.getSongId());
+            }
+        }
+        return items;
+    }
+
+    // Picks the writes that DynamoDB handed back as UnprocessedItems.
+    private static List<Write> unprocessed(List<Write> sent, Map<String, List<WriteRequest>> unprocessedItems) {
+        if (unprocessedItems == null || unprocessedItems.isEmpty()) {
+            return new ArrayList<>();
+        }
+        Set<List<String>> keys = new HashSet<>();
+        for (List<WriteRequest> requests : unprocessedItems.values()) {
+            for (WriteRequest request : requests) {
+                Map<String, AttributeValue> key = request.getPutRequest() != null
+                        ? request.getPutRequest().getItem()
+                        : request.getDeleteRequest().getKey();
+                keys.add(Arrays.asList(key.get("email").getS(), key.get("song_id").getS()));
+            }
+        }
+        List<Write> remaining = new ArrayList<>();
+        for (Write write : sent) {
+            if (keys.contains(write.key())) {
+                remaining.add(write);
+            }
+        }
+        return remaining;
+    }
+
+    /*
+     One subscribe (a put of the whole subscription) or unsubscribe (a delete of its key). Unlike the
+     single-song writes in SubscribeServlet these are unconditional, BatchWriteItem does not support
+     condition expressions, so subscribing twice or unsubscribing a missing song simply succeeds.
+    */
+    public static final class Write {
+        private final String email;
+        private final String songId;
+        private final Subscription subscription;
+
+        private Write(String email, String songId, Subscription subscription) {
+            this.email = email;
+            this.songId = songId;
+            this.subscription = subscription;
+        }
+
+        public static Write subscribe(Subscription subscription) {
+            return new Write(subscription.getEmail(), subscription.getSongId(), subscription);
+        }
+
+        public static Write unsubscribe(String email, String songId) {
+            return new Write(email, songId, null);
+        }
+
+        public boolean isSubscribe() {
+            return subscription != null;
+        }
+
+        public String getEmail() {
+            return email;
+        }
+
+        public String getSongId() {
+            return songId;
+        }
+
+        // Only set for a subscribe.
+        public Subscription getSubscription() {
+            return subscription;
+        }
+
+        // The (email, song_id) primary key the write applies to.
+        public List<String> key() {
+            return Arrays.asList(email, songId);
+        }
+    }
+}
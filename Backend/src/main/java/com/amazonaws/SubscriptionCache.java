@@ -0,0 +1,105 @@
+/*
+This class keeps each user's subscriptions in memory so that loading the main page does not have to read the
+"subscriptions" table every time. A user's list is loaded with one Query on their email the first time it is
+needed, and from then on SubscribeServlet writes every subscribe and unsubscribe through to it as soon as the
+DynamoDB write has succeeded. The API Gateway Lambdas can change the table without going through this backend: the
+frontend reloads with /fetchSubscriptions?fresh=true after each of its writes, which invalidates the user's list
+before it is read again, and lists also expire after subscriptions.cache.ttl.seconds for any other writer.
+
+A list that is being read from the table can miss a subscribe that lands while the Query is running: that
+write-through finds no cached list to update, and the Query's list would then be cached without it. Every subscribe
+and unsubscribe therefore bumps the user's generation before it writes through, and a list read from the table is
+only cached when the user's generation is still the one read before the Query started.
+*/
+
+package com.amazonaws;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class SubscriptionCache {
+
+    private static final SubscriptionCache INSTANCE = new SubscriptionCache();
+
+    // Keyed by song_id, so a user's list stays in the same order a Query on the table returns it in.
+    private final ResultCache<String, ConcurrentSkipListMap<String, Subscription>> users = new ResultCache<>("subscriptions",
+            Integer.getInteger("subscriptions.cache.size", 10000),
+            Integer.getInteger("subscriptions.cache.ttl.seconds", 60), TimeUnit.SECONDS);
+
+    /*
+     Generation counters, one per stripe of users rather than per user so they take a fixed amount of
+     memory. Users sharing a stripe only cost each other a skipped put, which the next Fetch makes up for.
+    */
+    private static final int GENERATION_STRIPES = 1024;
+    private final AtomicLongArray generations = new AtomicLongArray(GENERATION_STRIPES);
+
+    public static SubscriptionCache getInstance() {
+        return INSTANCE;
+    }
+
+    // The user's subscriptions, or null when they are not cached and have to be queried.
+    public List<Subscription> get(String email) {
+        ConcurrentSkipListMap<String, Subscription> songs = users.get(email);
+        return songs == null ? null : new ArrayList<>(songs.values());
+    }
+
+    // Read before querying the table, and handed back to put() with the list the Query returned.
+    public long generation(String email) {
+        return generations.get(stripe(email));
+    }
+
+    /*
+     Stores the full list that was just read from the table, unless the user subscribed or unsubscribed
+     since generation was read. The generation is checked again after storing, because a write that
+     lands in between finds nothing to write through to; the list is then dropped again.
+    */
+    public void put(String email, Collection<Subscription> subscriptions, long generation) {
+        if (generation(email) != generation) {
+            return;
+        }
+        ConcurrentSkipListMap<String, Subscription> songs = new ConcurrentSkipListMap<>();
+        for (Subscription subscription : subscriptions) {
+            songs.put(subscription.getSongId(), subscription);
+        }
+        users.put(email, songs);
+        if (generation(email) != generation) {
+            users.invalidate(email);
+        }
+    }
+
+    // Write-through after a successful subscribe. Users that are not cached are loaded in full later.
+    public void onSubscribed(Subscription subscription) {
+        generations.incrementAndGet(stripe(subscription.getEmail()));
+        ConcurrentSkipListMap<String, Subscription> songs = users.get(subscription.getEmail());
+        if (songs != null) {
+            songs.put(subscription.getSongId(), subscription);
+        }
+    }
+
+    // Write-through after a successful unsubscribe.
+    public void onUnsubscribed(String email, String songId) {
+        generations.incrementAndGet(stripe(email));
+        ConcurrentSkipListMap<String, Subscription> songs = users.get(email);
+        if (songs != null) {
+            songs.remove(songId);
+        }
+    }
+
+    // A write-behind write reached the table. Only the generation is bumped, the cached list already has it.
+    public void onWritten(String email) {
+        generations.incrementAndGet(stripe(email));
+    }
+
+    public void invalidate(String email) {
+        generations.incrementAndGet(stripe(email));
+        users.invalidate(email);
+    }
+
+    private static int stripe(String email) {
+        return (email.hashCode() & Integer.MAX_VALUE) % GENERATION_STRIPES;
+    }
+}
@@ -0,0 +1,158 @@
+/*
+This class builds the enriched view of a user's subscriptions (/fetchSubscriptions?view=enriched), which lets the
+main page load in a single request. Every subscription is joined with its row in the "Music" table and gets the
+signed URL of its artist's image.
+
+The Music rows come from the in-memory MusicCatalogIndex when it is loaded. Otherwise they are read with
+BatchGetItem on the (year, title) primary key, 100 keys per call, retrying any UnprocessedKeys with back-off.
+Images are signed once per artist however many of the user's songs are by that artist.
+
+Code adapted from the AWS documentation on batch reads:
+https://docs.aws.amazon.com/amazondynamodb/latest/developerguide/batch-operation-document-api-java.html
+*/
+
+package com.amazonaws;
+
+import com.amazonaws.services.dynamodbv2.document.BatchGetItemOutcome;
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.TableKeysAndAttributes;
+import com.amazonaws.services.dynamodbv2.model.KeysAndAttributes;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public class SubscriptionEnricher {
+
+    // The most keys a single BatchGetItem call accepts.
+    private static final int MAX_KEYS_PER_BATCH = 100;
+    private static final int MAX_ATTEMPTS = 8;
+
+    private final DynamoDB dynamoDB;
+    private final MusicCatalogIndex catalogIndex = MusicCatalogIndex.getInstance();
+    private final ArtistImageUrls imageUrls = ArtistImageUrls.getInstance();
+
+    public SubscriptionEnricher(DynamoDB dynamoDB) {
+        this.dynamoDB = dynamoDB;
+    }
+
+    /*
+     Returns {"subscriptions": [...]} where every subscription has the usual fields plus "music", its
+     row in the Music table (null when the song is no longer in the catalog), and "image_url" for the
+     image shown at imageSize pixels (0 for the original).
+    */
+    public ObjectNode enrich(List<Subscription> subscriptions, int imageSize, ObjectMapper objectMapper) throws IOException {
+        Set<List<Object>> keys = new LinkedHashSet<>();
+        Set<String> artists = new LinkedHashSet<>();
+        for (Subscription subscription : subscriptions) {
+            List<Object> key = musicKey(subscription);
+            if (key != null) {
+                keys.add(key);
+            }
+            if (subscription.getArtist() != null) {
+                artists.add(subscription.getArtist());
+            }
+        }
+
+        Map<List<Object>, String> songs = findSongs(keys);
+        Map<String, String> images = imageUrls.urlsFor(artists, imageSize);
+
+        ObjectNode response = objectMapper.createObjectNode();
+        ArrayNode list = response.putArray("subscriptions");
+        for (Subscription subscription : subscriptions) {
+            ObjectNode node = list.addObject();
+            node.put("title", subscription.getTitle());
+            node.put("artist", subscription.getArtist());
+            node.put("album", subscription.getAlbum());
+            node.put("year", subscription.getYear());
+            node.put("song_id", subscription.getSongId());
+            String song = songs.get(musicKey(subscription));
+            if (song == null) {
+                node.putNull("music");
+            } else {
+                node.set("music", objectMapper.readTree(song));
+            }
+            node.put("image_url", images.getOrDefault(subscription.getArtist(), ArtistImageUrls.PLACEHOLDER_URL));
+        }
+        return response;
+    }
+
+    // The (year, title) key of the song in the Music table. The subscription keeps the year as a string.
+    private static List<Object> musicKey(Subscription subscription) {
+        Integer year = MusicSearchCriteria.parseYear(subscription.getYear());
+        if (year == null || subscription.getTitle() == null) {
+            return null;
+        }
+        return Arrays.asList(year, subscription.getTitle());
+    }
+
+    private Map<List<Object>, String> findSongs(Set<List<Object>> keys) throws IOException {
+        Map<List<Object>, String> songs = new HashMap<>();
+        if (catalogIndex.isLoaded()) {
+            for (List<Object> key : keys) {
+                String json = catalogIndex.find((Integer) key.get(0), (String) key.get(1));
+                if (json != null) {
+                    songs.put(key, json);
+                }
+            }
+            return songs;
+        }
+
+        List<List<Object>> batch = new ArrayList<>(MAX_KEYS_PER_BATCH);
+        for (List<Object> key : keys) {
+            batch.add(key);
+            if (batch.size() == MAX_KEYS_PER_BATCH) {
+                readBatch(batch, songs);
+                batch = new ArrayList<>(MAX_KEYS_PER_BATCH);
+            }
+        }
+        if (!batch.isEmpty()) {
+            readBatch(batch, songs);
+        }
+        return songs;
+    }
+
+    // Reads up to 100 songs with BatchGetItem, asking again for the keys DynamoDB did not get to.
+    private void readBatch(List<List<Object>> keys, Map<List<Object>, String> songs) throws IOException {
+        TableKeysAndAttributes request = new TableKeysAndAttributes("Music");
+        for (List<Object> key : keys) {
+            request.addHashAndRangePrimaryKey("year", key.get(0), "title", key.get(1));
+        }
+
+        BatchGetItemOutcome outcome = dynamoDB.batchGetItem(request);
+        for (int attempt = 1; ; attempt++) {
+            List<Item> items = outcome.getTableItems().get("Music");
+            if (items != null) {
+                for (Item item : items) {
+                    songs.put(Arrays.asList(MusicCatalogIndex.yearKey(item), item.getString("title")), item.toJSON());
+                }
+            }
+
+            Map<String, KeysAndAttributes> unprocessed = outcome.getUnprocessedKeys();
+            if (unprocessed == null || unprocessed.isEmpty()) {
+                return;
+            }
+            if (attempt >= MAX_ATTEMPTS) {
+                System.err.println("Gave up reading " + unprocessed.get("Music").getKeys().size()
+                        + " songs after " + MAX_ATTEMPTS + " attempts");
+                return;
+            }
+            try {
+                Thread.sleep(ParallelMusicScanner.backoff(attempt));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while reading songs", e);
+            }
+            outcome = dynamoDB.batchGetItemUnprocessed(unprocessed);
+        }
+    }
+}
@@ -0,0 +1,289 @@
+/*
+This class is the optional write-behind mode for subscriptions, switched on with -Dsubscriptions.writebehind=true.
+Instead of writing to DynamoDB on the request thread, every subscribe and unsubscribe is appended to a local
+journal file and forced to disk, and only then acknowledged. The writes are kept in memory keyed by
+(email, song_id), so a user who toggles the same song several times before the next flush ends up with just the
+final state being written. A background thread flushes everything pending every
+subscriptions.writebehind.flush.millis with SubscriptionBatchWriter, after which the journal is rewritten to hold
+only the writes that are still pending. A write that still fails after subscriptions.writebehind.attempts flushes,
+such as one DynamoDB rejects as invalid, is moved out of the journal into the dead-letter log
+(subscriptions.deadletter) rather than being retried forever.
+
+Until a write is flushed, FetchSubscriptionsServlet lays it over what a Query on the table returns. A flush can
+land after such a Query has read past the song and drop the write from the pending set before it is laid over, so
+the flush bumps the user's generation in SubscriptionCache first and that list is not cached.
+
+When the server starts, the journal left behind by the previous run is replayed, so writes that were
+acknowledged but not yet flushed when the process died are still written to the table.
+*/
+
+package com.amazonaws;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public class SubscriptionWriteBehind {
+
+    public static final boolean ENABLED =
+            Boolean.parseBoolean(System.getProperty("subscriptions.writebehind", "false"));
+    private static final long FLUSH_MILLIS = Long.getLong("subscriptions.writebehind.flush.millis", 1000);
+    private static final int MAX_ATTEMPTS = Integer.getInteger("subscriptions.writebehind.attempts", 10);
+
+    private static final SubscriptionWriteBehind INSTANCE =
+            new SubscriptionWriteBehind(Paths.get(System.getProperty("subscriptions.journal", "subscriptions.journal")),
+                    Paths.get(System.getProperty("subscriptions.deadletter", "subscriptions.deadletter")));
+
+    private final Path journalPath;
+    private final Path deadLetterPath;
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    // Writes acknowledged but not yet in the table, the last one per (email, song_id). Guarded by this.
+    private final Map<List<String>, SubscriptionBatchWriter.Write> pending = new LinkedHashMap<>();
+    // How many flushes the pending write of each key has failed in. Guarded by this.
+    private final Map<List<String>, Integer> attempts = new HashMap<>();
+    private FileChannel journal;
+
+    // Only one flush runs at a time, the scheduled one or the one at shutdown.
+    private final Object flushLock = new Object();
+    private SubscriptionBatchWriter writer;
+
+    private SubscriptionWriteBehind(Path journalPath, Path deadLetterPath) {
+        this.journalPath = journalPath;
+        this.deadLetterPath = deadLetterPath;
+    }
+
+    public static SubscriptionWriteBehind getInstance() {
+        return INSTANCE;
+    }
+
+    /*
+     Replays the journal and starts the background flush. Called by every servlet that writes
+     subscriptions, only the first call does anything.
+    */
+    public synchronized void start(SubscriptionBatchWriter writer) throws IOException {
+        if (this.writer != null) {
+            return;
+        }
+        int replayed = replay();
+        journal = FileChannel.open(journalPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        this.writer = writer;
+
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "subscriptions-write-behind");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::flushQuietly, replayed > 0 ? 0 : FLUSH_MILLIS, FLUSH_MILLIS,
+                TimeUnit.MILLISECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(this::flushQuietly, "subscriptions-write-behind-shutdown"));
+
+        System.out.println("📝 Subscription write-behind journal at " + journalPath.toAbsolutePath()
+                + ", replayed " + replayed + " pending writes");
+    }
+
+    /*
+     Appends the writes to the journal and forces it to disk before returning, so once this returns the
+     writes survive a crash and the request can be acknowledged.
+    */
+    public void enqueue(Collection<SubscriptionBatchWriter.Write> writes) throws IOException {
+        StringBuilder lines = new StringBuilder();
+        for (SubscriptionBatchWriter.Write write : writes) {
+            lines.append(mapper.writeValueAsString(toJson(write))).append('\n');
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+
+        synchronized (this) {
+            if (journal == null) {
+                throw new IllegalStateException("Subscription write-behind journal is not open");
+            }
+            while (buffer.hasRemaining()) {
+                journal.write(buffer);
+            }
+            journal.force(false);
+            for (SubscriptionBatchWriter.Write write : writes) {
+                pending.put(write.key(), write);
+                attempts.remove(write.key());
+            }
+        }
+    }
+
+    // The user's writes that have not reached the table yet, to lay over what a Query on the table returns.
+    public synchronized List<SubscriptionBatchWriter.Write> pendingFor(String email) {
+        List<SubscriptionBatchWriter.Write> writes = new ArrayList<>();
+        for (SubscriptionBatchWriter.Write write : pending.values()) {
+            if (write.getEmail().equals(email)) {
+                writes.add(write);
+            }
+        }
+        return writes;
+    }
+
+    public synchronized int pendingCount() {
+        return pending.size();
+    }
+
+    /*
+     Writes everything pending to the table. A write is only dropped from the pending set if it was
+     written and has not been replaced by a newer toggle in the meantime; failed writes stay and are
+     tried again on the next flush, until they have failed MAX_ATTEMPTS times and go to the dead-letter log.
+    */
+    void flush() throws IOException, InterruptedException {
+        synchronized (flushLock) {
+            Map<List<String>, SubscriptionBatchWriter.Write> batch;
+            synchronized (this) {
+                if (pending.isEmpty()) {
+                    return;
+                }
+                batch = new LinkedHashMap<>(pending);
+            }
+
+            Map<List<String>, String> failures = writer.write(batch.values());
+
+            SubscriptionCache cache = SubscriptionCache.getInstance();
+            List<String> deadLetters = new ArrayList<>();
+            synchronized (this) {
+                for (Map.Entry<List<String>, SubscriptionBatchWriter.Write> entry : batch.entrySet()) {
+                    SubscriptionBatchWriter.Write write = entry.getValue();
+                    if (pending.get(entry.getKey()) != write) {
+                        continue;
+                    }
+                    String failure = failures.get(entry.getKey());
+                    if (failure == null) {
+                        // Bumped while still holding this, so a Fetch that no longer finds the write pending
+                        // cannot cache a list read before the write was in the table.
+                        cache.onWritten(write.getEmail());
+                        pending.remove(entry.getKey());
+                        attempts.remove(entry.getKey());
+                    } else if (attempts.merge(entry.getKey(), 1, Integer::sum) >= MAX_ATTEMPTS) {
+                        ObjectNode node = toJson(write);
+                        node.put("error", failure);
+                        deadLetters.add(mapper.writeValueAsString(node));
+                        // The list was written through when the write was acknowledged, and now never will be.
+                        cache.invalidate(write.getEmail());
+                        pending.remove(entry.getKey());
+                        attempts.remove(entry.getKey());
+                    }
+                }
+                if (!deadLetters.isEmpty()) {
+                    // Before the journal is compacted, so a crash in between keeps the writes in the journal.
+                    Files.write(deadLetterPath, deadLetters, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                            StandardOpenOption.APPEND);
+                }
+                compact();
+            }
+
+            System.out.println("📤 Flushed " + (batch.size() - failures.size()) + " subscription writes"
+                    + (failures.isEmpty() ? "" : ", " + (failures.size() - deadLetters.size())
+                    + " failed and will be retried"));
+            if (!deadLetters.isEmpty()) {
+                System.err.println("Moved " + deadLetters.size() + " subscription writes that failed "
+                        + MAX_ATTEMPTS + " times to " + deadLetterPath.toAbsolutePath());
+            }
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            System.err.println("Error flushing subscription writes: " + e.getMessage());
+        }
+    }
+
+    /*
+     Rewrites the journal so it holds only the pending writes. The new journal is written to a temporary
+     file and forced to disk before it replaces the old one, so a crash at any point leaves a complete
+     journal behind. Must be called while holding this.
+    */
+    private void compact() throws IOException {
+        Path compacted = journalPath.resolveSibling(journalPath.getFileName() + ".tmp");
+        StringBuilder lines = new StringBuilder();
+        for (SubscriptionBatchWriter.Write write : pending.values()) {
+            lines.append(mapper.writeValueAsString(toJson(write))).append('\n');
+        }
+        try (FileChannel out = FileChannel.open(compacted, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            out.force(true);
+        }
+
+        journal.close();
+        try {
+            Files.move(compacted, journalPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            journal = FileChannel.open(journalPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND);
+        }
+    }
+
+    // Loads the journal of the previous run into the pending set, later lines replace earlier ones.
+    private int replay() throws IOException {
+        if (!Files.exists(journalPath)) {
+            return 0;
+        }
+        for (String line : Files.readAllLines(journalPath, StandardCharsets.UTF_8)) {
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            try {
+                SubscriptionBatchWriter.Write write = fromJson(mapper.readTree(line));
+                pending.put(write.key(), write);
+            } catch (IOException | RuntimeException e) {
+                // Only the last line can be cut off, by a crash in the middle of an append that was never acknowledged.
+                System.err.println("Skipping unreadable journal line: " + line);
+            }
+        }
+        return pending.size();
+    }
+
+    private ObjectNode toJson(SubscriptionBatchWriter.Write write) {
+        ObjectNode node = mapper.createObjectNode();
+        node.put("action", write.isSubscribe() ? "subscribe" : "unsubscribe");
+        node.put("email", write.getEmail());
+        node.put("song_id", write.getSongId());
+        if (write.isSubscribe()) {
+            Subscription subscription = write.getSubscription();
+            node.put("title", subscription.getTitle());
+            node.put("artist", subscription.getArtist());
+            node.put("album", subscription.getAlbum());
+            node.put("year", subscription.getYear());
+        }
+        return node;
+    }
+
+    private static SubscriptionBatchWriter.Write fromJson(JsonNode node) {
+        String email = node.get("email").asText();
+        String songId = node.get("song_id").asText();
+        if ("unsubscribe".equals(node.get("action").asText())) {
+            return SubscriptionBatchWriter.Write.unsubscribe(email, songId);
+        }
+        return SubscriptionBatchWriter.Write.subscribe(new Subscription(email, songId, node.path("title").asText(),
+                node.path("artist").asText(), node.path("album").asText(), node.path("year").asText()));
+    }
+}
@@ -0,0 +1,196 @@
+/*
+This class reads the song catalog one song at a time with Jackson's streaming JsonParser, instead of building the
+whole file as a tree first, so a catalog of any size is loaded in constant memory. It accepts the original layout
+({"songs": [ {...}, {...} ]}), a plain top-level array of songs and newline-delimited JSON (one song object per
+line). Any of them may be gzip-compressed; a compressed file is recognised by its first two bytes, not its name.
+
+Song fields other than title, artist, year, album and img_url are skipped without being read into memory, and so
+is an object or array given for one of those fields, which then keeps its default.
+
+The source lives under Common/ and is compiled into both the DynamoDB and the S3 module, which add it as a second
+source directory in their pom.xml.
+
+Streaming API adapted from the Jackson documentation:
+https://github.com/FasterXML/jackson-core#usage-streaming
+*/
+
+package com.amazonaws.samples;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.zip.GZIPInputStream;
+
+public class CatalogReader implements Iterator<CatalogReader.Song>, Closeable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final JsonParser parser;
+    private Song next;
+    private int count;
+
+    private CatalogReader(InputStream in) throws IOException {
+        this.parser = new JsonFactory().createParser(in);
+    }
+
+    // Opens a catalog file, decompressing it on the fly when it starts with the gzip magic number.
+    public static CatalogReader open(Path path) throws IOException {
+        InputStream in = new BufferedInputStream(Files.newInputStream(path), BUFFER_SIZE);
+        try {
+            in.mark(2);
+            int first = in.read();
+            int second = in.read();
+            in.reset();
+            if (first == 0x1f && second == 0x8b) {
+                in = new GZIPInputStream(in, BUFFER_SIZE);
+            }
+            return new CatalogReader(in);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null) {
+            try {
+                next = readSong();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return next != null;
+    }
+
+    @Override
+    public Song next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Song song = next;
+        next = null;
+        count++;
+        return song;
+    }
+
+    // The number of songs read so far.
+    public int getCount() {
+        return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        parser.close();
+    }
+
+    /*
+     Moves to the next song object and reads it. Top-level arrays are stepped into, and a top-level
+     object is either a song (newline-delimited JSON) or the wrapper whose "songs" array holds them.
+     Returns null at the end of the input.
+    */
+    private Song readSong() throws IOException {
+        JsonToken token;
+        while ((token = parser.nextToken()) != null) {
+            if (token == JsonToken.START_OBJECT) {
+                Song song = readObject();
+                if (song != null) {
+                    return song;
+                }
+            }
+            // START_ARRAY and END_ARRAY only need stepping over, the objects inside come next.
+        }
+        return null;
+    }
+
+    /*
+     Reads the fields of the object the parser is on. When the object has a "songs" array the parser is
+     left at the start of that array, so the songs are read one by one from there, and null is returned.
+    */
+    private Song readObject() throws IOException {
+        Song song = new Song();
+        boolean isSong = false;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            if ("songs".equals(field) && value == JsonToken.START_ARRAY) {
+                return null;
+            }
+            switch (field) {
+                case "title":
+                    song.title = readText(value);
+                    isSong = true;
+                    break;
+                case "artist":
+                    song.artist = readText(value);
+                    isSong = true;
+                    break;
+                case "year":
+                    song.year = value.isScalarValue() ? parser.getValueAsInt() : skip(0);
+                    isSong = true;
+                    break;
+                case "album":
+                    song.album = readText(value);
+                    isSong = true;
+                    break;
+                case "img_url":
+                    song.imageUrl = readText(value);
+                    isSong = true;
+                    break;
+                default:
+                    parser.skipChildren();
+            }
+        }
+        return isSong ? song : null;
+    }
+
+    // The value the parser is on as text, or "" for an object or array, whose contents are stepped over.
+    private String readText(JsonToken value) throws IOException {
+        return value.isScalarValue() ? parser.getValueAsString("") : skip("");
+    }
+
+    // Steps over the object or array the parser is on and returns the default to use instead.
+    private <T> T skip(T defaultValue) throws IOException {
+        parser.skipChildren();
+        return defaultValue;
+    }
+
+    // One song of the catalog, with the same defaults as JsonNode.asText()/asInt() for missing fields.
+    public static final class Song {
+        String title = "";
+        String artist = "";
+        int year;
+        String album = "";
+        String imageUrl = "";
+
+        public String getTitle() {
+            return title;
+        }
+
+        public String getArtist() {
+            return artist;
+        }
+
+        public int getYear() {
+            return year;
+        }
+
+        public String getAlbum() {
+            return album;
+        }
+
+        public String getImageUrl() {
+            return imageUrl;
+        }
+    }
+}
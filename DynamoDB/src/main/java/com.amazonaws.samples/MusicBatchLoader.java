@@ -0,0 +1,326 @@
+/*
+This class loads songs into the "Music" table much faster than one PutItem per song. The items are grouped into
+BatchWriteItem requests of 25 (the most DynamoDB accepts in one call) and several worker threads send batches at
+the same time. Items that DynamoDB hands back as UnprocessedItems are sent again after a jittered, exponential
+back-off. The songs are taken from an iterator and only a few batches are queued ahead of the workers, so a
+catalog that is streamed in (see CatalogReader) is loaded in constant memory. Deletes by key are batched the same
+way, for MusicDeltaLoader.
+
+To stay within what the table can take, every batch first takes write capacity units from a token bucket. The
+bucket starts at the table's provisioned write capacity (or -Dload.wcu for on-demand tables), slows down by 30%
+every time DynamoDB throttles a batch and speeds up again slowly while batches go through, up to twice the
+provisioned rate so the table's burst capacity can be used. Each batch is charged an estimate of its size up
+front, and the difference to the capacity DynamoDB reports as consumed is given back (or taken) afterwards. When the load is done it prints how many items were
+written per second.
+
+Code adapted from the AWS documentation on batch writes and on handling throttling:
+https://docs.aws.amazon.com/amazondynamodb/latest/developerguide/batch-operation-document-api-java.html
+https://docs.aws.amazon.com/general/latest/gr/api-retries.html
+*/
+
+package com.amazonaws.samples;
+
+import com.amazonaws.services.dynamodbv2.document.BatchWriteItemOutcome;
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.TableWriteItems;
+import com.amazonaws.services.dynamodbv2.document.spec.BatchWriteItemSpec;
+import com.amazonaws.services.dynamodbv2.model.ConsumedCapacity;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughputDescription;
+import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughputExceededException;
+import com.amazonaws.services.dynamodbv2.model.RequestLimitExceededException;
+import com.amazonaws.services.dynamodbv2.model.ReturnConsumedCapacity;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class MusicBatchLoader {
+
+    private static final int BATCH_SIZE = 25;
+    private static final int THREADS = Integer.getInteger("load.threads", 4);
+    private static final int MAX_ATTEMPTS = Integer.getInteger("load.attempts", 10);
+
+    // Write rate to start from for on-demand tables, which have no provisioned capacity to size the bucket from.
+    private static final double ON_DEMAND_WCU = Double.parseDouble(System.getProperty("load.wcu", "500"));
+
+    private static final long BASE_BACKOFF_MILLIS = 50;
+    private static final long MAX_BACKOFF_MILLIS = 5000;
+
+    private final DynamoDB dynamoDB;
+    private final String tableName;
+
+    // Put on the queue once per worker after the last batch.
+    private static final List<Item> END = new ArrayList<>();
+
+    private final AtomicInteger written = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicInteger throttles = new AtomicInteger();
+
+    public MusicBatchLoader(DynamoDB dynamoDB, String tableName) {
+        this.dynamoDB = dynamoDB;
+        this.tableName = tableName;
+    }
+
+    public void load(Collection<Item> items) throws InterruptedException {
+        load(items.iterator());
+    }
+
+    /*
+     Writes all the items and returns once every batch has been written or given up on. Items with the
+     same (year, title) key in one batch are reduced to the last one, since a batch may not contain a key
+     twice; a key repeated further apart in the catalog is simply written again.
+    */
+    public void load(Iterator<Item> items) throws InterruptedException {
+        run(items, false);
+    }
+
+    // Deletes the songs with the (year, title) keys of the items, in batches the same way load() writes them.
+    public void delete(Iterator<Item> keys) throws InterruptedException {
+        run(keys, true);
+    }
+
+    private void run(Iterator<Item> items, boolean delete) throws InterruptedException {
+        long start = System.nanoTime();
+        written.set(0);
+        failed.set(0);
+        throttles.set(0);
+
+        double capacity = writeCapacity();
+        TokenBucket bucket = new TokenBucket(capacity, capacity * 2);
+        System.out.println((delete ? "Deleting" : "Loading") + " songs on " + THREADS + " threads, starting at "
+                + capacity + " WCU/s");
+
+        int threads = Math.max(THREADS, 1);
+        BlockingQueue<List<Item>> batches = new ArrayBlockingQueue<>(threads * 2);
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        for (int i = 0; i < threads; i++) {
+            workers.execute(() -> {
+                try {
+                    List<Item> next;
+                    while ((next = batches.take()) != END) {
+                        writeBatch(next, bucket, delete);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        }
+
+        try {
+            Map<List<String>, Item> batch = new LinkedHashMap<>();
+            while (items.hasNext()) {
+                Item item = items.next();
+                batch.put(key(item), item);
+                if (batch.size() == BATCH_SIZE) {
+                    batches.put(new ArrayList<>(batch.values()));
+                    batch.clear();
+                }
+            }
+            if (!batch.isEmpty()) {
+                batches.put(new ArrayList<>(batch.values()));
+            }
+        } finally {
+            // One end marker per worker, also when reading the items failed, so the workers always stop.
+            for (int i = 0; i < threads; i++) {
+                batches.put(END);
+            }
+            workers.shutdown();
+            workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+
+        double seconds = Math.max((System.nanoTime() - start) / 1e9, 0.001);
+        System.out.println(String.format("📊 %s %d songs (%d failed, %d throttled batches) in %.1f s: %.1f items/sec, "
+                        + "final rate %.1f WCU/s", delete ? "Deleted" : "Loaded", written.get(), failed.get(), throttles.get(), seconds,
+                written.get() / seconds, bucket.getRate()));
+    }
+
+    // Sends one batch, resending whatever DynamoDB leaves unprocessed until it is all written.
+    private void writeBatch(List<Item> batch, TokenBucket bucket, boolean delete) throws InterruptedException {
+        List<Item> remaining = batch;
+        for (int attempt = 0; !remaining.isEmpty(); attempt++) {
+            if (attempt >= MAX_ATTEMPTS) {
+                failed.addAndGet(remaining.size());
+                for (Item item : remaining) {
+                    System.err.println("Unable to " + (delete ? "delete" : "add") + " song: " + item.get("year") + " " + item.getString("title"));
+                }
+                return;
+            }
+            if (attempt > 0) {
+                Thread.sleep(backoff(attempt));
+            }
+
+            // A delete costs at least one WCU, more for a large item, which the refund below settles.
+            double estimate = delete ? remaining.size() : writeUnits(remaining);
+            bucket.acquire(estimate);
+            try {
+                TableWriteItems writes = new TableWriteItems(tableName);
+                for (Item item : remaining) {
+                    if (delete) {
+                        writes.addHashAndRangePrimaryKeyToDelete("year", item.get("year"), "title", item.getString("title"));
+                    } else {
+                        writes.addItemToPut(item);
+                    }
+                }
+                BatchWriteItemOutcome outcome = dynamoDB.batchWriteItem(new BatchWriteItemSpec()
+                        .withTableWriteItems(writes)
+                        .withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL));
+                bucket.refund(estimate - consumed(outcome));
+                List<Item> unprocessed = unprocessed(remaining, outcome.getUnprocessedItems());
+                written.addAndGet(remaining.size() - unprocessed.size());
+                if (unprocessed.isEmpty()) {
+                    bucket.onSuccess();
+                } else {
+                    throttles.incrementAndGet();
+                    bucket.onThrottle();
+                }
+                remaining = unprocessed;
+            } catch (ProvisionedThroughputExceededException | RequestLimitExceededException e) {
+                // Nothing in the batch was written, it is sent again after the back-off.
+                throttles.incrementAndGet();
+                bucket.onThrottle();
+            } catch (Exception e) {
+                failed.addAndGet(remaining.size());
+                System.err.println("Unable to " + (delete ? "delete " : "add ") + remaining.size() + " songs: " + e.getMessage());
+                return;
+            }
+        }
+    }
+
+    // The items of the batch that DynamoDB returned as UnprocessedItems.
+    private static List<Item> unprocessed(List<Item> sent, Map<String, List<WriteRequest>> unprocessedItems) {
+        List<Item> remaining = new ArrayList<>();
+        if (unprocessedItems == null || unprocessedItems.isEmpty()) {
+            return remaining;
+        }
+        Set<List<String>> keys = new HashSet<>();
+        for (List<WriteRequest> requests : unprocessedItems.values()) {
+            for (WriteRequest request : requests) {
+                Map<String, AttributeValue> item = request.getPutRequest() != null
+                        ? request.getPutRequest().getItem() : request.getDeleteRequest().getKey();
+                keys.add(Arrays.asList(item.get("year").getN(), item.get("title").getS()));
+            }
+        }
+        for (Item item : sent) {
+            if (keys.contains(key(item))) {
+                remaining.add(item);
+            }
+        }
+        return remaining;
+    }
+
+    private static double consumed(BatchWriteItemOutcome outcome) {
+        double units = 0;
+        List<ConsumedCapacity> capacities = outcome.getBatchWriteItemResult().getConsumedCapacity();
+        if (capacities != null) {
+            for (ConsumedCapacity capacity : capacities) {
+                if (capacity.getCapacityUnits() != null) {
+                    units += capacity.getCapacityUnits();
+                }
+            }
+        }
+        return units;
+    }
+
+    static List<String> key(Item item) {
+        return Arrays.asList(String.valueOf(item.get("year")), item.getString("title"));
+    }
+
+    // A write costs one WCU per started KB of the item, the JSON size is a close enough estimate.
+    private static double writeUnits(List<Item> items) {
+        double units = 0;
+        for (Item item : items) {
+            units += Math.ceil(item.toJSON().getBytes(StandardCharsets.UTF_8).length / 1024.0);
+        }
+        return units;
+    }
+
+    // The table's provisioned write capacity, or the configured starting rate for on-demand tables.
+    private double writeCapacity() {
+        try {
+            ProvisionedThroughputDescription throughput = dynamoDB.getTable(tableName).describe().getProvisionedThroughput();
+            if (throughput != null && throughput.getWriteCapacityUnits() != null && throughput.getWriteCapacityUnits() > 0) {
+                return throughput.getWriteCapacityUnits();
+            }
+        } catch (Exception e) {
+            System.err.println("Unable to describe table " + tableName + ": " + e.getMessage());
+        }
+        return ON_DEMAND_WCU;
+    }
+
+    // Exponential back-off with full jitter, so throttled workers do not all retry at the same moment.
+    private static long backoff(int attempt) {
+        long ceiling = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << Math.min(attempt, 10));
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    /*
+     Hands out write capacity units at the current rate, holding at most one second's worth. A batch
+     bigger than that may still go once the bucket is full, it just leaves the bucket in debt. The rate
+     is cut by 30% on a throttle and grows by 5% of the starting rate after each clean batch.
+    */
+    private static final class TokenBucket {
+        private final double step;
+        private final double min;
+        private final double max;
+        private double rate;
+        private double tokens;
+        private long refilledAt = System.nanoTime();
+
+        TokenBucket(double rate, double max) {
+            this.rate = rate;
+            this.max = max;
+            this.min = Math.max(1, rate / 20);
+            this.step = rate / 20;
+            this.tokens = rate;
+        }
+
+        synchronized void acquire(double units) throws InterruptedException {
+            while (true) {
+                long now = System.nanoTime();
+                tokens = Math.min(rate, tokens + (now - refilledAt) / 1e9 * rate);
+                refilledAt = now;
+                if (tokens >= Math.min(units, rate)) {
+                    tokens -= units;
+                    return;
+                }
+                long waitMillis = (long) Math.ceil((Math.min(units, rate) - tokens) / rate * 1000);
+                wait(Math.max(1, waitMillis));
+            }
+        }
+
+        // Settles the difference between what a batch was charged up front and what it really consumed.
+        synchronized void refund(double units) {
+            tokens = Math.min(rate, tokens + units);
+            notifyAll();
+        }
+
+        synchronized void onThrottle() {
+            rate = Math.max(min, rate * 0.7);
+        }
+
+        synchronized void onSuccess() {
+            rate = Math.min(max, rate + step);
+        }
+
+        synchronized double getRate() {
+            return rate;
+        }
+    }
+}
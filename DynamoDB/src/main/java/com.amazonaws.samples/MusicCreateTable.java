@@ -2,10 +2,26 @@
 // Licensed under the Apache License, Version 2.0.
 
 /*
-This Java program, uses the AWS SDK for Java to create a DynamoDB table named "Music". The table's primary key
-consists of a partition key named "year" (a Number) and a sort key named "title" (a String). The table is provisioned
-with an initial read and write capacity of 10 units each. The program outputs status messages indicating whether the
-table creation was successful.
+This Java program, uses the AWS SDK for Java to create the DynamoDB tables the backend needs, with the Global
+Secondary Indexes its queries rely on. The tables are declared in SCHEMA below:
+
+- "Music", with a partition key "year" (a Number) and a sort key "title" (a String). QueryMusicServlet queries it by
+  year and title on the table itself, by artist (and album) on ArtistAlbumIndex, by album alone on AlbumIndex and by
+  title alone, in any year, on TitleIndex.
+- "Login", keyed by "email", which LoginServer and RegisterServlet read with GetItem.
+- "subscriptions", keyed by "email" and "song_id", which the subscription servlets query by email.
+
+The program is safe to run again: a table that does not exist is created, and a table that exists gets the indexes
+it is missing, one at a time, and its billing mode and capacity changed to what is configured. Key schemas cannot be
+changed in place and indexes that are not in SCHEMA are never deleted; both are only reported. After every change
+the program waits until the table and all its indexes are ACTIVE and the indexes have finished backfilling, so the
+backend can query them as soon as it finishes.
+
+Options, as system properties:
+  -Dschema.billing=PROVISIONED (the default) or PAY_PER_REQUEST for on-demand tables
+  -Dschema.rcu / -Dschema.wcu   provisioned capacity of every table and index (10 and 10 by default)
+  -Dschema.tables=Music,Login   only these tables (all of them by default)
+  -Ddynamodb.endpoint=http://localhost:8000   run against DynamoDB Local instead of AWS
  */
 
 /*
@@ -14,75 +30,283 @@ Code adapted from the Cloud Computing week 4 practicals
 
 package com.amazonaws.samples;
 
+import static com.amazonaws.services.dynamodbv2.model.ScalarAttributeType.N;
+import static com.amazonaws.services.dynamodbv2.model.ScalarAttributeType.S;
+
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
-import com.amazonaws.auth.profile.ProfileCredentialsProvider;
 import com.amazonaws.client.builder.AwsClientBuilder;
 import com.amazonaws.regions.Regions;
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClientBuilder;
-import com.amazonaws.services.dynamodbv2.document.DynamoDB;
-import com.amazonaws.services.dynamodbv2.document.Table;
-import com.amazonaws.services.dynamodbv2.model.AttributeDefinition;
+import com.amazonaws.services.dynamodbv2.model.BillingMode;
+import com.amazonaws.services.dynamodbv2.model.CreateGlobalSecondaryIndexAction;
+import com.amazonaws.services.dynamodbv2.model.CreateTableRequest;
+import com.amazonaws.services.dynamodbv2.model.GlobalSecondaryIndex;
+import com.amazonaws.services.dynamodbv2.model.GlobalSecondaryIndexDescription;
+import com.amazonaws.services.dynamodbv2.model.GlobalSecondaryIndexUpdate;
 import com.amazonaws.services.dynamodbv2.model.KeySchemaElement;
-import com.amazonaws.services.dynamodbv2.model.KeyType;
+import com.amazonaws.services.dynamodbv2.model.Projection;
+import com.amazonaws.services.dynamodbv2.model.ProjectionType;
 import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughput;
-import com.amazonaws.services.dynamodbv2.model.ScalarAttributeType;
+import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughputDescription;
+import com.amazonaws.services.dynamodbv2.model.ResourceNotFoundException;
+import com.amazonaws.services.dynamodbv2.model.TableDescription;
+import com.amazonaws.services.dynamodbv2.model.UpdateGlobalSecondaryIndexAction;
+import com.amazonaws.services.dynamodbv2.model.UpdateTableRequest;
 
 public class MusicCreateTable {
 
+    // The tables the backend uses, with an index for every access pattern that is not a lookup by the table's key.
+    static final List<TableSchema> SCHEMA = Arrays.asList(
+            TableSchema.table("Music").hash("year", N).range("title", S)
+                    .index("ArtistAlbumIndex", "artist", S, "album", S)  // artist, or artist and album
+                    .index("AlbumIndex", "album", S, "year", N)          // album only
+                    .index("TitleIndex", "title", S, "artist", S),       // title only, in any year
+            TableSchema.table("Login").hash("email", S),
+            TableSchema.table("subscriptions").hash("email", S).range("song_id", S));
+
+    private static final BillingMode BILLING = BillingMode.fromValue(
+            System.getProperty("schema.billing", "PROVISIONED").toUpperCase());
+    private static final long READ_CAPACITY = Long.getLong("schema.rcu", 10);
+    private static final long WRITE_CAPACITY = Long.getLong("schema.wcu", 10);
+    private static final long POLL_MILLIS = Long.getLong("schema.poll.millis", 5000);
+
     public static void main(String[] args) throws Exception {
 
-        AmazonDynamoDB client = AmazonDynamoDBClientBuilder.standard()
-                .withRegion(Regions.US_EAST_1)
-                .build();
+        AmazonDynamoDBClientBuilder builder = AmazonDynamoDBClientBuilder.standard();
+        String endpoint = System.getProperty("dynamodb.endpoint");
+        if (endpoint != null) {
+            // DynamoDB Local accepts any credentials, but the SDK still needs a region to sign with
+            builder.withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(endpoint, Regions.US_EAST_1.getName()));
+        } else {
+            builder.withRegion(Regions.US_EAST_1);
+        }
+        AmazonDynamoDB client = builder.build();
+
+        Set<String> only = new HashSet<>();
+        for (String name : System.getProperty("schema.tables", "").split(",")) {
+            if (!name.trim().isEmpty()) {
+                only.add(name.trim());
+            }
+        }
+
+        for (TableSchema schema : SCHEMA) {
+            if (!only.isEmpty() && !only.contains(schema.getName())) {
+                continue;
+            }
+            try {
+                apply(client, schema);
+            } catch (Exception e) {
+                System.err.println("Unable to create table " + schema.getName() + ": ");
+                System.err.println(e.getMessage());
+            }
+        }
+        client.shutdown();
+    }
+
+    // Creates the table, or brings an existing one in line with its schema, and waits until it is ready.
+    private static void apply(AmazonDynamoDB client, TableSchema schema) throws InterruptedException {
+        TableDescription existing = describe(client, schema.getName());
+        if (existing == null) {
+            create(client, schema);
+        } else {
+            update(client, schema, existing);
+        }
+        TableDescription table = waitUntilReady(client, schema.getName());
+        System.out.println("Success.  Table " + schema.getName() + " status: " + table.getTableStatus() + ", indexes: "
+                + indexNames(table));
+    }
+
+    /*
+      This code snippet creates a new table with its key schema, the attribute definitions of every key
+      attribute and all of its Global Secondary Indexes in one CreateTable call, with either provisioned
+      capacity for the table and each index or on-demand billing.
+
+      Code adapted from AWS SDK of create table documentation:
+      https://docs.aws.amazon.com/amazondynamodb/latest/APIReference/API_CreateTable.html
+     */
+    private static void create(AmazonDynamoDB client, TableSchema schema) {
+        System.out.println("Attempting to create table " + schema.getName() + "; please wait...");
+        CreateTableRequest request = new CreateTableRequest()
+                .withTableName(schema.getName())
+                .withKeySchema(schema.getKeySchema())
+                .withAttributeDefinitions(schema.getAttributeDefinitions())
+                .withBillingMode(BILLING);
+        if (BILLING == BillingMode.PROVISIONED) {
+            request.withProvisionedThroughput(throughput());
+        }
+
+        List<GlobalSecondaryIndex> indexes = new ArrayList<>();
+        for (TableSchema.Index index : schema.getIndexes()) {
+            GlobalSecondaryIndex gsi = new GlobalSecondaryIndex()
+                    .withIndexName(index.getName())
+                    .withKeySchema(index.getKeySchema())
+                    .withProjection(new Projection().withProjectionType(ProjectionType.ALL));
+            if (BILLING == BillingMode.PROVISIONED) {
+                gsi.withProvisionedThroughput(throughput());
+            }
+            indexes.add(gsi);
+        }
+        if (!indexes.isEmpty()) {
+            request.withGlobalSecondaryIndexes(indexes);
+        }
+        client.createTable(request);
+    }
+
+    /*
+      Brings an existing table in line with its schema. DynamoDB allows one index creation per UpdateTable
+      call, so the missing indexes are added one by one, each after the previous one finished backfilling.
+
+      Code adapted from the AWS documentation on managing Global Secondary Indexes:
+      https://docs.aws.amazon.com/amazondynamodb/latest/developerguide/GSI.OnlineOps.html
+     */
+    private static void update(AmazonDynamoDB client, TableSchema schema, TableDescription existing) throws InterruptedException {
+        System.out.println("Table " + schema.getName() + " exists, checking its schema...");
+        if (!sameKey(schema.getKeySchema(), existing.getKeySchema())) {
+            System.err.println("⚠️ The key schema of " + schema.getName() + " differs from the declared one and cannot be "
+                    + "changed in place, recreate the table to change it");
+        }
+
+        Map<String, GlobalSecondaryIndexDescription> indexes = new LinkedHashMap<>();
+        if (existing.getGlobalSecondaryIndexes() != null) {
+            for (GlobalSecondaryIndexDescription index : existing.getGlobalSecondaryIndexes()) {
+                indexes.put(index.getIndexName(), index);
+            }
+        }
+
+        updateBilling(client, schema, existing, indexes.keySet());
+
+        for (TableSchema.Index index : schema.getIndexes()) {
+            GlobalSecondaryIndexDescription current = indexes.remove(index.getName());
+            if (current != null) {
+                if (!sameKey(index.getKeySchema(), current.getKeySchema())) {
+                    System.err.println("⚠️ Index " + index.getName() + " of " + schema.getName() + " has a different key "
+                            + "than declared, delete it to have it created again");
+                }
+                continue;
+            }
+            System.out.println("Creating index " + index.getName() + " on " + schema.getName() + "; please wait...");
+            CreateGlobalSecondaryIndexAction create = new CreateGlobalSecondaryIndexAction()
+                    .withIndexName(index.getName())
+                    .withKeySchema(index.getKeySchema())
+                    .withProjection(new Projection().withProjectionType(ProjectionType.ALL));
+            if (BILLING == BillingMode.PROVISIONED) {
+                create.withProvisionedThroughput(throughput());
+            }
+            client.updateTable(new UpdateTableRequest()
+                    .withTableName(schema.getName())
+                    .withAttributeDefinitions(schema.getAttributeDefinitions())
+                    .withGlobalSecondaryIndexUpdates(new GlobalSecondaryIndexUpdate().withCreate(create)));
+            waitUntilReady(client, schema.getName());
+        }
+
+        for (String extra : indexes.keySet()) {
+            System.out.println("Index " + extra + " of " + schema.getName() + " is not in the schema, it is left as is");
+        }
+    }
+
+    // Switches the billing mode, or the provisioned capacity, when it is not what is configured.
+    private static void updateBilling(AmazonDynamoDB client, TableSchema schema, TableDescription existing,
+                                      Set<String> indexNames) throws InterruptedException {
+        BillingMode current = existing.getBillingModeSummary() == null || existing.getBillingModeSummary().getBillingMode() == null
+                ? BillingMode.PROVISIONED : BillingMode.fromValue(existing.getBillingModeSummary().getBillingMode());
+        ProvisionedThroughputDescription capacity = existing.getProvisionedThroughput();
+        boolean capacityDiffers = capacity != null
+                && (!Long.valueOf(READ_CAPACITY).equals(capacity.getReadCapacityUnits())
+                || !Long.valueOf(WRITE_CAPACITY).equals(capacity.getWriteCapacityUnits()));
+        if (current == BILLING && (BILLING == BillingMode.PAY_PER_REQUEST || !capacityDiffers)) {
+            return;
+        }
+
+        System.out.println("Changing " + schema.getName() + " to " + BILLING
+                + (BILLING == BillingMode.PROVISIONED ? " " + READ_CAPACITY + "/" + WRITE_CAPACITY : "") + "; please wait...");
+        UpdateTableRequest request = new UpdateTableRequest()
+                .withTableName(schema.getName())
+                .withBillingMode(BILLING);
+        if (BILLING == BillingMode.PROVISIONED) {
+            request.withProvisionedThroughput(throughput());
+            // Every existing index needs its own capacity once the table is provisioned
+            List<GlobalSecondaryIndexUpdate> updates = new ArrayList<>();
+            for (String indexName : indexNames) {
+                updates.add(new GlobalSecondaryIndexUpdate().withUpdate(new UpdateGlobalSecondaryIndexAction()
+                        .withIndexName(indexName)
+                        .withProvisionedThroughput(throughput())));
+            }
+            if (!updates.isEmpty()) {
+                request.withGlobalSecondaryIndexUpdates(updates);
+            }
+        }
+        client.updateTable(request);
+        waitUntilReady(client, schema.getName());
+    }
 
-        DynamoDB dynamoDB = new DynamoDB(client);
+    /*
+      Polls the table until it and all its indexes are ACTIVE and no index is still backfilling, printing
+      the progress of the indexes that are not ready yet.
 
-        String tableName = "Music";
+      Code learned from the AWS SDK for JAVA documentation:
+      https://docs.aws.amazon.com/AWSJavaSDK/latest/javadoc/com/amazonaws/services/dynamodbv2/model/TableDescription.html
+     */
+    private static TableDescription waitUntilReady(AmazonDynamoDB client, String tableName) throws InterruptedException {
+        while (true) {
+            TableDescription table = client.describeTable(tableName).getTable();
+            List<String> pending = new ArrayList<>();
+            if (table.getGlobalSecondaryIndexes() != null) {
+                for (GlobalSecondaryIndexDescription index : table.getGlobalSecondaryIndexes()) {
+                    if (!"ACTIVE".equals(index.getIndexStatus()) || Boolean.TRUE.equals(index.getBackfilling())) {
+                        pending.add(index.getIndexName() + " " + index.getIndexStatus()
+                                + (Boolean.TRUE.equals(index.getBackfilling()) ? " (backfilling)" : ""));
+                    }
+                }
+            }
+            if ("ACTIVE".equals(table.getTableStatus()) && pending.isEmpty()) {
+                return table;
+            }
+            System.out.println("  " + tableName + " is " + table.getTableStatus()
+                    + (pending.isEmpty() ? "" : ", waiting for " + String.join(", ", pending)));
+            Thread.sleep(POLL_MILLIS);
+        }
+    }
 
+    private static TableDescription describe(AmazonDynamoDB client, String tableName) {
         try {
-            System.out.println("Attempting to create table; please wait...");
-
-
-            /*
-              This code snippet uses the DynamoDB Document API to create a new table. It defines the table named by
-              the tableName variable, sets the primary key schema with "year" as the partition key (HASH) and "title"
-              as the sort key (RANGE), and specifies the attribute types for these keys as Number (N) and String (S)
-              respectively. It also sets the initial provisioned read and write capacity to 10 units each. Finally,
-              it waits for the table to become active and then prints a success message along with the table's current
-              status.
-             */
-
-            /*
-              Code adapted from AWS SDK of create table documentation:
-              https://docs.aws.amazon.com/amazondynamodb/latest/APIReference/API_CreateTable.html
-
-             */
-            Table table = dynamoDB.createTable(
-                    tableName,
-                    Arrays.asList(
-                            new KeySchemaElement("year", KeyType.HASH),  // Partition Key
-                            new KeySchemaElement("title", KeyType.RANGE) // Sort Key
-                    ),
-                    Arrays.asList(
-                            new AttributeDefinition("year", ScalarAttributeType.N),
-                            new AttributeDefinition("title", ScalarAttributeType.S)
-                    ),
-                    new ProvisionedThroughput(10L, 10L));
-
-
-            /*
-              Code learned from the AWS SDK for JAVA documentation:
-              https://docs.aws.amazon.com/AWSJavaSDK/latest/javadoc/com/amazonaws/services/dynamodbv2/model/TableDescription.htm
-             */
-            table.waitForActive();
-            System.out.println("Success.  Table status: " + table.getDescription().getTableStatus());
-
-        } catch (Exception e) {
-            System.err.println("Unable to create table: ");
-            System.err.println(e.getMessage());
+            return client.describeTable(tableName).getTable();
+        } catch (ResourceNotFoundException e) {
+            return null;
+        }
+    }
+
+    private static ProvisionedThroughput throughput() {
+        return new ProvisionedThroughput(READ_CAPACITY, WRITE_CAPACITY);
+    }
+
+    private static boolean sameKey(List<KeySchemaElement> declared, List<KeySchemaElement> actual) {
+        if (actual == null || declared.size() != actual.size()) {
+            return false;
         }
+        for (int i = 0; i < declared.size(); i++) {
+            if (!declared.get(i).getAttributeName().equals(actual.get(i).getAttributeName())
+                    || !declared.get(i).getKeyType().equals(actual.get(i).getKeyType())) {
+                return false;
+            }
+        }
+        return true;
+    }
 
+    private static String indexNames(TableDescription table) {
+        List<String> names = new ArrayList<>();
+        if (table.getGlobalSecondaryIndexes() != null) {
+            for (GlobalSecondaryIndexDescription index : table.getGlobalSecondaryIndexes()) {
+                names.add(index.getIndexName());
+            }
+        }
+        return names.isEmpty() ? "none" : String.join(", ", names);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,277 @@
+/*
+This class makes a catalog refresh cost only what changed (-Dload.mode=delta in MusicLoadData). It first reads what
+the "Music" table holds now, either with a parallel scan (-Ddelta.scan.segments segments, 4 by default) or from a
+DynamoDB export to S3 that was downloaded beforehand (-Ddelta.snapshot, a DYNAMODB_JSON export file or the directory
+of its data files), and keeps a content fingerprint of every item keyed by (year, title).
+
+The catalog is then streamed and every song is fingerprinted the same way: a song whose key is not in the table is
+an insert, a song whose fingerprint differs is an update and anything else is left alone. Keys that are in the table
+but not in the catalog are deleted at the end. Inserts and updates go through MusicBatchLoader, so only the changed
+songs use write capacity. With -Dload.dryrun=true nothing is written and a report of the changes is printed instead,
+listing up to -Ddelta.report.limit (100) songs of each kind.
+
+Only the fingerprints and the keys are held in memory, never the items themselves.
+
+Parallel scan and export format adapted from the AWS documentation:
+https://docs.aws.amazon.com/amazondynamodb/latest/developerguide/Scan.html#Scan.ParallelScan
+https://docs.aws.amazon.com/amazondynamodb/latest/developerguide/S3DataExport.Output.html
+*/
+
+package com.amazonaws.samples;
+
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.Table;
+import com.amazonaws.services.dynamodbv2.document.spec.ScanSpec;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+
+public class MusicDeltaLoader {
+
+    private static final int SCAN_SEGMENTS = Integer.getInteger("delta.scan.segments", 4);
+    private static final int REPORT_LIMIT = Integer.getInteger("delta.report.limit", 100);
+
+    private final DynamoDB dynamoDB;
+    private final String tableName;
+
+    private final List<String> inserts = new ArrayList<>();
+    private final List<String> updates = new ArrayList<>();
+    private int insertCount;
+    private int updateCount;
+    private int unchangedCount;
+
+    public MusicDeltaLoader(DynamoDB dynamoDB, String tableName) {
+        this.dynamoDB = dynamoDB;
+        this.tableName = tableName;
+    }
+
+    /*
+     Compares the catalog with the table and writes the differences, or only reports them on a dry run.
+     The fingerprints of the table are read first, so the table must not be written by anyone else while
+     this runs.
+    */
+    public void run(CatalogReader reader, boolean dryRun) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        String snapshot = System.getProperty("delta.snapshot");
+        Map<List<String>, String> existing = snapshot != null ? readSnapshot(Paths.get(snapshot)) : scan();
+        System.out.println("🔎 " + tableName + " holds " + existing.size() + " songs (read in "
+                + (System.nanoTime() - start) / 1000000 + " ms from " + (snapshot != null ? snapshot : "a parallel scan") + ")");
+
+        Set<List<String>> seen = new HashSet<>();
+        Iterator<Item> changes = changes(reader, existing, seen);
+        if (dryRun) {
+            while (changes.hasNext()) {
+                changes.next();
+            }
+        } else {
+            new MusicBatchLoader(dynamoDB, tableName).load(changes);
+        }
+
+        List<Item> deletes = new ArrayList<>();
+        for (List<String> key : existing.keySet()) {
+            if (!seen.contains(key)) {
+                deletes.add(new Item().withPrimaryKey("year", new BigDecimal(key.get(0)), "title", key.get(1)));
+            }
+        }
+        if (!dryRun && !deletes.isEmpty()) {
+            new MusicBatchLoader(dynamoDB, tableName).delete(deletes.iterator());
+        }
+
+        System.out.println((dryRun ? "📋 Dry run, nothing was written. " : "✅ ") + reader.getCount() + " songs in the catalog: "
+                + insertCount + " inserts, " + updateCount + " updates, " + deletes.size() + " deletes, "
+                + unchangedCount + " unchanged");
+        if (dryRun) {
+            report("+", inserts, insertCount);
+            report("~", updates, updateCount);
+            List<String> deleted = new ArrayList<>();
+            for (Item item : deletes.subList(0, Math.min(deletes.size(), REPORT_LIMIT))) {
+                deleted.add(item.get("year") + " " + item.getString("title"));
+            }
+            report("-", deleted, deletes.size());
+        }
+    }
+
+    // The songs of the catalog that are new or changed, as "Music" items. Every key read is added to seen.
+    private Iterator<Item> changes(CatalogReader reader, Map<List<String>, String> existing, Set<List<String>> seen) {
+        return new Iterator<Item>() {
+            private Item next;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null && reader.hasNext()) {
+                    Item item = MusicLoadData.toItem(reader.next());
+                    List<String> key = MusicBatchLoader.key(item);
+                    seen.add(key);
+                    String previous = existing.get(key);
+                    String label = key.get(0) + " " + key.get(1);
+                    if (previous == null) {
+                        insertCount++;
+                        if (inserts.size() < REPORT_LIMIT) {
+                            inserts.add(label);
+                        }
+                        next = item;
+                    } else if (!previous.equals(fingerprint(item))) {
+                        updateCount++;
+                        if (updates.size() < REPORT_LIMIT) {
+                            updates.add(label);
+                        }
+                        next = item;
+                    } else {
+                        unchangedCount++;
+                    }
+                }
+                return next != null;
+            }
+
+            @Override
+            public Item next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Item item = next;
+                next = null;
+                return item;
+            }
+        };
+    }
+
+    // Reads the fingerprints of the whole table, one thread per scan segment.
+    private Map<List<String>, String> scan() throws InterruptedException {
+        Map<List<String>, String> fingerprints = new ConcurrentHashMap<>();
+        Table table = dynamoDB.getTable(tableName);
+        int segments = Math.max(SCAN_SEGMENTS, 1);
+        ExecutorService executor = Executors.newFixedThreadPool(segments);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int segment = 0; segment < segments; segment++) {
+                ScanSpec spec = new ScanSpec().withSegment(segment).withTotalSegments(segments);
+                futures.add(executor.submit(() -> {
+                    for (Item item : table.scan(spec)) {
+                        fingerprints.put(MusicBatchLoader.key(item), fingerprint(item));
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Unable to scan " + tableName + ": " + e.getCause().getMessage(), e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        return fingerprints;
+    }
+
+    /*
+     Reads the fingerprints from a DynamoDB export in DYNAMODB_JSON format: one {"Item": {...}} per line,
+     every attribute typed as {"S": ...} or {"N": ...}. The data files of an export are gzip-compressed,
+     a directory is read file by file.
+    */
+    private static Map<List<String>, String> readSnapshot(Path path) throws IOException {
+        List<Path> files = new ArrayList<>();
+        if (Files.isDirectory(path)) {
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(path, "*.json*")) {
+                stream.forEach(files::add);
+            }
+        } else {
+            files.add(path);
+        }
+
+        ObjectMapper mapper = new ObjectMapper();
+        Map<List<String>, String> fingerprints = new ConcurrentHashMap<>();
+        for (Path file : files) {
+            try (BufferedReader lines = new BufferedReader(new InputStreamReader(open(file), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = lines.readLine()) != null) {
+                    if (line.trim().isEmpty()) {
+                        continue;
+                    }
+                    JsonNode attributes = mapper.readTree(line).path("Item");
+                    Item item = new Item();
+                    attributes.fields().forEachRemaining(attribute -> {
+                        JsonNode value = attribute.getValue();
+                        if (value.has("N")) {
+                            item.withNumber(attribute.getKey(), new BigDecimal(value.get("N").asText()));
+                        } else if (value.has("S")) {
+                            item.withString(attribute.getKey(), value.get("S").asText());
+                        } else {
+                            item.withString(attribute.getKey(), value.toString());
+                        }
+                    });
+                    fingerprints.put(MusicBatchLoader.key(item), fingerprint(item));
+                }
+            }
+        }
+        return fingerprints;
+    }
+
+    private static InputStream open(Path file) throws IOException {
+        InputStream in = new BufferedInputStream(Files.newInputStream(file));
+        in.mark(2);
+        boolean gzip = in.read() == 0x1f && in.read() == 0x8b;
+        in.reset();
+        return gzip ? new GZIPInputStream(in) : in;
+    }
+
+    /*
+     A SHA-256 of every attribute except the key, in name order, so it does not depend on how the item
+     was read. Numbers are compared by their value without trailing zeros.
+    */
+    static String fingerprint(Item item) {
+        StringBuilder content = new StringBuilder();
+        for (Map.Entry<String, Object> attribute : new TreeMap<>(item.asMap()).entrySet()) {
+            if (attribute.getKey().equals("year") || attribute.getKey().equals("title")) {
+                continue;
+            }
+            Object value = attribute.getValue();
+            if (value instanceof BigDecimal) {
+                value = ((BigDecimal) value).stripTrailingZeros().toPlainString();
+            }
+            content.append(attribute.getKey()).append('=').append(value).append('\n');
+        }
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(content.toString().getBytes(StandardCharsets.UTF_8));
+            return Base64.getEncoder().encodeToString(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void report(String sign, List<String> songs, int total) {
+        for (String song : songs) {
+            System.out.println("  " + sign + " " + song);
+        }
+        if (total > songs.size()) {
+            System.out.println("  " + sign + " ... and " + (total - songs.size()) + " more");
+        }
+    }
+}
@@ -1,16 +1,23 @@
 
 /*
 This Java program, uses the AWS SDK for Java and the Jackson library to read song data from a JSON file
-named "2025a1.json". It connects to a DynamoDB table named "Music" in the specified AWS region. The program then
-iterates through the "songs" array in the JSON file, extracting the title, artist, year, album, and image URL for
-each song. For each song, it uses the DynamoDB Document API to insert a new item into the "Music" table, with "year"
+named "2025a1.json" (-Dcatalog to read another one, which may be gzip-compressed or newline-delimited JSON). It
+connects to a DynamoDB table named "Music" in the specified AWS region. The program then streams the songs of the
+JSON file one at a time through CatalogReader, extracting the title, artist, year, album, and image URL for each
+song. For each song, it uses the DynamoDB Document API to insert a new item into the "Music" table, with "year"
 and "title" as the primary key and the other attributes stored as strings. The program prints messages indicating the
-success or failure of each item insertion. Finally, it closes the JSON parser.
+success or failure of each item insertion. Finally, it closes the catalog.
+
+By default (-Dload.mode=batch) the songs are handed to MusicBatchLoader, which writes them with parallel
+BatchWriteItem requests at a rate adapted to the table's write capacity and prints the items per second at the end.
+-Dload.mode=sequential keeps the original one PutItem per song, and -Dload.mode=delta compares the catalog with the
+table through MusicDeltaLoader and writes only the songs that were added, changed or removed (-Dload.dryrun=true
+only reports them).
  */
 
 package com.amazonaws.samples;
 
-import java.io.File;
+import java.nio.file.Paths;
 import java.util.Iterator;
 
 import com.amazonaws.auth.profile.ProfileCredentialsProvider;
@@ -21,12 +28,6 @@ import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClientBuilder;
 import com.amazonaws.services.dynamodbv2.document.DynamoDB;
 import com.amazonaws.services.dynamodbv2.document.Item;
 import com.amazonaws.services.dynamodbv2.document.Table;
-import com.fasterxml.jackson.core.JsonFactory;
-import com.fasterxml.jackson.core.JsonParser;
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.ArrayNode;
-import com.fasterxml.jackson.databind.node.ObjectNode;
 
 public class MusicLoadData {
 
@@ -43,44 +44,58 @@ public class MusicLoadData {
         Table table = dynamoDB.getTable("Music");
 
 
-        JsonParser parser = new JsonFactory().createParser(new File("2025a1.json"));
-        JsonNode rootNode = new ObjectMapper().readTree(parser);
-
-
-        // Extracting the "songs" array from the root node
-        ArrayNode songsNode = (ArrayNode) rootNode.path("songs");
-
-        /*
-         This loop iterates through each songNode within the songsNode (an array of song objects parsed from the JSON
-         file). Inside the loop, it extracts the "title", "artist", "year", "album", and "img_url" as string or integer
-         values from the current songNode. It then attempts to insert a new item into the "Music" DynamoDB table using
-         the putItem method. The primary key for each item is set using the "year" and "title" attributes, and the
-         "artist", "album", and "image_url" are added as string attributes. A success message is printed upon
-         successful insertion.
-         */
-        for (JsonNode songNode : songsNode) {
-            // Extracting the attributes from the JSON data
-            String title = songNode.path("title").asText();
-            String artist = songNode.path("artist").asText();
-            int year = songNode.path("year").asInt(); // Ensure this is an integer
-            String album = songNode.path("album").asText();
-            String imageUrl = songNode.path("img_url").asText();
-
-            try {
-                // Inserting data into DynamoDB music table
-                table.putItem(new Item()
-                        .withPrimaryKey("year", year, "title", title)
-                        .withString("artist", artist)
-                        .withString("album", album)
-                        .withString("image_url", imageUrl));
-
-                System.out.println("PutItem succeeded: " + year + " " + title);
-
-            } catch (Exception e) {
-                System.err.println("Unable to add song: " + year + " " + title);
-                System.err.println(e.getMessage());
+        String mode = System.getProperty("load.mode", "batch");
+        boolean sequential = "sequential".equalsIgnoreCase(mode);
+
+        // The catalog is streamed one song at a time, it may be gzip-compressed or newline-delimited JSON
+        try (CatalogReader reader = CatalogReader.open(Paths.get(System.getProperty("catalog", "2025a1.json")))) {
+            if ("delta".equalsIgnoreCase(mode)) {
+                new MusicDeltaLoader(dynamoDB, "Music").run(reader, Boolean.getBoolean("load.dryrun"));
+                return;
+            }
+            if (!sequential) {
+                new MusicBatchLoader(dynamoDB, "Music").load(new Iterator<Item>() {
+                    @Override
+                    public boolean hasNext() {
+                        return reader.hasNext();
+                    }
+
+                    @Override
+                    public Item next() {
+                        return toItem(reader.next());
+                    }
+                });
+                return;
+            }
+
+            /*
+             This loop iterates through each song read from the catalog. For each song it attempts to insert a new
+             item into the "Music" DynamoDB table using the putItem method. The primary key for each item is set using
+             the "year" and "title" attributes, and the "artist", "album", and "image_url" are added as string
+             attributes. A success message is printed upon successful insertion.
+             */
+            while (reader.hasNext()) {
+                CatalogReader.Song song = reader.next();
+                try {
+                    // Inserting data into DynamoDB music table
+                    table.putItem(toItem(song));
+
+                    System.out.println("PutItem succeeded: " + song.getYear() + " " + song.getTitle());
+
+                } catch (Exception e) {
+                    System.err.println("Unable to add song: " + song.getYear() + " " + song.getTitle());
+                    System.err.println(e.getMessage());
+                }
             }
         }
-        parser.close();
+    }
+
+    // The "Music" item of a song, keyed by "year" and "title"
+    static Item toItem(CatalogReader.Song song) {
+        return new Item()
+                .withPrimaryKey("year", song.getYear(), "title", song.getTitle())
+                .withString("artist", song.getArtist())
+                .withString("album", song.getAlbum())
+                .withString("image_url", song.getImageUrl());
     }
 }
@@ -0,0 +1,107 @@
+/*
+This class is the declaration of one DynamoDB table for MusicCreateTable: its name, its primary key and the Global
+Secondary Indexes it should have, written as for example
+
+    TableSchema.table("Music").hash("year", N).range("title", S)
+            .index("ArtistAlbumIndex", "artist", S, "album", S)
+
+It only describes the table; MusicCreateTable compares it with what exists and creates or updates the table to
+match. Every index projects all attributes, since the backend returns whole items from its index queries.
+*/
+
+package com.amazonaws.samples;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeDefinition;
+import com.amazonaws.services.dynamodbv2.model.KeySchemaElement;
+import com.amazonaws.services.dynamodbv2.model.KeyType;
+import com.amazonaws.services.dynamodbv2.model.ScalarAttributeType;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class TableSchema {
+
+    private final String name;
+    private final Map<String, ScalarAttributeType> attributes = new LinkedHashMap<>();
+    private final List<KeySchemaElement> keySchema = new ArrayList<>();
+    private final List<Index> indexes = new ArrayList<>();
+
+    private TableSchema(String name) {
+        this.name = name;
+    }
+
+    public static TableSchema table(String name) {
+        return new TableSchema(name);
+    }
+
+    public TableSchema hash(String attribute, ScalarAttributeType type) {
+        attributes.put(attribute, type);
+        keySchema.add(new KeySchemaElement(attribute, KeyType.HASH));
+        return this;
+    }
+
+    public TableSchema range(String attribute, ScalarAttributeType type) {
+        attributes.put(attribute, type);
+        keySchema.add(new KeySchemaElement(attribute, KeyType.RANGE));
+        return this;
+    }
+
+    // An index with only a partition key.
+    public TableSchema index(String indexName, String hash, ScalarAttributeType hashType) {
+        return index(indexName, hash, hashType, null, null);
+    }
+
+    public TableSchema index(String indexName, String hash, ScalarAttributeType hashType, String range, ScalarAttributeType rangeType) {
+        List<KeySchemaElement> indexKey = new ArrayList<>();
+        attributes.put(hash, hashType);
+        indexKey.add(new KeySchemaElement(hash, KeyType.HASH));
+        if (range != null) {
+            attributes.put(range, rangeType);
+            indexKey.add(new KeySchemaElement(range, KeyType.RANGE));
+        }
+        indexes.add(new Index(indexName, indexKey));
+        return this;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public List<KeySchemaElement> getKeySchema() {
+        return keySchema;
+    }
+
+    public List<Index> getIndexes() {
+        return indexes;
+    }
+
+    // The definitions of every attribute used in the table's key or in an index key.
+    public List<AttributeDefinition> getAttributeDefinitions() {
+        List<AttributeDefinition> definitions = new ArrayList<>();
+        for (Map.Entry<String, ScalarAttributeType> attribute : attributes.entrySet()) {
+            definitions.add(new AttributeDefinition(attribute.getKey(), attribute.getValue()));
+        }
+        return definitions;
+    }
+
+    // One Global Secondary Index of the table.
+    public static final class Index {
+        private final String name;
+        private final List<KeySchemaElement> keySchema;
+
+        Index(String name, List<KeySchemaElement> keySchema) {
+            this.name = name;
+            this.keySchema = keySchema;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public List<KeySchemaElement> getKeySchema() {
+            return keySchema;
+        }
+    }
+}
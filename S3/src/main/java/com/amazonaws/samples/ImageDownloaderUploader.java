@@ -2,90 +2,266 @@
 This Java program, reads a JSON file to extract image URLs associated with artists. For each
 image URL, it downloads the image and then uploads it to a specified Amazon S3 bucket ("s4059306-mybucket").
 The images are named based on the artist's name (with spaces removed and converted to lowercase, and a ".jpg"
-extension). The program uses the AWS SDK for Java to interact with S3 and the org.json library to parse the JSON
+extension). The program uses the AWS SDK for Java to interact with S3 and Jackson's streaming parser to read the JSON
 data. It includes helper methods for downloading the image from a URL and uploading the input stream to S3 with
-the correct content type.
+the correct content type. Each image is also decoded once and scaled down to the smaller variants from
+ImageVariants (64, 128 and 512 pixels by default), which are uploaded under size-suffixed keys such as
+"taylorswift_128.jpg" so the backend can hand out the smallest image that fits. Songs by the same artist share
+one image, so every image is transferred once, and the transfers run in parallel on -Dingest.threads workers with at
+most -Dingest.per.host downloads from the same host. Uploads go through S3StreamingUploader, so every object is
+sent with its length and nothing is held in memory whole: an image is spooled to a temporary file, which is both
+uploaded and decoded for the variants, and when no variants are configured and the server sends a Content-Length
+the download is streamed straight into the upload. With -Dsync=true only new or changed images are transferred,
+based on the SyncManifest kept from the previous run. A summary of throughput, bytes and failures is printed at
+the end.
  */
 
 package com.amazonaws.samples;
 
+import com.amazonaws.ClientConfiguration;
 import com.amazonaws.auth.profile.ProfileCredentialsProvider;
 import com.amazonaws.regions.Regions;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3ClientBuilder;
-import com.amazonaws.services.s3.model.ObjectMetadata;
-import com.amazonaws.services.s3.model.PutObjectRequest;
-
-import org.json.JSONArray;
-import org.json.JSONObject;
 
 import java.io.*;
+import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLConnection;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class ImageDownloaderUploader {
 
+    // Images downloaded and uploaded at the same time, and at most this many downloads from any one host.
+    private static final int THREADS = Integer.getInteger("ingest.threads", 8);
+    private static final int PER_HOST = Integer.getInteger("ingest.per.host", 4);
+
+    private static final Map<String, Semaphore> HOST_LIMITS = new ConcurrentHashMap<>();
+
+    private static final AtomicInteger uploaded = new AtomicInteger();
+    private static final AtomicLong bytesDownloaded = new AtomicLong();
+    private static final AtomicLong bytesUploaded = new AtomicLong();
+    private static final AtomicInteger unchanged = new AtomicInteger();
+    private static final Queue<String> failures = new ConcurrentLinkedQueue<>();
+
+    // Set in sync mode, where images that have not changed since the last run are skipped.
+    private static SyncManifest manifest;
+
     public static void main(String[] args) {
         String bucketName = "s4059306-mybucket";  // Target bucket
-        String jsonFilePath = "2025a1.json";
+        String jsonFilePath = System.getProperty("catalog", "2025a1.json");
 
-        // Initialize S3 client
+        // Initialize S3 client, with enough connections for every worker to upload at once
         AmazonS3 s3Client = AmazonS3ClientBuilder.standard()
                 .withCredentials(new ProfileCredentialsProvider())
                 .withRegion(Regions.US_EAST_1)
+                .withClientConfiguration(new ClientConfiguration().withMaxConnections(Math.max(THREADS, 1)))
                 .build();
 
+        S3StreamingUploader uploader = new S3StreamingUploader(s3Client, bucketName);
         try {
+            if (Boolean.getBoolean("sync")) {
+                manifest = SyncManifest.load();
+                System.out.println("🔁 Sync mode, manifest knows " + manifest.size() + " images");
+            }
 
             /*
-              This code block reads the content of the json file, parses it as a JSON object, and retrieves
-              the "songs" array. It then iterates through each song in the array, extracting the image URL
+              This code block streams the songs of the json file one at a time through CatalogReader, so the
+              catalog is never held in memory whole (it may also be gzip-compressed or newline-delimited
+              JSON, see -Dcatalog). It iterates through each song, extracting the image URL
               (imgUrl) and artist name. To ensure consistency with a preassigned, case-sensitive link structure,
               it normalizes the artist name by removing whitespace and converting it to lowercase, creating a
-              corresponding imageName with a ".jpg" extension. Subsequently, it downloads the image from the
-              extracted URL and uploads it to the specified S3 bucket using the generated imageName. The process
-              for each song is wrapped in a try-catch block to handle potential exceptions during file reading,
-              JSON parsing, image downloading, or S3 uploading.
+              corresponding imageName with a ".jpg" extension.
 
-             */
-            String content = new String(java.nio.file.Files.readAllBytes(new File(jsonFilePath).toPath()));
-            JSONObject jsonObject = new JSONObject(content);
-            JSONArray songs = jsonObject.getJSONArray("songs");
+              Many songs share an artist, so the songs are first reduced to one image URL per imageName and
+              every image is transferred only once. The images are then downloaded from the extracted URL and
+              uploaded to the specified S3 bucket on a fixed pool of worker threads, with a limit on the
+              number of downloads from the same host. A failed image is counted and reported in the summary
+              at the end without stopping the others.
 
-            for (int i = 0; i < songs.length(); i++) {
-                JSONObject song = songs.getJSONObject(i);
-                String imgUrl = song.getString("img_url");
-                String artist = song.getString("artist");
+             */
+            Map<String, String> images = new LinkedHashMap<>();
+            int songs;
+            try (CatalogReader reader = CatalogReader.open(Paths.get(jsonFilePath))) {
+                while (reader.hasNext()) {
+                    CatalogReader.Song song = reader.next();
+                    String imgUrl = song.getImageUrl();
+                    String artist = song.getArtist();
 
 
-                String imageName = artist.replaceAll("\\s+", "").toLowerCase() + ".jpg";
+                    String imageName = artist.replaceAll("\\s+", "").toLowerCase() + ".jpg";
+                    images.putIfAbsent(imageName, imgUrl);
+                }
+                songs = reader.getCount();
+            }
+            System.out.println("🎤 " + songs + " songs share " + images.size() + " artist images");
 
-                InputStream imageStream = downloadImage(imgUrl);
-                uploadToS3(s3Client, bucketName, imageName, imageStream);
+            long start = System.nanoTime();
+            ExecutorService workers = Executors.newFixedThreadPool(Math.max(THREADS, 1));
+            for (Map.Entry<String, String> image : images.entrySet()) {
+                workers.execute(() -> ingest(uploader, image.getKey(), image.getValue()));
+            }
+            workers.shutdown();
+            workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
 
-                System.out.println("✅ Uploaded: " + imageName);
+            if (manifest != null) {
+                manifest.save();
             }
+            printSummary(images.size(), songs - images.size(), System.nanoTime() - start);
         } catch (Exception e) {
             e.printStackTrace();
+        } finally {
+            uploader.shutdown();
+            s3Client.shutdown();
         }
     }
 
-    private static InputStream downloadImage(String imageUrl) throws IOException {
-        URL url = new URL(imageUrl);
-        URLConnection connection = url.openConnection();
-        connection.setRequestProperty("User-Agent", "Mozilla/5.0");
-        return connection.getInputStream();
-    }
-
-    private static void uploadToS3(AmazonS3 s3Client, String bucketName, String imageName, InputStream imageStream) {
+    // Downloads one image, uploads it and its resized variants, and records the outcome.
+    private static void ingest(S3StreamingUploader uploader, String imageName, String imgUrl) {
+        Path spooled = null;
         try {
-            ObjectMetadata metadata = new ObjectMetadata();
-            metadata.setContentType("image/jpeg");
-            PutObjectRequest putRequest = new PutObjectRequest(bucketName, imageName, imageStream, metadata);
-            s3Client.putObject(putRequest);
+            // What the last sync uploaded for this key, as long as it came from the same URL.
+            SyncManifest.Entry known = manifest == null ? null : manifest.get(imageName);
+            if (known != null && !imgUrl.equals(known.url)) {
+                known = null;
+            }
+
+            MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+            String sourceETag;
+            String lastModified;
+
+            // Waits for a free slot on the image's host before downloading it.
+            Semaphore hostLimit = HOST_LIMITS.computeIfAbsent(new URL(imgUrl).getHost(), host -> new Semaphore(PER_HOST));
+            hostLimit.acquire();
+            try {
+                URLConnection connection = downloadImage(imgUrl);
+                if (known != null && isNotModified(connection, known)) {
+                    if (known.s3ETag.equals(uploader.headETag(imageName))) {
+                        unchanged.incrementAndGet();
+                        System.out.println("⏭️ Unchanged: " + imageName);
+                        return;
+                    }
+                    // The source is the same but the bucket lost or replaced the object, so fetch it in full.
+                    connection = downloadImage(imgUrl);
+                }
+                sourceETag = connection.getHeaderField("ETag");
+                lastModified = connection.getHeaderField("Last-Modified");
+
+                long contentLength = connection.getContentLengthLong();
+                if (manifest == null && ImageVariants.SIZES.length == 0 && contentLength >= 0) {
+                    // Nothing to resize, so the download is streamed straight into the upload.
+                    long bytes = uploader.upload(imageName, "image/jpeg", connection.getInputStream(), contentLength);
+                    bytesDownloaded.addAndGet(bytes);
+                    bytesUploaded.addAndGet(bytes);
+                    uploaded.incrementAndGet();
+                    System.out.println("✅ Uploaded: " + imageName);
+                    return;
+                }
+                spooled = S3StreamingUploader.spool(new DigestInputStream(connection.getInputStream(), sha256));
+            } finally {
+                hostLimit.release();
+            }
+            bytesDownloaded.addAndGet(Files.size(spooled));
+
+            // Same bytes as last time and the object is still in the bucket: nothing to upload.
+            String hash = toHex(sha256.digest());
+            if (known != null && hash.equals(known.sha256) && known.s3ETag.equals(uploader.headETag(imageName))) {
+                manifest.put(imageName, new SyncManifest.Entry(imgUrl, sourceETag, lastModified, hash, known.s3ETag));
+                unchanged.incrementAndGet();
+                System.out.println("⏭️ Unchanged: " + imageName);
+                return;
+            }
+
+            // The spooled image is both uploaded as is and decoded once for the variants.
+            bytesUploaded.addAndGet(uploader.upload(imageName, "image/jpeg", spooled.toFile()));
+
+            List<ImageVariants.Variant> variants = ImageVariants.resize(spooled.toFile());
+            for (ImageVariants.Variant variant : variants) {
+                bytesUploaded.addAndGet(uploader.upload(ImageVariants.variantKey(imageName, variant.size), "image/jpeg",
+                        new ByteArrayInputStream(variant.jpeg), variant.jpeg.length));
+            }
+
+            if (manifest != null) {
+                manifest.put(imageName, new SyncManifest.Entry(imgUrl, sourceETag, lastModified, hash,
+                        uploader.headETag(imageName)));
+            }
+            uploaded.incrementAndGet();
+            System.out.println("✅ Uploaded: " + imageName + " and " + variants.size() + " resized variants");
         } catch (Exception e) {
-            System.err.println("❌ Failed to upload: " + imageName);
-            e.printStackTrace();
+            failures.add(imageName + ": " + e.getMessage());
+            System.err.println("❌ Failed: " + imageName + " (" + e.getMessage() + ")");
+        } finally {
+            if (spooled != null) {
+                try {
+                    Files.deleteIfExists(spooled);
+                } catch (IOException e) {
+                    System.err.println("Unable to delete " + spooled + ": " + e.getMessage());
+                }
+            }
         }
     }
+
+    // Sends the validators from the last sync; a 304 means the source still has the same image.
+    private static boolean isNotModified(URLConnection connection, SyncManifest.Entry known) throws IOException {
+        if (!(connection instanceof HttpURLConnection)) {
+            return false;
+        }
+        if (known.sourceETag != null) {
+            connection.setRequestProperty("If-None-Match", known.sourceETag);
+        }
+        if (known.lastModified != null) {
+            connection.setRequestProperty("If-Modified-Since", known.lastModified);
+        }
+        return ((HttpURLConnection) connection).getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED;
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    private static void printSummary(int images, int duplicates, long elapsedNanos) {
+        double seconds = Math.max(elapsedNanos / 1e9, 0.001);
+        double megabytes = (bytesDownloaded.get() + bytesUploaded.get()) / (1024.0 * 1024.0);
+        System.out.println("📊 Summary");
+        System.out.println("   images uploaded:    " + uploaded.get() + " of " + images
+                + " (" + duplicates + " duplicate songs skipped)");
+        if (manifest != null) {
+            System.out.println("   unchanged:          " + unchanged.get());
+        }
+        System.out.println("   failures:           " + failures.size());
+        System.out.println(String.format("   bytes downloaded:   %,d", bytesDownloaded.get()));
+        System.out.println(String.format("   bytes uploaded:     %,d", bytesUploaded.get()));
+        System.out.println(String.format("   elapsed:            %.1f s", seconds));
+        System.out.println(String.format("   throughput:         %.1f images/s, %.2f MB/s", uploaded.get() / seconds, megabytes / seconds));
+        for (String failure : failures) {
+            System.out.println("   ❌ " + failure);
+        }
+    }
+
+    private static URLConnection downloadImage(String imageUrl) throws IOException {
+        URL url = new URL(imageUrl);
+        URLConnection connection = url.openConnection();
+        connection.setRequestProperty("User-Agent", "Mozilla/5.0");
+        return connection;
+    }
 }
\ No newline at end of file
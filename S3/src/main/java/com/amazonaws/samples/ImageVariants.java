@@ -0,0 +1,125 @@
+/*
+This class is the image processing stage of the S3 ingestion. Every downloaded artist image is decoded once and
+scaled down to a set of smaller variants (64, 128 and 512 pixels by default, -Dimage.sizes to change them), each
+re-encoded as a JPEG with -Dimage.quality (0.85 by default). The UI shows artist images at 100 pixels, so
+serving the 128 pixel variant instead of the original saves most of the bytes of every image load.
+
+A variant is stored next to the original under the same key with its size added, for example
+"taylorswift.jpg" becomes "taylorswift_128.jpg". Variants keep the aspect ratio of the original and fit in a
+square of their size; images that are already smaller than a size are not scaled up.
+
+Resizing and JPEG encoding adapted from the Java ImageIO and Java2D documentation:
+https://docs.oracle.com/javase/8/docs/api/javax/imageio/ImageWriteParam.html
+https://docs.oracle.com/javase/tutorial/2d/images/drawimage.html
+*/
+
+package com.amazonaws.samples;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class ImageVariants {
+
+    static final int[] SIZES = parseSizes(System.getProperty("image.sizes", "64,128,512"));
+    private static final float QUALITY = Float.parseFloat(System.getProperty("image.quality", "0.85"));
+
+    // The S3 key of a variant: the original key with the size added before the extension.
+    public static String variantKey(String imageName, int size) {
+        int dot = imageName.lastIndexOf('.');
+        return dot < 0 ? imageName + "_" + size : imageName.substring(0, dot) + "_" + size + imageName.substring(dot);
+    }
+
+    /*
+     Decodes the image spooled to the file once and returns one JPEG per configured size, smallest first.
+     Returns an empty list when the file is not an image ImageIO can read.
+    */
+    public static List<Variant> resize(File original) throws IOException {
+        return resize(ImageIO.read(original));
+    }
+
+    private static List<Variant> resize(BufferedImage source) throws IOException {
+        List<Variant> variants = new ArrayList<>();
+        if (source == null) {
+            return variants;
+        }
+        for (int size : SIZES) {
+            variants.add(new Variant(size, encode(scale(source, size))));
+        }
+        return variants;
+    }
+
+    /*
+     Scales the image to fit in size x size. Large reductions are done in halving steps, which keeps
+     bilinear filtering sharp without paying for a bicubic pass over the full-size image.
+    */
+    static BufferedImage scale(BufferedImage source, int size) {
+        double ratio = Math.min(1.0, (double) size / Math.max(source.getWidth(), source.getHeight()));
+        int targetWidth = Math.max(1, (int) Math.round(source.getWidth() * ratio));
+        int targetHeight = Math.max(1, (int) Math.round(source.getHeight() * ratio));
+
+        BufferedImage current = source;
+        int width = source.getWidth();
+        int height = source.getHeight();
+        do {
+            width = Math.max(targetWidth, width / 2);
+            height = Math.max(targetHeight, height / 2);
+            // JPEG has no alpha channel, so every step draws onto a plain RGB image.
+            BufferedImage step = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            Graphics2D graphics = step.createGraphics();
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            graphics.drawImage(current, 0, 0, width, height, null);
+            graphics.dispose();
+            current = step;
+        } while (width != targetWidth || height != targetHeight);
+        return current;
+    }
+
+    static byte[] encode(BufferedImage image) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(QUALITY);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ImageOutputStream out = ImageIO.createImageOutputStream(bytes)) {
+            writer.setOutput(out);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return bytes.toByteArray();
+    }
+
+    private static int[] parseSizes(String value) {
+        List<Integer> sizes = new ArrayList<>();
+        for (String part : value.split(",")) {
+            if (!part.trim().isEmpty()) {
+                sizes.add(Integer.parseInt(part.trim()));
+            }
+        }
+        return sizes.stream().mapToInt(Integer::intValue).filter(size -> size > 0).sorted().distinct().toArray();
+    }
+
+    // One resized copy of an image, ready to upload.
+    public static final class Variant {
+        final int size;
+        final byte[] jpeg;
+
+        Variant(int size, byte[] jpeg) {
+            this.size = size;
+            this.jpeg = jpeg;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+This class uploads objects to the S3 bucket without ever holding a whole object in memory. Every upload is sent
+with its length set on the ObjectMetadata: a stream whose length is known (for example from the Content-Length of
+the download) is streamed straight through, and a stream of unknown length is first spooled to a temporary file.
+Without a length the SDK would have to buffer the entire stream on the heap to work it out.
+
+Files are uploaded through a TransferManager. Anything above -Dupload.multipart.threshold.mb (16 MB by default)
+is split into -Dupload.part.size.mb parts that are uploaded in parallel on -Dupload.threads threads, smaller
+files go up in a single PutObject.
+
+Code adapted from the AWS SDK documentation on uploads and the TransferManager:
+https://docs.aws.amazon.com/sdk-for-java/v1/developer-guide/examples-s3-transfermanager.html
+https://docs.aws.amazon.com/AmazonS3/latest/userguide/mpuoverview.html
+*/
+
+package com.amazonaws.samples;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.transfer.TransferManager;
+import com.amazonaws.services.s3.transfer.TransferManagerBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.Executors;
+
+public class S3StreamingUploader {
+
+    private static final long MB = 1024 * 1024;
+    private static final long MULTIPART_THRESHOLD = Long.getLong("upload.multipart.threshold.mb", 16) * MB;
+    private static final long PART_SIZE = Long.getLong("upload.part.size.mb", 8) * MB;
+    private static final int THREADS = Integer.getInteger("upload.threads", 4);
+
+    private final AmazonS3 s3Client;
+    private final String bucketName;
+    private final TransferManager transferManager;
+
+    public S3StreamingUploader(AmazonS3 s3Client, String bucketName) {
+        this.s3Client = s3Client;
+        this.bucketName = bucketName;
+        this.transferManager = TransferManagerBuilder.standard()
+                .withS3Client(s3Client)
+                .withMultipartUploadThreshold(MULTIPART_THRESHOLD)
+                .withMinimumUploadPartSize(PART_SIZE)
+                .withExecutorFactory(() -> Executors.newFixedThreadPool(Math.max(THREADS, 1)))
+                .withShutDownThreadPools(true)
+                .build();
+    }
+
+    /*
+     Uploads a stream. With a known length (0 or more) that is not above the multipart threshold the
+     stream goes straight to S3; otherwise it is spooled to a temporary file first. Returns the number
+     of bytes uploaded. The stream is always closed.
+    */
+    public long upload(String key, String contentType, InputStream in, long contentLength) throws IOException, InterruptedException {
+        if (contentLength >= 0 && contentLength <= MULTIPART_THRESHOLD) {
+            try (InputStream stream = in) {
+                ObjectMetadata metadata = new ObjectMetadata();
+                metadata.setContentType(contentType);
+                metadata.setContentLength(contentLength);
+                s3Client.putObject(new PutObjectRequest(bucketName, key, stream, metadata));
+                return contentLength;
+            }
+        }
+
+        Path spooled = spool(in);
+        try {
+            return upload(key, contentType, spooled.toFile());
+        } finally {
+            Files.deleteIfExists(spooled);
+        }
+    }
+
+    // Uploads a file, in parallel parts when it is above the multipart threshold. Returns the number of bytes uploaded.
+    public long upload(String key, String contentType, File file) throws InterruptedException {
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentType(contentType);
+        metadata.setContentLength(file.length());
+        transferManager.upload(new PutObjectRequest(bucketName, key, file).withMetadata(metadata)).waitForCompletion();
+        return file.length();
+    }
+
+    // The ETag of the object in the bucket, from a HEAD request, or null when there is no such object.
+    public String headETag(String key) {
+        try {
+            return s3Client.getObjectMetadata(bucketName, key).getETag();
+        } catch (AmazonS3Exception e) {
+            if (e.getStatusCode() == 404) {
+                return null;
+            }
+            throw e;
+        }
+    }
+
+    // Copies the stream into a temporary file, so its length is known and it can be read more than once.
+    public static Path spool(InputStream in) throws IOException {
+        Path file = Files.createTempFile("s3-upload-", ".tmp");
+        try (InputStream stream = in) {
+            Files.copy(stream, file, StandardCopyOption.REPLACE_EXISTING);
+            return file;
+        } catch (IOException e) {
+            Files.deleteIfExists(file);
+            throw e;
+        }
+    }
+
+    // Stops the multipart upload threads, the S3 client itself is left open for the caller.
+    public void shutdown() {
+        transferManager.shutdownNow(false);
+    }
+}
@@ -0,0 +1,95 @@
+/*
+This class is the local manifest that makes repeated image ingestion incremental (-Dsync=true). For every S3 key it
+remembers the source URL the image came from, the validators the source server sent for it (ETag and
+Last-Modified), the SHA-256 of the image bytes and the ETag S3 gave the uploaded object.
+
+On the next run ImageDownloaderUploader sends those validators with a conditional GET, so an unchanged image costs
+a 304 instead of a download, and compares the object's current ETag in the bucket (a HEAD request) with the one
+in the manifest, so an image that was deleted or replaced in the bucket is uploaded again. A download whose
+SHA-256 matches the manifest is not uploaded either. The manifest is a JSON file (-Dsync.manifest, by default
+image-manifest.json) that is rewritten through a temporary file at the end of every run.
+*/
+
+package com.amazonaws.samples;
+
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class SyncManifest {
+
+    private final Path path;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private SyncManifest(Path path) {
+        this.path = path;
+    }
+
+    // Loads the manifest of the previous run, or starts an empty one.
+    public static SyncManifest load() throws IOException {
+        SyncManifest manifest = new SyncManifest(Paths.get(System.getProperty("sync.manifest", "image-manifest.json")));
+        if (Files.exists(manifest.path)) {
+            JSONObject json = new JSONObject(new String(Files.readAllBytes(manifest.path), StandardCharsets.UTF_8));
+            for (String key : json.keySet()) {
+                JSONObject entry = json.getJSONObject(key);
+                manifest.entries.put(key, new Entry(entry.optString("url"), entry.optString("sourceETag", null),
+                        entry.optString("lastModified", null), entry.optString("sha256"), entry.optString("s3ETag")));
+            }
+        }
+        return manifest;
+    }
+
+    public Entry get(String key) {
+        return entries.get(key);
+    }
+
+    public void put(String key, Entry entry) {
+        entries.put(key, entry);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    // Writes the manifest sorted by key, so it diffs cleanly between runs.
+    public void save() throws IOException {
+        JSONObject json = new JSONObject();
+        for (Map.Entry<String, Entry> entry : new TreeMap<>(entries).entrySet()) {
+            Entry value = entry.getValue();
+            json.put(entry.getKey(), new JSONObject()
+                    .put("url", value.url)
+                    .put("sourceETag", value.sourceETag)
+                    .put("lastModified", value.lastModified)
+                    .put("sha256", value.sha256)
+                    .put("s3ETag", value.s3ETag));
+        }
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        Files.write(temporary, json.toString(2).getBytes(StandardCharsets.UTF_8));
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // What the manifest knows about one S3 key.
+    public static final class Entry {
+        final String url;
+        final String sourceETag;
+        final String lastModified;
+        final String sha256;
+        final String s3ETag;
+
+        Entry(String url, String sourceETag, String lastModified, String sha256, String s3ETag) {
+            this.url = url;
+            this.sourceETag = sourceETag;
+            this.lastModified = lastModified;
+            this.sha256 = sha256;
+            this.s3ETag = s3ETag;
+        }
+    }
+}